@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2012 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.core;
+
+import static org.tmatesoft.hg.repo.HgRepository.BAD_REVISION;
+
+import org.tmatesoft.hg.internal.IntMap;
+import org.tmatesoft.hg.repo.HgStatusCollector;
+
+/**
+ * Files changed by each changeset, shared by {@link HgChangeset} instances that come from the same {@link ChangesetTransformer}.
+ * Once a changeset asks for its files, those of changesets likely to ask next are {@link HgStatusCollector#changes(int, int) calculated}
+ * as well, with manifests read once for all of them.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+/*package-local*/ class ChangesetFileChanges {
+	private static final int BATCH_SIZE = 50;
+	private static final int MAX_KEPT = 4 * BATCH_SIZE;
+
+	private final HgStatusCollector statusHelper;
+	private final IntMap<HgStatusCollector.Record> changes;
+	private int windowFirst = BAD_REVISION, windowLast = BAD_REVISION;
+
+	public ChangesetFileChanges(HgStatusCollector statusCollector) {
+		statusHelper = statusCollector;
+		changes = new IntMap<HgStatusCollector.Record>(BATCH_SIZE);
+	}
+
+	public HgStatusCollector getStatusCollector() {
+		return statusHelper;
+	}
+
+	/**
+	 * @see HgStatusCollector#setRevisionWindow(int, int)
+	 */
+	public void setRevisionWindow(int first, int last) {
+		windowFirst = first;
+		windowLast = last;
+		statusHelper.setRevisionWindow(first, last);
+	}
+
+	/**
+	 * @return status of the changeset against its first parent
+	 */
+	public HgStatusCollector.Record get(int changesetRevision) throws HgInvalidControlFileException {
+		HgStatusCollector.Record r = changes.get(changesetRevision);
+		if (r != null) {
+			return r;
+		}
+		int start = changesetRevision, end = changesetRevision;
+		final boolean forward = windowFirst <= windowLast;
+		if (windowFirst != BAD_REVISION && Math.min(windowFirst, windowLast) <= changesetRevision && changesetRevision <= Math.max(windowFirst, windowLast)) {
+			// changesets that come next in the window
+			if (forward) {
+				end = Math.min(windowLast, changesetRevision + BATCH_SIZE - 1);
+			} else {
+				start = Math.max(windowLast, changesetRevision - BATCH_SIZE + 1);
+			}
+			// those already known are not worth another status walk, though
+			while (start < changesetRevision && changes.containsKey(start)) {
+				start++;
+			}
+			while (end > changesetRevision && changes.containsKey(end)) {
+				end--;
+			}
+		}
+		HgStatusCollector.Record[] batch = statusHelper.changes(start, end);
+		// make room, drop changesets left behind
+		while (changes.size() > 0 && changes.size() + batch.length > MAX_KEPT) {
+			changes.remove(forward ? changes.firstKey() : changes.lastKey());
+		}
+		for (int i = 0; i < batch.length; i++) {
+			if (!changes.containsKey(start + i)) {
+				changes.put(start + i, batch[i]);
+			}
+		}
+		return batch[changesetRevision - start];
+	}
+}
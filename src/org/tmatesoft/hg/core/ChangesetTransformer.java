@@ -93,6 +93,19 @@ import org.tmatesoft.hg.util.ProgressSupport;
 		}
 	}
 	
+	// true if handler failed or cancelled, no reason to feed more changesets then
+	public boolean isStopped() {
+		return failure != null || cancellation != null;
+	}
+	
+	/**
+	 * Changesets to come, in the order they are going to be reported
+	 * @see HgStatusCollector#setRevisionWindow(int, int)
+	 */
+	public void setRevisionWindow(int first, int last) {
+		t.setRevisionWindow(first, last);
+	}
+
 	public void limitBranches(Set<String> branches) {
 		this.branches = branches;
 	}
@@ -100,14 +113,21 @@ import org.tmatesoft.hg.util.ProgressSupport;
 	// part relevant to RawChangeset->HgChangeset transformation
 	static class Transformation {
 		private final HgChangeset changeset;
+		private final ChangesetFileChanges fileChanges;
 
 		public Transformation(HgStatusCollector statusCollector, HgChangelog.ParentWalker pw) {
 			// files listed in a changeset don't need their names to be rewritten (they are normalized already)
 			PathPool pp = new PathPool(new PathRewrite.Empty());
 			statusCollector.setPathPool(pp);
-			changeset = new HgChangeset(statusCollector, pp);
+			// changesets (and their clones) share files changed, calculated for few of them at once
+			fileChanges = new ChangesetFileChanges(statusCollector);
+			changeset = new HgChangeset(fileChanges, pp);
 			changeset.setParentHelper(pw);
 		}
+
+		void setRevisionWindow(int first, int last) {
+			fileChanges.setRevisionWindow(first, last);
+		}
 		
 		HgChangeset handle(int revisionNumber, Nodeid nodeid, RawChangeset cset) {
 			changeset.init(revisionNumber, nodeid, cset);
@@ -38,6 +38,7 @@ import org.tmatesoft.hg.util.Path;
  */
 public class HgChangeset implements Cloneable {
 	private final HgStatusCollector statusHelper;
+	private final ChangesetFileChanges fileChanges;
 	private final Path.Source pathHelper;
 
 	private HgChangelog.ParentWalker parentHelper;
@@ -54,8 +55,9 @@ public class HgChangeset implements Cloneable {
 
 	// XXX consider CommandContext with StatusCollector, PathPool etc. Commands optionally get CC through a cons or create new
 	// and pass it around
-	/*package-local*/HgChangeset(HgStatusCollector statusCollector, Path.Source pathFactory) {
-		statusHelper = statusCollector;
+	/*package-local*/HgChangeset(ChangesetFileChanges changes, Path.Source pathFactory) {
+		fileChanges = changes;
+		statusHelper = changes.getStatusCollector();
 		pathHelper = pathFactory;
 	}
 
@@ -190,8 +192,7 @@ public class HgChangeset implements Cloneable {
 		ArrayList<Path> deleted = new ArrayList<Path>();
 		ArrayList<HgFileRevision> modified = new ArrayList<HgFileRevision>();
 		ArrayList<HgFileRevision> added = new ArrayList<HgFileRevision>();
-		HgStatusCollector.Record r = new HgStatusCollector.Record();
-		statusHelper.change(revNumber, r);
+		HgStatusCollector.Record r = fileChanges.get(revNumber);
 		final HgRepository repo = statusHelper.getRepo();
 		for (Path s : r.getModified()) {
 			Nodeid nid = r.nodeidAfterChange(s);
@@ -0,0 +1,417 @@
+/*
+ * Copyright (c) 2012 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.core;
+
+import static org.tmatesoft.hg.repo.HgRepository.BAD_REVISION;
+import static org.tmatesoft.hg.repo.HgRepository.TIP;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.repo.HgChangelog;
+import org.tmatesoft.hg.repo.HgDataFile;
+import org.tmatesoft.hg.repo.HgInternals;
+import org.tmatesoft.hg.repo.HgManifest;
+import org.tmatesoft.hg.repo.HgRepository;
+import org.tmatesoft.hg.util.ByteChannel;
+import org.tmatesoft.hg.util.CancelSupport;
+import org.tmatesoft.hg.util.CancelledException;
+import org.tmatesoft.hg.util.Path;
+import org.tmatesoft.hg.util.ProgressSupport;
+
+/**
+ * Brings working directory to the state of a changeset, like <code>hg update --clean</code> does.
+ * Meant for freshly cloned repositories, local changes, if any, get overwritten.
+ *
+ * Manifest of the changeset is read by the calling thread, files are written by few threads at once
+ * (see {@link Internals#CFG_PROPERTY_CHECKOUT_WRITER_THREADS}), through large buffers reused from file to file.
+ * Files tracked in the previous working copy parent and missing in the new one are deleted. Once all files are written,
+ * new dirstate is recorded, so that status of the working copy is known without looking into file content.
+ *
+ * Symbolic links are written as regular files with link target as their content.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class HgCheckoutCommand extends HgAbstractCommand<HgCheckoutCommand> {
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+	// st_mode values Mercurial records for regular files
+	private static final int MODE_REGULAR = 0100644, MODE_EXEC = 0100755;
+
+	private final HgRepository repo;
+	private int revisionIndex = TIP;
+	private Nodeid revision;
+
+	public HgCheckoutCommand(HgRepository hgRepo) {
+		repo = hgRepo;
+	}
+
+	/**
+	 * Select changeset to check out with its local index. Default is {@link HgRepository#TIP}.
+	 *
+	 * @param changesetIndex changeset revision index, non-negative, or {@link HgRepository#TIP}
+	 * @return <code>this</code> for convenience
+	 */
+	public HgCheckoutCommand changeset(int changesetIndex) {
+		if (changesetIndex < 0 && changesetIndex != TIP) {
+			throw new IllegalArgumentException(String.valueOf(changesetIndex));
+		}
+		revisionIndex = changesetIndex;
+		revision = null;
+		return this;
+	}
+
+	/**
+	 * Select changeset to check out.
+	 *
+	 * @param nodeid changeset revision, <code>null</code> means {@link HgRepository#TIP}
+	 * @return <code>this</code> for convenience
+	 */
+	public HgCheckoutCommand changeset(Nodeid nodeid) {
+		revision = nodeid;
+		revisionIndex = nodeid == null ? TIP : BAD_REVISION;
+		return this;
+	}
+
+	/**
+	 * @throws HgInvalidRevisionException if selected changeset is not known to the repository
+	 * @throws HgInvalidControlFileException if access to revlog index/data entry failed
+	 * @throws HgDataStreamException if content of a file revision can't be read
+	 * @throws HgInvalidFileException if failed to write working copy file or dirstate
+	 * @throws CancelledException if execution of the command was cancelled
+	 */
+	public void execute() throws HgInvalidRevisionException, HgInvalidControlFileException, HgDataStreamException, HgInvalidFileException, CancelledException {
+		if (repo.isInvalid()) {
+			throw new IllegalArgumentException(repo.toString());
+		}
+		final CancelSupport cancel = getCancelSupport(null, true);
+		final ProgressSupport progress = getProgressSupport(null);
+		final HgChangelog clog = repo.getChangelog();
+		int csetIndex = revisionIndex;
+		if (revision != null) {
+			csetIndex = clog.getRevisionIndex(revision);
+		} else if (csetIndex == TIP) {
+			csetIndex = clog.getLastRevision();
+		}
+		// tip of an empty repository is -1, null revision
+		final boolean empty = csetIndex < 0;
+		final Nodeid csetRevision = empty ? Nodeid.NULL : clog.getRevision(csetIndex);
+		final String branch = empty ? HgRepository.DEFAULT_BRANCH_NAME : clog.range(csetIndex, csetIndex).get(0).branch();
+		final List<FileWrite> files = new ArrayList<FileWrite>();
+		final HashSet<Path> targetPaths = new HashSet<Path>();
+		if (!empty) {
+			repo.getManifest().walk(csetIndex, csetIndex, new ManifestCollector() {
+				@Override
+				protected void file(Nodeid nid, Path fname, HgManifest.Flags flags) {
+					files.add(new FileWrite(fname, nid, flags));
+					targetPaths.add(fname);
+				}
+			});
+		}
+		cancel.checkCancelled();
+		final File workingDir = repo.getWorkingDir();
+		final Nodeid previous = repo.getWorkingCopyParents().first();
+		if (!previous.isNull() && !previous.equals(csetRevision) && clog.isKnown(previous)) {
+			final ArrayList<Path> obsolete = new ArrayList<Path>();
+			repo.getManifest().walk(clog.getRevisionIndex(previous), clog.getRevisionIndex(previous), new ManifestCollector() {
+				@Override
+				protected void file(Nodeid nid, Path fname, HgManifest.Flags flags) {
+					if (!targetPaths.contains(fname)) {
+						obsolete.add(fname);
+					}
+				}
+			});
+			for (Path p : obsolete) {
+				deleteWithEmptyParents(workingDir, new File(workingDir, p.toString()));
+			}
+		}
+		// each directory is checked once, not for every file in it
+		HashSet<File> knownDirs = new HashSet<File>();
+		knownDirs.add(workingDir);
+		for (FileWrite fw : files) {
+			fw.file = new File(workingDir, fw.path.toString());
+			File dir = fw.file.getParentFile();
+			if (knownDirs.add(dir) && !dir.isDirectory() && !dir.mkdirs()) {
+				throw new HgInvalidFileException(String.format("Failed to create directory for %s", fw.path), null, dir);
+			}
+		}
+		progress.start(files.size());
+		writeFiles(files, cancel, progress);
+		writeDirstate(files, csetRevision, branch);
+		progress.done();
+	}
+
+	private void writeFiles(List<FileWrite> files, CancelSupport cancel, ProgressSupport progress) throws HgInvalidControlFileException, HgDataStreamException, HgInvalidFileException, CancelledException {
+		final int threads = files.size() < 2 ? 1 : Math.min(files.size(), getThreadCount());
+		final BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<ByteBuffer>(threads);
+		while (buffers.remainingCapacity() > 0) {
+			buffers.add(ByteBuffer.allocate(WRITE_BUFFER_SIZE));
+		}
+		for (FileWrite fw : files) {
+			// HgDataFile and its revlog stream are not shared between threads, each file has its own
+			fw.dataFile = repo.getFileNode(fw.path);
+			fw.buffers = buffers;
+		}
+		if (threads == 1) {
+			for (FileWrite fw : files) {
+				cancel.checkCancelled();
+				fw.write();
+				progress.worked(1);
+			}
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "hg4j-checkout-writer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			ArrayList<Future<Object>> results = new ArrayList<Future<Object>>(files.size());
+			for (FileWrite fw : files) {
+				results.add(executor.submit(fw));
+			}
+			for (Future<Object> f : results) {
+				cancel.checkCancelled();
+				f.get();
+				progress.worked(1);
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new HgInvalidFileException("Checkout interrupted", new InterruptedIOException(), null);
+		} catch (ExecutionException ex) {
+			final Throwable th = ex.getCause();
+			if (th instanceof HgInvalidFileException) {
+				throw (HgInvalidFileException) th;
+			}
+			if (th instanceof HgDataStreamException) {
+				throw (HgDataStreamException) th;
+			}
+			if (th instanceof CancelledException) {
+				throw (CancelledException) th;
+			}
+			if (th instanceof RuntimeException) {
+				throw (RuntimeException) th;
+			}
+			throw new HgBadStateException(th);
+		} finally {
+			// files not written yet are of no use if there was a failure
+			executor.shutdownNow();
+		}
+	}
+
+	/*
+	 * Format is the one HgDirstate reads: parents, then state, mode, size, mtime, name length and name of each file.
+	 * Files modified within the same second the dirstate is written may get changed once again unnoticed,
+	 * their timestamp is not recorded to force content check.
+	 */
+	private void writeDirstate(List<FileWrite> files, Nodeid csetRevision, String branch) throws HgInvalidFileException {
+		final File hgDir = HgInternals.getRepositoryDir(repo);
+		final File dirstateFile = new File(hgDir, "dirstate");
+		try {
+			final int now = (int) (System.currentTimeMillis() / 1000);
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dirstateFile)));
+			try {
+				dos.write(csetRevision.toByteArray());
+				dos.write(Nodeid.NULL.toByteArray());
+				for (FileWrite fw : files) {
+					final byte[] name = fw.path.toString().getBytes();
+					final int mtime = (int) (fw.file.lastModified() / 1000);
+					dos.writeByte('n');
+					dos.writeInt(fw.flags == HgManifest.Flags.Exec ? MODE_EXEC : MODE_REGULAR);
+					dos.writeInt((int) fw.file.length());
+					dos.writeInt(mtime >= now ? -1 : mtime);
+					dos.writeInt(name.length);
+					dos.write(name);
+				}
+			} finally {
+				dos.close();
+			}
+		} catch (IOException ex) {
+			throw new HgInvalidFileException("Failed to write dirstate", ex, dirstateFile);
+		}
+		final File branchFile = new File(hgDir, "branch");
+		try {
+			FileOutputStream fos = new FileOutputStream(branchFile);
+			try {
+				fos.write((branch + '\n').getBytes());
+			} finally {
+				fos.close();
+			}
+		} catch (IOException ex) {
+			throw new HgInvalidFileException("Failed to write working copy branch", ex, branchFile);
+		}
+	}
+
+	private static void deleteWithEmptyParents(File workingDir, File f) {
+		if (!f.delete()) {
+			return;
+		}
+		// non-empty directory doesn't get deleted
+		for (File dir = f.getParentFile(); dir != null && !dir.equals(workingDir) && dir.delete(); dir = dir.getParentFile()) {
+			;
+		}
+	}
+
+	private int getThreadCount() {
+		final SessionContext ctx = HgInternals.getContext(repo);
+		Object threads = ctx.getProperty(Internals.CFG_PROPERTY_CHECKOUT_WRITER_THREADS, null);
+		if (threads != null) {
+			try {
+				int n = threads instanceof Number ? ((Number) threads).intValue() : Integer.parseInt(threads.toString());
+				// zero or negative value makes no sense, stick to single thread then
+				return Math.max(1, n);
+			} catch (NumberFormatException ex) {
+				ctx.getLog().warn(getClass(), ex, null);
+				// FALL THROUGH to default
+			}
+		}
+		return Math.min(4, Runtime.getRuntime().availableProcessors());
+	}
+
+	private abstract static class ManifestCollector implements HgManifest.Inspector2 {
+
+		public boolean begin(int mainfestRevision, Nodeid nid, int changelogRevision) {
+			return true;
+		}
+
+		@SuppressWarnings("deprecation")
+		public boolean next(Nodeid nid, String fname, String flags) {
+			throw new HgBadStateException(HgManifest.Inspector2.class.getName());
+		}
+
+		public boolean next(Nodeid nid, Path fname, HgManifest.Flags flags) {
+			file(nid, fname, flags);
+			return true;
+		}
+
+		protected abstract void file(Nodeid nid, Path fname, HgManifest.Flags flags);
+
+		public boolean end(int manifestRevision) {
+			return true;
+		}
+	}
+
+	private static class FileWrite implements Callable<Object> {
+		final Path path;
+		final Nodeid revision;
+		final HgManifest.Flags flags;
+		File file;
+		HgDataFile dataFile;
+		BlockingQueue<ByteBuffer> buffers;
+
+		FileWrite(Path p, Nodeid nid, HgManifest.Flags f) {
+			path = p;
+			revision = nid;
+			flags = f;
+		}
+
+		public Object call() throws Exception {
+			write();
+			return null;
+		}
+
+		void write() throws HgInvalidControlFileException, HgDataStreamException, HgInvalidFileException, CancelledException {
+			final int fileRevisionIndex = dataFile.getRevisionIndex(revision);
+			final ByteBuffer buffer;
+			try {
+				buffer = buffers.take();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new HgInvalidFileException("Checkout interrupted", new InterruptedIOException(), file);
+			}
+			try {
+				FileOutputStream fos = new FileOutputStream(file);
+				try {
+					FileSink sink = new FileSink(fos.getChannel(), buffer);
+					dataFile.contentWithFilters(fileRevisionIndex, sink);
+					sink.flush();
+				} finally {
+					fos.close();
+				}
+			} catch (IOException ex) {
+				throw new HgInvalidFileException(String.format("Failed to write %s", path), ex, file);
+			} finally {
+				buffer.clear();
+				buffers.add(buffer);
+			}
+			final boolean exec = flags == HgManifest.Flags.Exec;
+			if (exec != file.canExecute()) {
+				file.setExecutable(exec, false);
+			}
+		}
+	}
+
+	/*
+	 * Collects bytes piped in small portions into a large buffer, and writes the buffer into the file once it's full.
+	 */
+	private static class FileSink implements ByteChannel {
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+
+		FileSink(FileChannel fc, ByteBuffer buf) {
+			channel = fc;
+			buffer = buf;
+		}
+
+		public int write(ByteBuffer src) throws IOException {
+			final int rv = src.remaining();
+			while (src.hasRemaining()) {
+				if (!buffer.hasRemaining()) {
+					flush();
+				}
+				if (src.remaining() <= buffer.remaining()) {
+					buffer.put(src);
+				} else {
+					ByteBuffer part = src.duplicate();
+					part.limit(part.position() + buffer.remaining());
+					buffer.put(part);
+					src.position(part.position());
+				}
+			}
+			return rv;
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+}
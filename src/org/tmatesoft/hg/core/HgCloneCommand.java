@@ -17,28 +17,44 @@
 package org.tmatesoft.hg.core;
 
 import static org.tmatesoft.hg.core.Nodeid.NULL;
+import static org.tmatesoft.hg.repo.HgRepository.BAD_REVISION;
+import static org.tmatesoft.hg.repo.HgRepository.TIP;
 import static org.tmatesoft.hg.internal.RequiresFile.*;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
-import java.util.TreeMap;
-import java.util.zip.DeflaterOutputStream;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.tmatesoft.hg.internal.BasicSessionContext;
-import org.tmatesoft.hg.internal.ByteArrayDataAccess;
-import org.tmatesoft.hg.internal.DataAccess;
-import org.tmatesoft.hg.internal.DigestHelper;
+import org.tmatesoft.hg.internal.IntVector;
 import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.RequiresFile;
+import org.tmatesoft.hg.internal.RevlogWriter;
 import org.tmatesoft.hg.repo.HgBundle;
 import org.tmatesoft.hg.repo.HgBundle.GroupElement;
 import org.tmatesoft.hg.repo.HgDataFile;
+import org.tmatesoft.hg.repo.HgInternals;
 import org.tmatesoft.hg.repo.HgLookup;
 import org.tmatesoft.hg.repo.HgRemoteRepository;
 import org.tmatesoft.hg.repo.HgRepository;
@@ -56,7 +72,9 @@ public class HgCloneCommand {
 
 	private File destination;
 	private HgRemoteRepository srcRepo;
-	private static ArrayList<String> files = new ArrayList<String>();
+	private HgRepository localSrcRepo;
+	private int revisionLimit = TIP;
+	private boolean stream = false;
 
 	public HgCloneCommand() {
 
@@ -77,306 +95,656 @@ public class HgCloneCommand {
 
 	public HgCloneCommand source(HgRemoteRepository hgRemote) {
 		srcRepo = hgRemote;
+		localSrcRepo = null;
+		return this;
+	}
+
+	/**
+	 * Clone repository from the local file system. Store files of the source repository are copied as they are,
+	 * nothing is sent through the changegroup path.
+	 *
+	 * @param hgRepo repository to clone
+	 * @return <code>this</code> for convenience
+	 */
+	public HgCloneCommand source(HgRepository hgRepo) {
+		localSrcRepo = hgRepo;
+		srcRepo = null;
+		return this;
+	}
+
+	/**
+	 * Local clone only. Leave out changesets past the given one, as if the source repository was cloned when the changeset was its tip.
+	 * Each revlog is copied up to the last revision of the changesets kept, which requires revisions of later changesets to follow
+	 * those of earlier ones in every revlog (true when revisions got appended as changesets were committed or pulled).
+	 * Otherwise, {@link #execute()} fails.
+	 *
+	 * @param changesetIndex local index of the last changeset to copy, or {@link HgRepository#TIP} (default) to copy all
+	 * @return <code>this</code> for convenience
+	 */
+	public HgCloneCommand revisionLimit(int changesetIndex) {
+		if (changesetIndex < 0 && changesetIndex != TIP) {
+			throw new IllegalArgumentException(String.valueOf(changesetIndex));
+		}
+		revisionLimit = changesetIndex;
+		return this;
+	}
+
+	/**
+	 * Copy store files of the source repository as they are, without check and re-compression of each revision, 
+	 * same as <code>hg clone --uncompressed</code> does. Faster with fast network, though more data is transferred. 
+	 * When server doesn't allow this, falls back to regular clone.
+	 * 
+	 * @param useStream <code>true</code> to ask server for its store files
+	 * @return <code>this</code> for convenience
+	 */
+	public HgCloneCommand stream(boolean useStream) {
+		stream = useStream;
 		return this;
 	}
 
 	public HgRepository execute() throws HgBadArgumentException,
 			HgRemoteConnectionException, HgInvalidFileException,
 			CancelledException {
-		files = new ArrayList<String>();
 		if (destination == null) {
 			throw new IllegalArgumentException("Destination not set", null);
 		}
-		if (srcRepo == null || srcRepo.isInvalid()) {
+		if (localSrcRepo != null ? localSrcRepo.isInvalid() : (srcRepo == null || srcRepo.isInvalid())) {
 			throw new HgBadArgumentException("Bad source repository", null);
 		}
+		if (localSrcRepo == null && revisionLimit != TIP) {
+			throw new IllegalArgumentException("Revision limit is supported for local clone only", null);
+		}
 		if (destination.exists()) {
 			if (!destination.isDirectory()) {
 				throw new HgBadArgumentException(String.format(
 						"%s is not a directory", destination), null);
 			} else if (destination.list().length > 0) {
 				throw new HgBadArgumentException(String.format(
-						"% shall be empty", destination), null);
+						"%s shall be empty", destination), null);
 			}
 		} else {
 			destination.mkdirs();
 		}
-		// if cloning remote repo, which can stream and no revision is specified
-		// -
-		// can use 'stream_out' wireproto
-		//
+		if (localSrcRepo != null) {
+			try {
+				new LocalCopy(HgInternals.getRepositoryDir(localSrcRepo), new File(destination, ".hg")).copy(revisionLimit);
+			} catch (IOException ex) {
+				throw new HgInvalidFileException(getClass().getName(), ex);
+			}
+			return new HgLookup().detect(destination);
+		}
+		if (stream) {
+			// no revision is specified, can use 'stream_out' wireproto
+			StreamMate mate = new StreamMate(destination);
+			try {
+				mate.initEmptyRepository();
+				if (srcRepo.getStoreFiles(mate)) {
+					mate.complete();
+					return new HgLookup().detect(destination);
+				}
+				// server refused, nothing is written, go on with regular clone
+			} catch (IOException ex) {
+				throw new HgInvalidFileException(getClass().getName(), ex);
+			}
+		}
 		// pull all changes from the very beginning
 		// XXX consult getContext() if by any chance has a bundle ready, if not,
 		// then read and register
-		HgBundle completeChanges = srcRepo.getChanges(Collections
+		// changes are written down as they arrive, no need to keep them in a bundle file
+		HgBundle completeChanges = srcRepo.getChangesStream(Collections
 				.singletonList(NULL));
-		WriteDownMate mate = new WriteDownMate(destination);
+		final BasicSessionContext ctx = new BasicSessionContext(null, null);
+		final Internals implHelper = new Internals(ctx);
+		implHelper.setStorageConfig(1, STORE | FNCACHE | DOTENCODE);
+		final File hgDir = new File(destination, ".hg");
+		WriteDownMate mate = new WriteDownMate(ctx, hgDir, implHelper);
 		try {
 			// instantiate new repo in the destdir
-			mate.initEmptyRepository();
+			implHelper.initEmptyRepository(hgDir);
 			// pull changes
 			completeChanges.inspectAll(mate);
 			mate.complete();
 		} catch (IOException ex) {
 			throw new HgInvalidFileException(getClass().getName(), ex);
 		} finally {
+			mate.shutdown();
 			completeChanges.unlink();
 		}
 		return new HgLookup().detect(destination);
 	}
 
-	public ArrayList<String> GetFiles() {
-		return files;
-	}
-
 	// 1. process changelog, memorize nodeids to index
 	// 2. process manifest, using map from step 3, collect manifest nodeids
 	// 3. process every file, using map from 3, and consult set from step 4 to
 	// ensure repo is correct
-	private static class WriteDownMate implements HgBundle.Inspector {
+	// Changelog and manifest are written as they come, while groups of files, independent once changelog is known,
+	// are written by a pool of threads, if there's more than one processor.
+	// Revlogs may exist already, then new revisions are appended (that's how HgPullCommand uses it).
+	/*package-local*/ static class WriteDownMate implements HgBundle.Inspector {
 		private final File hgDir;
-		private final PathRewrite storagePathHelper;
-		private FileOutputStream indexFile;
-		private String filename; // human-readable name of the file being
-									// written, for log/exception purposes
+		private final PathRewrite storagePathHelper, repoPathHelper;
+		private final SessionContext sessionContext;
 
-		private final TreeMap<Nodeid, Integer> changelogIndexes = new TreeMap<Nodeid, Integer>();
+		private RevlogWriter changelog; // known once changelog is written
 		private boolean collectChangelogIndexes = false;
 
-		private int base = -1;
-		private long offset = 0;
-		private DataAccess prevRevContent;
-		private final DigestHelper dh = new DigestHelper();
-		private final ArrayList<Nodeid> revisionSequence = new ArrayList<Nodeid>(); // last
-																					// visited
-																					// nodes
-																					// first
+		private RevlogWriter revlog; // changelog or manifest being written
+		private FileGroup fileGroup; // elements of the file group being read
 
 		private final LinkedList<String> fncacheFiles = new LinkedList<String>();
-		private Internals implHelper;
+		private final Internals implHelper;
+		// writers of all revlogs touched, to get them back to original state on failure
+		private final List<RevlogWriter> writers = Collections.synchronizedList(new ArrayList<RevlogWriter>());
 
-		public WriteDownMate(File destDir) {
-			hgDir = new File(destDir, ".hg");
-			implHelper = new Internals(new BasicSessionContext(null, null));
-			implHelper.setStorageConfig(1, STORE | FNCACHE | DOTENCODE);
+		// buffers to write revisions, one for each thread that may write at the same time
+		private final BlockingQueue<RevlogWriter.Buffers> buffers;
+		private final ThreadPoolExecutor fileWriters; // null if file groups are written by this thread
+		private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		/**
+		 * @param ctx session context
+		 * @param repoDir .hg directory of the repository to write to
+		 * @param repoImpl storage configuration of the repository
+		 */
+		public WriteDownMate(SessionContext ctx, File repoDir, Internals repoImpl) {
+			hgDir = repoDir;
+			sessionContext = ctx;
+			implHelper = repoImpl;
 			storagePathHelper = implHelper.buildDataFilesHelper();
+			repoPathHelper = implHelper.buildRepositoryFilesHelper();
+			final int threads = getThreadCount();
+			if (threads > 1) {
+				// groups read ahead wait in the queue, once it's full, this thread writes next group itself
+				fileWriters = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(threads * 2), new ThreadFactory() {
 
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "hg4j-clone-writer");
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+				buffers = new ArrayBlockingQueue<RevlogWriter.Buffers>(threads + 1);
+			} else {
+				fileWriters = null;
+				buffers = new ArrayBlockingQueue<RevlogWriter.Buffers>(1);
+			}
+			while (buffers.remainingCapacity() > 0) {
+				buffers.add(new RevlogWriter.Buffers());
+			}
 		}
 
-		public void initEmptyRepository() throws IOException {
-			implHelper.initEmptyRepository(hgDir);
+		private int getThreadCount() {
+			Object threads = sessionContext.getProperty(Internals.CFG_PROPERTY_CLONE_WRITER_THREADS, null);
+			if (threads != null) {
+				try {
+					int n = threads instanceof Number ? ((Number) threads).intValue() : Integer.parseInt(threads.toString());
+					// zero or negative value makes no sense, stick to single thread then
+					return Math.max(1, n);
+				} catch (NumberFormatException ex) {
+					sessionContext.getLog().warn(getClass(), ex, null);
+					// FALL THROUGH to default
+				}
+			}
+			return Math.min(4, Runtime.getRuntime().availableProcessors());
 		}
 
+		/**
+		 * Waits for all files to get written
+		 */
 		public void complete() throws IOException {
-			FileOutputStream fncacheFile = new FileOutputStream(new File(hgDir,
-					"store/fncache"));
-			for (String s : fncacheFiles) {
-				fncacheFile.write(s.getBytes());
-				fncacheFile.write(0x0A); // http://mercurial.selenic.com/wiki/fncacheRepoFormat
+			if (fileWriters != null) {
+				fileWriters.shutdown();
+				awaitFileWriters();
+			}
+			checkFailure();
+			if (implHelper.fncacheInUse()) {
+				writeFncache(hgDir, fncacheFiles);
 			}
-			fncacheFile.close();
 		}
 
-		public void changelogStart() {
+		private void awaitFileWriters() throws IOException {
 			try {
-				base = -1;
-				offset = 0;
-				revisionSequence.clear();
-				indexFile = new FileOutputStream(new File(hgDir,
-						filename = "store/00changelog.i"));
-				collectChangelogIndexes = true;
-			} catch (IOException ex) {
-				throw new HgBadStateException(ex);
+				while (!fileWriters.awaitTermination(1, TimeUnit.SECONDS)) {
+					// keep waiting
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
 			}
 		}
 
-		public void changelogEnd() {
-			try {
-				if (prevRevContent != null) {
-					prevRevContent.done();
-					prevRevContent = null;
+		/**
+		 * Stops writing files, if not yet complete (e.g. when failed to read the bundle)
+		 */
+		public void shutdown() {
+			if (fileWriters != null) {
+				fileWriters.shutdownNow();
+			}
+			for (RevlogWriter.Buffers wb : buffers) {
+				wb.dispose();
+			}
+		}
+
+		/**
+		 * Brings all revlogs touched back to their original state, once writing failed. Shall follow {@link #shutdown()}.
+		 */
+		public void rollback() throws IOException {
+			if (fileWriters != null) {
+				awaitFileWriters();
+			}
+			synchronized (writers) {
+				for (RevlogWriter w : writers) {
+					w.rollback();
 				}
-				collectChangelogIndexes = false;
-				indexFile.close();
-				indexFile = null;
-				filename = null;
-			} catch (IOException ex) {
-				throw new HgBadStateException(ex);
 			}
 		}
 
+		private RevlogWriter newWriter(String storeFilename) {
+			RevlogWriter w = new RevlogWriter(sessionContext, hgDir, storeFilename);
+			writers.add(w);
+			return w;
+		}
+
+		public void changelogStart() {
+			revlog = newWriter(repoPathHelper.rewrite("00changelog.i").toString());
+			collectChangelogIndexes = true;
+		}
+
+		public void changelogEnd() {
+			collectChangelogIndexes = false;
+			changelog = revlog;
+			revlog.close();
+			revlog = null;
+		}
+
 		public void manifestStart() {
-			try {
-				base = -1;
-				offset = 0;
-				revisionSequence.clear();
-				indexFile = new FileOutputStream(new File(hgDir,
-						filename = "store/00manifest.i"));
-			} catch (IOException ex) {
-				throw new HgBadStateException(ex);
-			}
+			revlog = newWriter(repoPathHelper.rewrite("00manifest.i").toString());
 		}
 
 		public void manifestEnd() {
-			try {
-				if (prevRevContent != null) {
-					prevRevContent.done();
-					prevRevContent = null;
-				}
-				indexFile.close();
-				indexFile = null;
-				filename = null;
-			} catch (IOException ex) {
-				throw new HgBadStateException(ex);
-			}
+			revlog.close();
+			revlog = null;
 		}
 
 		public void fileStart(String name) {
-			try {
-				base = -1;
-				offset = 0;
-				revisionSequence.clear();
+			final String storeName = storagePathHelper.rewrite(name).toString();
+			if (!new File(hgDir, storeName).exists()) {
 				fncacheFiles.add("data/" + name + ".i"); // FIXME this is pure
 															// guess,
 				// need to investigate more how filenames are kept in fncache
-				files.add(name);
-				File file = new File(hgDir, filename = storagePathHelper
-						.rewrite(name).toString());
-				file.getParentFile().mkdirs();
-				indexFile = new FileOutputStream(file);
-			} catch (IOException ex) {
-				throw new HgBadStateException(ex);
 			}
+			fileGroup = new FileGroup(storeName);
 		}
 
 		public void fileEnd(String name) {
+			final FileGroup group = fileGroup;
+			fileGroup = null;
+			if (fileWriters == null) {
+				group.run();
+			} else {
+				fileWriters.execute(group);
+			}
+			checkFailure();
+		}
+
+		public boolean element(GroupElement ge) {
 			try {
-				if (prevRevContent != null) {
-					prevRevContent.done();
-					prevRevContent = null;
+				final Nodeid node = ge.node();
+				final int link;
+				if (collectChangelogIndexes) {
+					link = revlog.revisionCount(); // changeset would get added as the next one
+				} else {
+					link = linkRevision(ge.cset(), fileGroup == null ? revlog.getFilename() : fileGroup.filename);
+				}
+				if (fileGroup != null) {
+					fileGroup.add(ge, link);
+				} else {
+					RevlogWriter.Buffers wb = buffers.take();
+					try {
+						revlog.add(ge.firstParent(), ge.secondParent(), node, link, ge.rawDataByteArray(), wb);
+					} finally {
+						buffers.put(wb);
+					}
 				}
-				indexFile.close();
-				indexFile = null;
-				filename = null;
 			} catch (IOException ex) {
 				throw new HgBadStateException(ex);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new HgBadStateException(ex);
 			}
+			return true;
 		}
 
-		private int knownRevision(Nodeid p) {
-			if (p.isNull()) {
-				return -1;
-			} else {
-				for (int i = revisionSequence.size() - 1; i >= 0; i--) {
-					if (revisionSequence.get(i).equals(p)) {
-						return i;
+		private int linkRevision(Nodeid cset, String filename) {
+			int csRev = changelog == null ? BAD_REVISION : changelog.revisionIndex(cset);
+			if (csRev == BAD_REVISION) {
+				throw new HgBadStateException(String.format(
+						"Changelog doesn't contain revision %s of %s",
+						cset.shortNotation(), filename));
+			}
+			return csRev;
+		}
+
+		// report failure of any file group as soon as we know about it
+		private void checkFailure() {
+			Throwable th = failure.get();
+			if (th instanceof RuntimeException) {
+				throw (RuntimeException) th;
+			}
+			if (th instanceof Error) {
+				throw (Error) th;
+			}
+		}
+
+		// elements of a file group, read ahead of writing, and their link revisions
+		private class FileGroup implements Runnable {
+			final String filename;
+			private final ArrayList<byte[]> headers = new ArrayList<byte[]>();
+			private final ArrayList<byte[]> deltas = new ArrayList<byte[]>();
+			private final IntVector links = new IntVector();
+
+			FileGroup(String storeFilename) {
+				filename = storeFilename;
+			}
+
+			void add(GroupElement ge, int link) throws IOException {
+				byte[] header = new byte[60];
+				System.arraycopy(ge.node().toByteArray(), 0, header, 0, 20);
+				System.arraycopy(ge.firstParent().toByteArray(), 0, header, 20, 20);
+				System.arraycopy(ge.secondParent().toByteArray(), 0, header, 40, 20);
+				headers.add(header);
+				deltas.add(ge.rawDataByteArray());
+				links.add(link);
+			}
+
+			public void run() {
+				if (failure.get() != null) {
+					return; // clone failed anyway, don't waste time
+				}
+				RevlogWriter w = null;
+				RevlogWriter.Buffers wb = null;
+				try {
+					wb = buffers.take();
+					w = newWriter(filename);
+					for (int i = 0; i < headers.size(); i++) {
+						final byte[] h = headers.get(i);
+						w.add(Nodeid.fromBinary(h, 20), Nodeid.fromBinary(h, 40), Nodeid.fromBinary(h, 0), links.get(i), deltas.get(i), wb);
+						// not needed any more
+						headers.set(i, null);
+						deltas.set(i, null);
+					}
+				} catch (Throwable th) {
+					if (th instanceof InterruptedException) {
+						Thread.currentThread().interrupt();
+						th = new HgBadStateException(th);
+					} else if (th instanceof IOException) {
+						th = new HgBadStateException(th);
+					}
+					failure.compareAndSet(null, th);
+				} finally {
+					if (w != null) {
+						try {
+							w.close();
+						} catch (RuntimeException ex) {
+							failure.compareAndSet(null, ex);
+						}
+					}
+					if (wb != null) {
+						buffers.add(wb);
 					}
 				}
 			}
-			throw new HgBadStateException(String.format(
-					"Can't find index of %s for file %s", p.shortNotation(),
-					filename));
 		}
+	}
 
-		public boolean element(GroupElement ge) {
-			try {
-				assert indexFile != null;
-				boolean writeComplete = false;
-				Nodeid p1 = ge.firstParent();
-				Nodeid p2 = ge.secondParent();
-				if (p1.isNull() && p2.isNull() /*
-												 * or forced flag, does
-												 * REVIDX_PUNCHED_FLAG indicate
-												 * that?
-												 */) {
-					prevRevContent = new ByteArrayDataAccess(new byte[0]);
-					writeComplete = true;
+	private static void writeFncache(File hgDir, List<String> fncacheFiles) throws IOException {
+		// entries of files that are not there yet
+		FileOutputStream fncacheFile = new FileOutputStream(new File(hgDir,
+				"store/fncache"), true);
+		for (String s : fncacheFiles) {
+			fncacheFile.write(s.getBytes());
+			fncacheFile.write(0x0A); // http://mercurial.selenic.com/wiki/fncacheRepoFormat
+		}
+		fncacheFile.close();
+	}
+
+	// writes store files streamed by server as they are, only file names get encoded according to our store format
+	private static class StreamMate implements HgRemoteRepository.StoreInspector {
+		private final File hgDir;
+		private final PathRewrite storagePathHelper;
+		private final Internals implHelper;
+		private final LinkedList<String> fncacheFiles = new LinkedList<String>();
+
+		public StreamMate(File destDir) {
+			hgDir = new File(destDir, ".hg");
+			implHelper = new Internals(new BasicSessionContext(null, null));
+			implHelper.setStorageConfig(1, STORE | FNCACHE | DOTENCODE);
+			storagePathHelper = implHelper.buildDataFilesHelper();
+		}
+
+		public void initEmptyRepository() throws IOException {
+			implHelper.initEmptyRepository(hgDir);
+		}
+
+		public void complete() throws IOException {
+			writeFncache(hgDir, fncacheFiles);
+		}
+
+		public void start(int fileCount, long totalBytes) {
+		}
+
+		public OutputStream file(String name, long length) throws IOException {
+			if (name.startsWith("/") || ("/" + name + "/").indexOf("/../") != -1) {
+				throw new IOException(String.format("Bad store file name: %s", name));
+			}
+			final String storeName;
+			final boolean isIndex = name.endsWith(".i");
+			if (name.startsWith("data/") && (isIndex || name.endsWith(".d"))) {
+				final String path = name.substring("data/".length(), name.length() - 2);
+				String indexName = storagePathHelper.rewrite(path).toString();
+				// data file is next to index file, with the same name
+				storeName = isIndex ? indexName : indexName.substring(0, indexName.length() - 2) + ".d";
+				fncacheFiles.add(name);
+			} else {
+				storeName = "store/" + name;
+			}
+			File f = new File(hgDir, storeName);
+			f.getParentFile().mkdirs();
+			return new FileOutputStream(f);
+		}
+	}
+
+	/*
+	 * Copies store of a repository on the local file system. Revlogs are append-only, thus any revision prefix is
+	 * a valid revlog, and it's copied by length, without parsing revision content. Lengths are taken from index records
+	 * read at the time of copy, changelog first, so that revisions appended meanwhile don't get copied half-written.
+	 */
+	private static class LocalCopy {
+		private static final int INLINEDATA = 1 << 16;
+
+		private final File srcHgDir, hgDir;
+		private final Internals srcImpl;
+
+		public LocalCopy(File sourceHgDir, File destHgDir) throws IOException {
+			srcHgDir = sourceHgDir;
+			hgDir = destHgDir;
+			srcImpl = new Internals(new BasicSessionContext(null, null));
+			new RequiresFile().parse(srcImpl, new File(srcHgDir, "requires"));
+		}
+
+		public void copy(int lastChangeset) throws IOException, HgBadArgumentException {
+			final PathRewrite repoPathHelper = srcImpl.buildRepositoryFilesHelper();
+			final String changelogName = repoPathHelper.rewrite("00changelog.i").toString();
+			final String dataDirName = repoPathHelper.rewrite("data").toString();
+			// files with long names are hashed into another directory
+			final String hashedDirName = repoPathHelper.rewrite("dh").toString();
+			// same requirements, unknown ones included, as they tell how to read the store
+			hgDir.mkdir();
+			final File requires = new File(srcHgDir, "requires");
+			if (requires.exists()) {
+				copyFile(requires, new File(hgDir, "requires"), requires.length());
+			}
+			new File(hgDir, dataDirName).getParentFile().mkdirs();
+			// changelog revision's link is revision itself
+			final int changesets = copyRevlog(changelogName, lastChangeset == TIP ? Integer.MAX_VALUE : lastChangeset);
+			if (lastChangeset != TIP && changesets <= lastChangeset) {
+				throw new HgBadArgumentException(String.format("No changeset %d in %s", lastChangeset, srcHgDir.getParent()), null);
+			}
+			final int limit = changesets - 1;
+			copyRevlog(repoPathHelper.rewrite("00manifest.i").toString(), limit);
+			final HashSet<String> skipped = new HashSet<String>();
+			final ArrayList<String> dataFiles = new ArrayList<String>();
+			listRevlogs(new File(srcHgDir, dataDirName), dataDirName, dataFiles);
+			listRevlogs(new File(srcHgDir, hashedDirName), hashedDirName, dataFiles);
+			for (String indexName : dataFiles) {
+				if (copyRevlog(indexName, limit) == 0) {
+					// file was added in a later changeset
+					skipped.add(indexName);
 				}
-				byte[] content = ge.apply(prevRevContent.byteArray());
-				byte[] calculated = dh.sha1(p1, p2, content).asBinary();
-				final Nodeid node = ge.node();
-				if (!node.equalsTo(calculated)) {
-					throw new HgBadStateException(
-							String.format(
-									"Checksum failed: expected %s, calculated %s. File %s",
-									node, calculated, filename));
+			}
+			if (srcImpl.fncacheInUse()) {
+				copyFncache(repoPathHelper.rewrite("fncache").toString(), skipped);
+			}
+		}
+
+		// relative names of revlog index files, with '/' separator, as storage path helper builds them
+		private static void listRevlogs(File dir, String dirName, List<String> result) {
+			File[] children = dir.listFiles();
+			if (children == null) {
+				return;
+			}
+			for (File f : children) {
+				final String name = dirName + '/' + f.getName();
+				if (f.isDirectory()) {
+					listRevlogs(f, name, result);
+				} else if (name.endsWith(".i")) {
+					result.add(name);
 				}
-				final int link;
-				if (collectChangelogIndexes) {
-					changelogIndexes.put(node, revisionSequence.size());
-					link = revisionSequence.size();
-				} else {
-					Integer csRev = changelogIndexes.get(ge.cset());
-					if (csRev == null) {
-						throw new HgBadStateException(String.format(
-								"Changelog doesn't contain revision %s of %s",
-								ge.cset().shortNotation(), filename));
+			}
+		}
+
+		/**
+		 * Copies revisions that belong to changesets up to the limit, which shall be the first revisions of the revlog.
+		 * @return number of revisions copied, nothing is written if 0
+		 */
+		private int copyRevlog(String indexName, int lastChangeset) throws IOException, HgBadArgumentException {
+			final File srcIndex = new File(srcHgDir, indexName);
+			final long srcIndexLength = srcIndex.length();
+			int revisions = 0;
+			long indexLength = 0, dataLength = 0;
+			boolean inline = false, cut = false;
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(srcIndex), 64 * 1024));
+			try {
+				// complete records only, revlog may get appended right now
+				for (long pos = 0, i = 0; pos + 64 <= srcIndexLength; i++) {
+					long offset = dis.readLong();
+					final int compressedLen = dis.readInt();
+					dis.readInt(); // actual length
+					dis.readInt(); // base revision
+					final int linkRevision = dis.readInt();
+					skipFully(dis, 64 - 24);
+					if (i == 0) {
+						// first record starts with revlog version and flags instead of data offset
+						inline = ((int) (offset >>> 32) & INLINEDATA) != 0;
+						offset = 0;
+					} else {
+						offset >>>= 16;
+					}
+					pos += 64;
+					if (inline) {
+						if (pos + compressedLen > srcIndexLength) {
+							break;
+						}
+						skipFully(dis, compressedLen);
+						pos += compressedLen;
+					}
+					if (linkRevision > lastChangeset) {
+						cut = true;
+					} else if (cut) {
+						throw new HgBadArgumentException(String.format("Revisions of %s are not ordered by changeset, can't copy it up to changeset %d", indexName, lastChangeset), null);
+					} else {
+						revisions++;
+						indexLength = pos;
+						dataLength = offset + compressedLen;
 					}
-					link = csRev.intValue();
-				}
-				final int p1Rev = knownRevision(p1), p2Rev = knownRevision(p2);
-				byte[] patchContent = ge.rawDataByteArray();
-				writeComplete = writeComplete
-						|| patchContent.length >= (/* 3/4 of actual */content.length - (content.length >>> 2));
-				if (writeComplete) {
-					base = revisionSequence.size();
-				}
-				final byte[] sourceData = writeComplete ? content
-						: patchContent;
-				final byte[] data;
-				ByteArrayOutputStream bos = new ByteArrayOutputStream(
-						content.length);
-				DeflaterOutputStream dos = new DeflaterOutputStream(bos);
-				dos.write(sourceData);
-				dos.close();
-				final byte[] compressedData = bos.toByteArray();
-				dos = null;
-				bos = null;
-				final Byte dataPrefix;
-				if (compressedData.length >= (sourceData.length - (sourceData.length >>> 2))) {
-					// compression wasn't too effective,
-					data = sourceData;
-					dataPrefix = 'u';
-				} else {
-					data = compressedData;
-					dataPrefix = null;
 				}
+			} finally {
+				dis.close();
+			}
+			if (revisions == 0) {
+				return 0;
+			}
+			final File destIndex = new File(hgDir, indexName);
+			destIndex.getParentFile().mkdirs();
+			copyFile(srcIndex, destIndex, indexLength);
+			if (!inline) {
+				final String dataName = indexName.substring(0, indexName.length() - 1) + "d";
+				copyFile(new File(srcHgDir, dataName), new File(hgDir, dataName), dataLength);
+			}
+			return revisions;
+		}
 
-				ByteBuffer header = ByteBuffer
-						.allocate(64 /* REVLOGV1_RECORD_SIZE */);
-				if (offset == 0) {
-					final int INLINEDATA = 1 << 16;
-					header.putInt(1 /* RevlogNG */| INLINEDATA);
-					header.putInt(0);
-				} else {
-					header.putLong(offset << 16);
+		// fncache lists files by their names, revlogs of files that are not there are left out
+		private void copyFncache(String fncacheName, HashSet<String> skipped) throws IOException {
+			final File srcFncache = new File(srcHgDir, fncacheName);
+			if (!srcFncache.exists()) {
+				return;
+			}
+			if (skipped.isEmpty()) {
+				copyFile(srcFncache, new File(hgDir, fncacheName), srcFncache.length());
+				return;
+			}
+			final PathRewrite storagePathHelper = srcImpl.buildDataFilesHelper();
+			final ArrayList<String> entries = new ArrayList<String>();
+			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(srcFncache)));
+			try {
+				String line;
+				while ((line = br.readLine()) != null) {
+					if (line.length() < "data/.i".length() || !line.startsWith("data/")) {
+						continue;
+					}
+					// storage helper tells index name for both index and data entries
+					final String path = line.substring("data/".length(), line.length() - 2);
+					if (!skipped.contains(storagePathHelper.rewrite(path).toString())) {
+						entries.add(line);
+					}
 				}
-				final int compressedLen = data.length
-						+ (dataPrefix == null ? 0 : 1);
-				header.putInt(compressedLen);
-				header.putInt(content.length);
-				header.putInt(base);
-				header.putInt(link);
-				header.putInt(p1Rev);
-				header.putInt(p2Rev);
-				header.put(node.toByteArray());
-				// assume 12 bytes left are zeros
-				indexFile.write(header.array());
-				if (dataPrefix != null) {
-					indexFile.write(dataPrefix.byteValue());
+			} finally {
+				br.close();
+			}
+			writeFncache(hgDir, entries);
+		}
+
+		private static void copyFile(File src, File dest, long length) throws IOException {
+			FileInputStream fis = new FileInputStream(src);
+			try {
+				FileOutputStream fos = new FileOutputStream(dest);
+				try {
+					final FileChannel in = fis.getChannel(), out = fos.getChannel();
+					long pos = 0;
+					while (pos < length) {
+						final long n = in.transferTo(pos, length - pos, out);
+						if (n <= 0) {
+							throw new EOFException(String.format("%s is shorter than %d bytes", src, length));
+						}
+						pos += n;
+					}
+				} finally {
+					fos.close();
 				}
-				indexFile.write(data);
-				//
-				offset += compressedLen;
-				revisionSequence.add(node);
-				prevRevContent.done();
-				prevRevContent = new ByteArrayDataAccess(content);
-			} catch (IOException ex) {
-				throw new HgBadStateException(ex);
+			} finally {
+				fis.close();
 			}
-			return true;
 		}
 
+		private static void skipFully(DataInputStream dis, int bytes) throws IOException {
+			while (bytes > 0) {
+				final int n = dis.skipBytes(bytes);
+				if (n <= 0) {
+					throw new EOFException();
+				}
+				bytes -= n;
+			}
+		}
 	}
-
 }
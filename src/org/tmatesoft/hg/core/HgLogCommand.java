@@ -24,8 +24,10 @@ import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -66,6 +68,7 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> implements HgC
 	private Calendar date;
 	private Path file;
 	private boolean followHistory; // makes sense only when file != null
+	private boolean newestFirst;
 	private ChangesetTransformer csetTransform;
 	private HgChangelog.ParentWalker parentHelper;
 	
@@ -129,6 +132,19 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> implements HgC
 		return this;
 	}
 
+	/**
+	 * Report changesets from the most recent to the oldest one, like 'hg log' does. Together with {@link #limit(int)}, 
+	 * only as many changesets as necessary get read from the changelog, starting from the end of the {@link #range(int, int) range}.
+	 * Affects complete repository history only, history of a {@link #file(Path, boolean) file} comes in changelog order regardless.
+	 * 
+	 * @param newestFirst <code>true</code> to walk changelog backwards, <code>false</code> (default) to report changesets in their changelog order
+	 * @return <code>this</code> instance for convenience
+	 */
+	public HgLogCommand newestFirst(boolean newestFirst) {
+		this.newestFirst = newestFirst;
+		return this;
+	}
+
 	/**
 	 * Limit to specified subset of Changelog, [min(rev1,rev2), max(rev1,rev2)], inclusive.
 	 * Revision may be specified with {@link HgRepository#TIP}  
@@ -225,7 +241,14 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> implements HgC
 			csetTransform = new ChangesetTransformer(repo, handler, pw, progressHelper, getCancelSupport(handler, true));
 			if (file == null) {
 				progressHelper.start(endRev - startRev + 1);
-				repo.getChangelog().range(startRev, endRev, this);
+				final int lastRev = repo.getChangelog().getLastRevision();
+				final int first = startRev == TIP ? lastRev : startRev, last = endRev == TIP ? lastRev : endRev;
+				csetTransform.setRevisionWindow(newestFirst ? last : first, newestFirst ? first : last);
+				if (newestFirst) {
+					repo.getChangelog().rangeReverse(startRev, endRev, new ReverseWalker());
+				} else {
+					repo.getChangelog().range(startRev, endRev, this);
+				}
 				csetTransform.checkFailure();
 			} else {
 				progressHelper.start(-1/*XXX enum const, or a dedicated method startUnspecified(). How about startAtLeast(int)?*/);
@@ -234,14 +257,17 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> implements HgC
 				csetTransform.checkFailure();
 				if (fileNode.isCopy()) {
 					// even if we do not follow history, report file rename
+					// copy origin is parsed once per file node and kept along with its metadata, no need to cache here
 					do {
+						final Path srcName = fileNode.getCopySourceName();
+						final Nodeid srcRev = fileNode.getCopySourceRevision();
 						if (handler instanceof FileHistoryHandler) {
-							HgFileRevision src = new HgFileRevision(repo, fileNode.getCopySourceRevision(), fileNode.getCopySourceName());
+							HgFileRevision src = new HgFileRevision(repo, srcRev, srcName);
 							HgFileRevision dst = new HgFileRevision(repo, fileNode.getRevision(0), fileNode.getPath(), src.getPath());
 							try {
 								((FileHistoryHandler) handler).copy(src, dst);
 							} catch (HgCallbackTargetException.Wrap ex) {
-								throw new HgCallbackTargetException(ex).setRevision(fileNode.getCopySourceRevision()).setFileName(fileNode.getCopySourceName());
+								throw new HgCallbackTargetException(ex).setRevision(srcRev).setFileName(srcName);
 							}
 						}
 						if (limit > 0 && count >= limit) {
@@ -249,7 +275,7 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> implements HgC
 							break;
 						}
 						if (followHistory) {
-							fileNode = repo.getFileNode(fileNode.getCopySourceName());
+							fileNode = repo.getFileNode(srcName);
 							fileNode.history(this);
 							csetTransform.checkFailure();
 						}
@@ -262,6 +288,24 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> implements HgC
 		}
 	}
 	
+	/**
+	 * Pull-style access to the history of the repository, newest changesets first, for clients that show history page by page.
+	 * Changesets are read from the changelog in small batches as iterator advances. Respects {@link #limit(int)}, 
+	 * {@link #range(int, int)}, {@link #user(String)} and {@link #branch(String)} settings; {@link #file(Path, boolean) file} is not supported.
+	 * Command instance shall not be used for anything else while the iterator is in use.
+	 * 
+	 * @return iterator over changesets, each one is a distinct instance. Failures to read the changelog
+	 * are reported from {@link Iterator#hasNext()} as {@link HgBadStateException}
+	 * @throws HgInvalidControlFileException if access to revlog index/data entry failed
+	 * @throws IllegalArgumentException if {@link #file(Path, boolean) file} was set
+	 */
+	public Iterator<HgChangeset> iterator() throws HgInvalidControlFileException {
+		if (file != null) {
+			throw new IllegalArgumentException("Iteration over file history is not supported, use #execute(HgChangesetHandler) instead");
+		}
+		return new ChangesetIterator();
+	}
+	
 	/**
 	 * TODO documentation 
 	 * @param handler
@@ -413,6 +457,76 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> implements HgC
 		}
 	}
 
+	// lets changelog know when no more changesets are necessary
+	private class ReverseWalker implements HgChangelog.Inspector, CancelSupport {
+
+		public void next(int revisionNumber, Nodeid nodeid, RawChangeset cset) {
+			HgLogCommand.this.next(revisionNumber, nodeid, cset);
+		}
+
+		public void checkCancelled() throws CancelledException {
+			if ((limit > 0 && count >= limit) || csetTransform.isStopped()) {
+				throw new CancelledException();
+			}
+		}
+	}
+
+	private class ChangesetIterator implements Iterator<HgChangeset>, HgChangesetHandler {
+		private static final int PAGE_SIZE = 32;
+		private final LinkedList<HgChangeset> buffer = new LinkedList<HgChangeset>();
+		private final HgChangelog.ParentWalker pw;
+		private final int first;
+		private int nextToRead;
+
+		public ChangesetIterator() throws HgInvalidControlFileException {
+			pw = getParentHelper(true);
+			count = 0;
+			final int last = repo.getChangelog().getLastRevision();
+			first = startRev == TIP ? last : startRev;
+			nextToRead = endRev == TIP ? last : endRev;
+		}
+
+		public boolean hasNext() {
+			while (buffer.isEmpty() && nextToRead >= first && !(limit > 0 && count >= limit)) {
+				if (csetTransform != null) {
+					throw new ConcurrentModificationException();
+				}
+				final int lo = Math.max(first, nextToRead - PAGE_SIZE + 1);
+				csetTransform = new ChangesetTransformer(repo, this, pw, ProgressSupport.Factory.get(null), CancelSupport.Factory.get(null));
+				csetTransform.setRevisionWindow(nextToRead, lo);
+				try {
+					repo.getChangelog().rangeReverse(lo, nextToRead, new ReverseWalker());
+					csetTransform.checkFailure();
+				} catch (HgException ex) {
+					throw new HgBadStateException(ex);
+				} catch (CancelledException ex) {
+					// can't happen, nobody to cancel
+					throw new HgBadStateException(ex);
+				} finally {
+					csetTransform = null;
+				}
+				nextToRead = lo - 1;
+			}
+			return !buffer.isEmpty();
+		}
+
+		public HgChangeset next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return buffer.removeFirst();
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		// HgChangesetHandler
+		public void next(HgChangeset changeset) {
+			buffer.add(changeset.clone());
+		}
+	}
+
 	private static class HistoryNode {
 		final int changeset;
 		final Nodeid fileRevision;
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2012 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.RepositoryComparator;
+import org.tmatesoft.hg.internal.RepositoryComparator.BranchChain;
+import org.tmatesoft.hg.internal.RequiresFile;
+import org.tmatesoft.hg.repo.HgBundle;
+import org.tmatesoft.hg.repo.HgChangelog;
+import org.tmatesoft.hg.repo.HgInternals;
+import org.tmatesoft.hg.repo.HgLookup;
+import org.tmatesoft.hg.repo.HgRemoteRepository;
+import org.tmatesoft.hg.repo.HgRepository;
+import org.tmatesoft.hg.util.CancelSupport;
+import org.tmatesoft.hg.util.CancelledException;
+
+/**
+ * Brings changes missing locally from a remote repository, like <code>hg pull</code> does. Working copy is not updated.
+ *
+ * Changesets both repositories know about are found with {@link RepositoryComparator}, then server is
+ * asked for the changes past them only ('getbundle' command, or 'changegroup' for servers older than Mercurial 1.9). New revisions are appended to existing changelog, manifest and file revlogs.
+ * Revlogs get truncated back to their original state if the command fails.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class HgPullCommand extends HgAbstractCommand<HgPullCommand> {
+
+	private final HgRepository localRepo;
+	private HgRemoteRepository remoteRepo;
+
+	public HgPullCommand(HgRepository hgRepo) {
+		localRepo = hgRepo;
+	}
+
+	public HgPullCommand source(HgRemoteRepository hgRemote) {
+		remoteRepo = hgRemote;
+		return this;
+	}
+
+	/**
+	 * Note, {@link HgRepository} instance supplied to the command doesn't see pulled changes,
+	 * use one returned by this method instead.
+	 *
+	 * @return repository with pulled changes, or original repository if there were no changes to pull
+	 * @throws HgRemoteConnectionException when failed to communicate with remote repository
+	 * @throws HgInvalidControlFileException if access to revlog index/data entry failed
+	 * @throws HgInvalidFileException if failed to write pulled changes
+	 * @throws CancelledException if execution of the command was cancelled
+	 */
+	public HgRepository execute() throws HgRemoteConnectionException, HgInvalidControlFileException, HgInvalidFileException, CancelledException {
+		if (remoteRepo == null) {
+			throw new IllegalArgumentException("Shall specify remote repository to pull from", null);
+		}
+		if (localRepo.isInvalid()) {
+			throw new IllegalArgumentException(localRepo.toString());
+		}
+		final CancelSupport cancel = getCancelSupport(null, true);
+		HgChangelog.ParentWalker parentHelper = localRepo.getChangelog().new ParentWalker();
+		parentHelper.init();
+		RepositoryComparator comparator = new RepositoryComparator(parentHelper, remoteRepo);
+		final boolean getbundle = remoteRepo.supportsGetBundle();
+		final List<Nodeid> common;
+		if (getbundle) {
+			comparator.compare(getProgressSupport(null), cancel);
+			if (comparator.getRemoteOnlyHeads().isEmpty()) {
+				return localRepo;
+			}
+			common = comparator.getCommon();
+		} else {
+			// 'changegroup' needs known root of each missing branch
+			final List<BranchChain> missingBranches = comparator.calculateMissingBranches();
+			if (missingBranches.isEmpty()) {
+				return localRepo;
+			}
+			final LinkedHashSet<Nodeid> roots = new LinkedHashSet<Nodeid>();
+			for (BranchChain bc : missingBranches) {
+				comparator.collectKnownRoots(bc, roots);
+			}
+			common = new LinkedList<Nodeid>(roots);
+		}
+		cancel.checkCancelled();
+		final SessionContext ctx = HgInternals.getContext(localRepo);
+		final File hgDir = HgInternals.getRepositoryDir(localRepo);
+		final Internals implHelper = new Internals(ctx);
+		try {
+			new RequiresFile().parse(implHelper, new File(hgDir, "requires"));
+		} catch (IOException ex) {
+			throw new HgInvalidControlFileException("Failed to read storage configuration", ex, new File(hgDir, "requires"));
+		}
+		HgBundle changes = getbundle ? remoteRepo.getBundleStream(common) : remoteRepo.getChangesStream(common);
+		HgCloneCommand.WriteDownMate mate = new HgCloneCommand.WriteDownMate(ctx, hgDir, implHelper);
+		boolean success = false;
+		try {
+			changes.inspectAll(mate);
+			mate.complete();
+			success = true;
+		} catch (IOException ex) {
+			throw new HgInvalidFileException(getClass().getName(), ex);
+		} finally {
+			mate.shutdown();
+			changes.unlink();
+			if (!success) {
+				try {
+					mate.rollback();
+				} catch (IOException ex) {
+					ctx.getLog().error(getClass(), ex, "Failed to bring repository back to the state before pull");
+				}
+			}
+		}
+		return new HgLookup(ctx).detect(hgDir.getParentFile());
+	}
+}
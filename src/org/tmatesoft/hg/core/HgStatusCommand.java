@@ -181,6 +181,7 @@ public class HgStatusCommand extends HgAbstractCommand<HgStatusCommand> {
 			if (endRevision == WORKING_COPY) {
 				HgWorkingCopyStatusCollector wcsc = scope != null ? HgWorkingCopyStatusCollector.create(repo, scope) : new HgWorkingCopyStatusCollector(repo);
 				wcsc.setBaseRevisionCollector(sc);
+				wcsc.setReportIgnored(mediator.needIgnored);
 				wcsc.walk(startRevision, mediator);
 			} else {
 				sc.setScope(scope); // explicitly set, even if null - would be handy once we reuse StatusCollector
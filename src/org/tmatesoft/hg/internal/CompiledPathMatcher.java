@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2012 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.tmatesoft.hg.util.Path;
+
+/**
+ * Disjunction of path patterns, evaluated at once rather than pattern by pattern.
+ * Literal patterns are kept in hash sets and tries, each checked with a single pass over the path,
+ * and only patterns that can't be expressed with literals are matched with regular expressions,
+ * joined into a single alternation.
+ *
+ * Clients translate their patterns (globs, regular expressions) into checks offered by {@link Builder}.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class CompiledPathMatcher implements Path.Matcher {
+	private final HashSet<String> exact;
+	private final CharTrie prefixes;
+	private final CharTrie suffixes; // reversed
+	private final CharTrie segmentSuffixes; // reversed
+	private final HashSet<String> segmentExtensions;
+	private final String[] substrings;
+	private final Pattern[] find;
+	private final Pattern[] parentDirMatch;
+
+	private CompiledPathMatcher(Builder b) {
+		exact = b.exact;
+		prefixes = b.prefixes;
+		suffixes = b.suffixes;
+		segmentSuffixes = b.segmentSuffixes;
+		segmentExtensions = b.segmentExtensions;
+		substrings = b.substrings.toArray(new String[b.substrings.size()]);
+		find = combine(b.find);
+		parentDirMatch = combine(b.parentDirMatch);
+	}
+
+	public boolean accept(Path path) {
+		return accept(path.toString());
+	}
+
+	public boolean accept(String ps) {
+		if (!exact.isEmpty() && exact.contains(ps)) {
+			return true;
+		}
+		if (prefixes.matchForward(ps, 0) || suffixes.matchBackward(ps, ps.length())) {
+			return true;
+		}
+		if (!segmentSuffixes.isEmpty() || !segmentExtensions.isEmpty()) {
+			// at each end of a path segment, i.e. before each '/' and at the very end
+			int segmentStart = 0;
+			for (int i = 0, len = ps.length(); i <= len; i++) {
+				if (i == len || ps.charAt(i) == '/') {
+					if (segmentSuffixes.matchBackward(ps, i)) {
+						return true;
+					}
+					if (!segmentExtensions.isEmpty()) {
+						int dot = ps.lastIndexOf('.', i - 1);
+						if (dot >= segmentStart && segmentExtensions.contains(ps.substring(dot, i))) {
+							return true;
+						}
+					}
+					segmentStart = i + 1;
+				}
+			}
+		}
+		for (String s : substrings) {
+			if (ps.indexOf(s) != -1) {
+				return true;
+			}
+		}
+		for (Pattern p : find) {
+			if (p.matcher(ps).find()) {
+				return true;
+			}
+		}
+		if (parentDirMatch.length > 0) {
+			int x = ps.indexOf('/');
+			while (x != -1 && x+1 != ps.length() /*very last segment is not a parent directory*/) {
+				String fragment = ps.substring(0, x);
+				for (Pattern p : parentDirMatch) {
+					if (p.matcher(fragment).matches()) {
+						return true;
+					}
+				}
+				x = ps.indexOf('/', x+1);
+			}
+		}
+		return false;
+	}
+
+	// single alternation of all patterns, unless they can't be combined safely
+	private static Pattern[] combine(List<String> patterns) {
+		if (patterns.isEmpty()) {
+			return new Pattern[0];
+		}
+		Pattern[] separate = new Pattern[patterns.size()];
+		boolean canCombine = separate.length > 1;
+		StringBuilder sb = new StringBuilder();
+		int i = 0;
+		for (String s : patterns) {
+			separate[i++] = Pattern.compile(s); // let it fail with PatternSyntaxException
+			// back references rely on group numbers, which change once patterns are joined.
+			// inline flags shall not spill over into other alternatives as well
+			if (hasBackReference(s) || hasInlineFlags(s)) {
+				canCombine = false;
+			}
+			if (sb.length() > 0) {
+				sb.append('|');
+			}
+			sb.append("(?:").append(s).append(')');
+		}
+		if (!canCombine) {
+			return separate;
+		}
+		try {
+			return new Pattern[] { Pattern.compile(sb.toString()) };
+		} catch (PatternSyntaxException ex) {
+			// e.g. unbalanced quoting (\Q without \E) that is fine on its own
+			return separate;
+		}
+	}
+
+	private static boolean hasInlineFlags(String s) {
+		for (int i = s.indexOf("(?"); i != -1 && i + 2 < s.length(); i = s.indexOf("(?", i + 2)) {
+			if ("idmsuxU-".indexOf(s.charAt(i + 2)) != -1) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean hasBackReference(String s) {
+		for (int i = s.indexOf('\\'); i != -1 && i + 1 < s.length(); i = s.indexOf('\\', i + 2)) {
+			char c = s.charAt(i + 1);
+			if ((c >= '1' && c <= '9') || c == 'k' || c == 'Q') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static final class Builder {
+		private final HashSet<String> exact = new HashSet<String>();
+		private final CharTrie prefixes = new CharTrie();
+		private final CharTrie suffixes = new CharTrie();
+		private final CharTrie segmentSuffixes = new CharTrie();
+		private final HashSet<String> segmentExtensions = new HashSet<String>();
+		private final ArrayList<String> substrings = new ArrayList<String>();
+		private final ArrayList<String> find = new ArrayList<String>();
+		private final ArrayList<String> parentDirMatch = new ArrayList<String>();
+
+		/**
+		 * Path equals to the string
+		 */
+		public Builder exact(String s) {
+			exact.add(s);
+			return this;
+		}
+
+		/**
+		 * Path starts with the string
+		 */
+		public Builder prefix(String s) {
+			prefixes.add(s, false);
+			return this;
+		}
+
+		/**
+		 * Path ends with the string
+		 */
+		public Builder suffix(String s) {
+			suffixes.add(s, true);
+			return this;
+		}
+
+		/**
+		 * Any leading part of the path that ends either before '/' or at the end of the path, ends with the string
+		 */
+		public Builder segmentSuffix(String s) {
+			if (s.length() > 1 && s.charAt(0) == '.' && s.indexOf('.', 1) == -1 && s.indexOf('/') == -1) {
+				// file extension, the most common pattern of all
+				segmentExtensions.add(s);
+			} else {
+				segmentSuffixes.add(s, true);
+			}
+			return this;
+		}
+
+		/**
+		 * String occurs anywhere in the path
+		 */
+		public Builder substring(String s) {
+			substrings.add(s);
+			return this;
+		}
+
+		/**
+		 * Regular expression is {@link java.util.regex.Matcher#find() found} in the path
+		 */
+		public Builder find(String regexp) {
+			find.add(regexp);
+			return this;
+		}
+
+		/**
+		 * Regular expression {@link java.util.regex.Matcher#matches() matches} any parent directory of the path (without trailing slash)
+		 */
+		public Builder matchParentDirectory(String regexp) {
+			parentDirMatch.add(regexp);
+			return this;
+		}
+
+		/**
+		 * @throws PatternSyntaxException if any of regular expressions is not valid
+		 */
+		public CompiledPathMatcher build() throws PatternSyntaxException {
+			return new CompiledPathMatcher(this);
+		}
+	}
+
+	/**
+	 * Tells whether char at specified index is special for regular expressions (i.e. text is not a literal string)
+	 */
+	public static boolean isRegexpMeta(char ch) {
+		return "\\^$.|?*+()[]{}".indexOf(ch) != -1;
+	}
+
+	private static final class CharTrie {
+		private final Node root = new Node();
+		private boolean empty = true;
+
+		private static final class Node {
+			Map<Character, Node> children;
+			boolean terminal;
+		}
+
+		boolean isEmpty() {
+			return empty;
+		}
+
+		void add(String s, boolean reversed) {
+			Node n = root;
+			for (int i = 0, len = s.length(); i < len; i++) {
+				char ch = s.charAt(reversed ? len - i - 1 : i);
+				if (n.children == null) {
+					n.children = new HashMap<Character, Node>(4);
+				}
+				Node next = n.children.get(ch);
+				if (next == null) {
+					n.children.put(ch, next = new Node());
+				}
+				n = next;
+			}
+			n.terminal = true;
+			empty = false;
+		}
+
+		// any of the strings is a prefix of s[start..]
+		boolean matchForward(String s, int start) {
+			if (empty) {
+				return false;
+			}
+			Node n = root;
+			for (int i = start, len = s.length(); !n.terminal; i++) {
+				if (i == len || n.children == null || (n = n.children.get(s.charAt(i))) == null) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		// any of the strings is a suffix of s[0..end)
+		boolean matchBackward(String s, int end) {
+			if (empty) {
+				return false;
+			}
+			Node n = root;
+			for (int i = end - 1; !n.terminal; i--) {
+				if (i < 0 || n.children == null || (n = n.children.get(s.charAt(i))) == null) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
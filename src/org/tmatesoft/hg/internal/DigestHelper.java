@@ -18,6 +18,7 @@ package org.tmatesoft.hg.internal;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -64,17 +65,54 @@ public class DigestHelper {
 	//  sha1_digest(min(p1,p2) ++ max(p1,p2) ++ final_text)
 	public DigestHelper sha1(byte[] nodeidParent1, byte[] nodeidParent2, byte[] data) {
 		MessageDigest alg = getSHA1();
-		if ((nodeidParent1[0] & 0x00FF) < (nodeidParent2[0] & 0x00FF)) { 
-			alg.update(nodeidParent1);
-			alg.update(nodeidParent2);
-		} else {
-			alg.update(nodeidParent2);
-			alg.update(nodeidParent1);
-		}
+		updateParents(alg, nodeidParent1, nodeidParent2);
 		digest = alg.digest(data);
 		assert digest.length == 20;
 		return this;
 	}
+
+	/**
+	 * Incremental counterpart of {@link #sha1(byte[], byte[], byte[])}, for revision text that is not available at once.
+	 * Supply the text with {@link #update(ByteBuffer)} and complete with {@link #done()}.
+	 */
+	public DigestHelper sha1(byte[] nodeidParent1, byte[] nodeidParent2) {
+		MessageDigest alg = getSHA1();
+		alg.reset();
+		digest = null;
+		updateParents(alg, nodeidParent1, nodeidParent2);
+		return this;
+	}
+
+	public DigestHelper update(ByteBuffer buf) {
+		getSHA1().update(buf);
+		return this;
+	}
+
+	public DigestHelper update(byte[] data, int offset, int length) {
+		getSHA1().update(data, offset, length);
+		return this;
+	}
+
+	public DigestHelper done() {
+		digest = getSHA1().digest();
+		assert digest.length == 20;
+		return this;
+	}
+
+	// parent nodeids go in ascending order
+	private static void updateParents(MessageDigest alg, byte[] nodeidParent1, byte[] nodeidParent2) {
+		int i = 0;
+		while (i < 19 && nodeidParent1[i] == nodeidParent2[i]) {
+			i++;
+		}
+		if ((nodeidParent1[i] & 0x00FF) < (nodeidParent2[i] & 0x00FF)) { 
+			alg.update(nodeidParent1, 0, 20);
+			alg.update(nodeidParent2, 0, 20);
+		} else {
+			alg.update(nodeidParent2, 0, 20);
+			alg.update(nodeidParent1, 0, 20);
+		}
+	}
 	
 	public String asHexString() {
 		if (digest == null) {
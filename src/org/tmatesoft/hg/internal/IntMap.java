@@ -123,6 +123,15 @@ public class IntMap<V> {
 		}
 	}
 	
+	/**
+	 * @return keys in ascending order, a copy, so that map may get modified while iterating over keys
+	 */
+	public int[] keys() {
+		int[] rv = new int[size];
+		System.arraycopy(keys, 0, rv, 0, size);
+		return rv;
+	}
+
 	/**
 	 * Forget first N entries (in natural order) in the map.
 	 */
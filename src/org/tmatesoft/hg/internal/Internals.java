@@ -54,6 +54,37 @@ public final class Internals {
 	 * (@see HgRepository#getChangelog and #getManifest())  
 	 */
 	public static final String CFG_PROPERTY_REVLOG_STREAM_CACHE = "hg4j.repo.disable_revlog_cache";
+
+	/**
+	 * Number of threads to scan working directory with. Value of 1 means directories are walked sequentially, 
+	 * by the thread that asks for working copy status. By default, as many threads as there are processors, up to 4.
+	 */
+	public static final String CFG_PROPERTY_FS_WALKER_THREADS = "hg4j.wc.walker_threads";
+
+	/**
+	 * Number of threads to compare content of working copy files with their revisions, when status can't tell 
+	 * whether file is modified from its size and timestamp. Value of 1 means files are compared one by one, 
+	 * by the thread that asks for working copy status. Default is the same as for {@link #CFG_PROPERTY_FS_WALKER_THREADS}.
+	 */
+	public static final String CFG_PROPERTY_STATUS_CHECK_THREADS = "hg4j.wc.content_check_threads";
+
+	/**
+	 * Memory, in bytes (estimated), status calculation between revisions may use to keep manifest revisions for subsequent 
+	 * calculations (e.g. when log command reports files of each changeset). Default is 16 Mb.
+	 */
+	public static final String CFG_PROPERTY_STATUS_CACHE_SIZE = "hg4j.status.manifest_cache_size";
+
+	/**
+	 * Number of threads clone writes file revlogs with. Value of 1 means files are written one by one, by the thread that 
+	 * reads incoming changes. By default, as many threads as there are processors, up to 4.
+	 */
+	public static final String CFG_PROPERTY_CLONE_WRITER_THREADS = "hg4j.clone.writer_threads";
+
+	/**
+	 * Number of threads checkout writes working copy files with. Value of 1 means files are written one by one, by the thread
+	 * that runs the command. Default is the same as for {@link #CFG_PROPERTY_FS_WALKER_THREADS}.
+	 */
+	public static final String CFG_PROPERTY_CHECKOUT_WRITER_THREADS = "hg4j.wc.checkout_threads";
 	
 	private int requiresFlags = 0;
 	private List<Filter.Factory> filterFactories;
@@ -80,6 +111,10 @@ public final class Internals {
 		requiresFlags = flags;
 	}
 	
+	public boolean fncacheInUse() {
+		return (requiresFlags & FNCACHE) != 0;
+	}
+
 	public PathRewrite buildNormalizePathRewrite() {
 		if (runningOnWindows()) {
 			return new PathRewrite() {
@@ -116,7 +151,8 @@ public final class Internals {
 		}
 	}
 
-	public List<Filter.Factory> getFilters(HgRepository hgRepo) {
+	// synchronized, as files content with filters may get read from few threads at once, e.g. by checkout
+	public synchronized List<Filter.Factory> getFilters(HgRepository hgRepo) {
 		if (filterFactories == null) {
 			filterFactories = new ArrayList<Filter.Factory>();
 			ExtensionsSection cfg = hgRepo.getConfiguration().getExtensions();
@@ -16,7 +16,10 @@
  */
 package org.tmatesoft.hg.internal;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.TreeMap;
 
 import org.tmatesoft.hg.core.HgBadStateException;
@@ -32,6 +35,7 @@ import org.tmatesoft.hg.util.Path;
  * @author TMate Software Ltd.
  */
 public final class ManifestRevision implements HgManifest.Inspector2 {
+	private static final int TREE_ENTRY_SIZE = 40, TREE_SIZE = 48; // TreeMap$Entry and TreeMap, with object headers, 32-bit references
 	private final TreeMap<Path, Nodeid> idsMap;
 	private final TreeMap<Path, HgManifest.Flags> flagsMap;
 	private final Pool<Nodeid> idsPool;
@@ -47,6 +51,16 @@ public final class ManifestRevision implements HgManifest.Inspector2 {
 		idsMap = new TreeMap<Path, Nodeid>();
 		flagsMap = new TreeMap<Path, HgManifest.Flags>();
 	}
+
+	// copy of another revision, to modify
+	private ManifestRevision(ManifestRevision other) {
+		idsPool = other.idsPool;
+		namesPool = other.namesPool;
+		idsMap = new TreeMap<Path, Nodeid>(other.idsMap);
+		flagsMap = new TreeMap<Path, HgManifest.Flags>(other.flagsMap);
+		changeset = other.changeset;
+		changelogRev = other.changelogRev;
+	}
 	
 	public Collection<Path> files() {
 		return idsMap.keySet();
@@ -70,6 +84,13 @@ public final class ManifestRevision implements HgManifest.Inspector2 {
 	public int changesetLocalRev() {
 		return changelogRev;
 	}
+
+	/**
+	 * Rough estimate of memory this revision takes, file names and revisions (likely shared with other revisions) excluded
+	 */
+	public int estimatedSize() {
+		return (idsMap.size() + flagsMap.size()) * TREE_ENTRY_SIZE + 2 * TREE_SIZE;
+	}
 	
 	//
 
@@ -111,4 +132,91 @@ public final class ManifestRevision implements HgManifest.Inspector2 {
 		changelogRev = changelogRevision;
 		return true;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Difference between two revisions, to keep revisions close to each other (e.g. changeset and its parent)
+	 * without a complete copy of each.
+	 */
+	public static final class Delta {
+		private final ManifestRevision base;
+		private final Nodeid changeset;
+		private final int changelogRev;
+		private final Path[] names;
+		private final Nodeid[] ids; // null for files missing in target revision
+		private final HgManifest.Flags[] flags;
+
+		public Delta(ManifestRevision baseRevision, ManifestRevision target) {
+			base = baseRevision;
+			changeset = target.changeset;
+			changelogRev = target.changelogRev;
+			ArrayList<Path> n = new ArrayList<Path>();
+			ArrayList<Nodeid> i = new ArrayList<Nodeid>();
+			// both revisions keep files sorted, walk them side by side
+			Iterator<Map.Entry<Path, Nodeid>> it1 = base.idsMap.entrySet().iterator(), it2 = target.idsMap.entrySet().iterator();
+			Map.Entry<Path, Nodeid> e1 = it1.hasNext() ? it1.next() : null, e2 = it2.hasNext() ? it2.next() : null;
+			while (e1 != null || e2 != null) {
+				final int cmp = e1 == null ? 1 : (e2 == null ? -1 : e1.getKey().compareTo(e2.getKey()));
+				if (cmp < 0) {
+					n.add(e1.getKey());
+					i.add(null);
+				} else if (cmp > 0 || !e1.getValue().equals(e2.getValue()) || base.flags(e1.getKey()) != target.flags(e1.getKey())) {
+					n.add(e2.getKey());
+					i.add(e2.getValue());
+				}
+				if (cmp <= 0) {
+					e1 = it1.hasNext() ? it1.next() : null;
+				}
+				if (cmp >= 0) {
+					e2 = it2.hasNext() ? it2.next() : null;
+				}
+			}
+			names = n.toArray(new Path[n.size()]);
+			ids = i.toArray(new Nodeid[i.size()]);
+			flags = new HgManifest.Flags[names.length];
+			for (int x = 0; x < names.length; x++) {
+				flags[x] = target.flags(names[x]);
+			}
+		}
+
+		public ManifestRevision base() {
+			return base;
+		}
+
+		/**
+		 * @return number of files that differ between the two revisions
+		 */
+		public int size() {
+			return names.length;
+		}
+
+		/**
+		 * Rough estimate of memory the delta takes, same as {@link ManifestRevision#estimatedSize()} 
+		 */
+		public int estimatedSize() {
+			return names.length * 12 + 3 * 16; // 3 arrays
+		}
+
+		/**
+		 * @return new instance of the target revision
+		 */
+		public ManifestRevision apply() {
+			ManifestRevision rv = new ManifestRevision(base);
+			rv.changeset = changeset;
+			rv.changelogRev = changelogRev;
+			for (int x = 0; x < names.length; x++) {
+				if (ids[x] == null) {
+					rv.idsMap.remove(names[x]);
+					rv.flagsMap.remove(names[x]);
+				} else {
+					rv.idsMap.put(names[x], ids[x]);
+					if (flags[x] == null) {
+						rv.flagsMap.remove(names[x]);
+					} else {
+						rv.flagsMap.put(names[x], flags[x]);
+					}
+				}
+			}
+			return rv;
+		}
+	}
+}
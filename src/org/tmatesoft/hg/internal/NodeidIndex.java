@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2012 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import static org.tmatesoft.hg.repo.HgRepository.BAD_REVISION;
+
+import org.tmatesoft.hg.core.Nodeid;
+
+/**
+ * Sequence of revisions, as they get added to a revlog, with constant time lookup of revision index by its {@link Nodeid}.
+ * Meant for code that builds a revlog revision by revision (e.g. from a bundle) and needs indexes of parents
+ * for each new revision. Indexes are kept in an open addressing hash table of plain ints, no boxed values like with
+ * <code>Map&lt;Nodeid, Integer&gt;</code>, and there's no need to scan whole sequence to find a revision.
+ *
+ * Not thread-safe, fill once and share read-only.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class NodeidIndex {
+	private Nodeid[] sequence;
+	private int size;
+	private int[] table; // 1-based index into sequence, 0 marks empty slot
+
+	public NodeidIndex(int expectedSize) {
+		sequence = new Nodeid[expectedSize <= 0 ? 16 : expectedSize];
+		table = new int[tableSizeFor(sequence.length)];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return revision at given index, <code>0 &lt;= index &lt; size()</code>
+	 */
+	public Nodeid get(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException(String.valueOf(index));
+		}
+		return sequence[index];
+	}
+
+	/**
+	 * Appends revision to the sequence. If the same revision is already there, lookup would answer with the new index.
+	 * @return index of the revision
+	 */
+	public int add(Nodeid nid) {
+		if (size == sequence.length) {
+			// grow by half, but never by too little (or nothing at all, with size of 1)
+			Nodeid[] newSequence = new Nodeid[Math.max(size + (size >>> 1), size + 16)];
+			System.arraycopy(sequence, 0, newSequence, 0, size);
+			sequence = newSequence;
+		}
+		if ((size + 1) << 1 > table.length) {
+			rehash(table.length << 1);
+		}
+		final int index = size++;
+		sequence[index] = nid;
+		table[slot(nid)] = index + 1;
+		return index;
+	}
+
+	/**
+	 * @return index of the revision, or {@link org.tmatesoft.hg.repo.HgRepository#BAD_REVISION} if unknown
+	 */
+	public int indexOf(Nodeid nid) {
+		final int x = table[slot(nid)];
+		return x == 0 ? BAD_REVISION : x - 1;
+	}
+
+	public boolean contains(Nodeid nid) {
+		return table[slot(nid)] != 0;
+	}
+
+	// slot with the revision, or first empty slot where it would go. Table is never full, there's always empty slot
+	private int slot(Nodeid nid) {
+		final int mask = table.length - 1;
+		// nodeids are digests, their own hash code is uniform enough
+		int i = nid.hashCode() & mask;
+		int x;
+		while ((x = table[i]) != 0 && !sequence[x - 1].equals(nid)) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private void rehash(int newTableSize) {
+		table = new int[newTableSize];
+		for (int i = 0; i < size; i++) {
+			table[slot(sequence[i])] = i + 1;
+		}
+	}
+
+	// power of 2, at least twice as big as number of elements
+	private static int tableSizeFor(int elements) {
+		int rv = 16;
+		while (rv < elements << 1) {
+			rv <<= 1;
+		}
+		return rv;
+	}
+}
@@ -103,8 +103,24 @@ public final class Patch {
 		if (outcomeLen == -1) {
 			outcomeLen = baseRevisionContent.length() + patchSizeDelta();
 		}
-		int prevEnd = 0, destIndex = 0;
 		byte[] rv = new byte[outcomeLen];
+		apply(baseRevisionContent, rv);
+		return rv;
+	}
+
+	/**
+	 * @return length of the outcome when this patch is applied to a base revision of given length
+	 */
+	public int outcomeLength(int baseRevisionLength) {
+		return baseRevisionLength + patchSizeDelta();
+	}
+
+	/**
+	 * Same as {@link #apply(DataAccess, int)}, but puts outcome into supplied buffer, starting at its beginning. 
+	 * Buffer shall have room for {@link #outcomeLength(int)} bytes at least.
+	 */
+	public void apply(DataAccess baseRevisionContent, byte[] rv) throws IOException {
+		int prevEnd = 0, destIndex = 0;
 		for (int i = 0, x = data.size(); i < x; i++) {
 			final int start = starts.get(i);
 			baseRevisionContent.seek(prevEnd);
@@ -120,7 +136,6 @@ public final class Patch {
 		baseRevisionContent.seek(prevEnd);
 		// copy everything in the source past last record's end
 		baseRevisionContent.readBytes(rv, destIndex, (int) (baseRevisionContent.length() - prevEnd));
-		return rv;
 	}
 	
 	public void clear() {
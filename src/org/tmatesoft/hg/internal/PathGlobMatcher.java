@@ -27,7 +27,7 @@ import org.tmatesoft.hg.util.Path;
  */
 public class PathGlobMatcher implements Path.Matcher {
 	
-	private final PathRegexpMatcher delegate;
+	private final CompiledPathMatcher delegate;
 	
 	/**
 	 * 
@@ -36,19 +36,61 @@ public class PathGlobMatcher implements Path.Matcher {
 	 * @throws IllegalArgumentException if any of the patterns is not valid
 	 */
 	public PathGlobMatcher(String... globPatterns) {
-		String[] regexp = new String[globPatterns.length]; //deliberately let fail with NPE
-		int i = 0;
-		for (String s : globPatterns) {
-			regexp[i++] = glob2regexp(s);
+		CompiledPathMatcher.Builder b = new CompiledPathMatcher.Builder();
+		for (String s : globPatterns) { //deliberately let fail with NPE
+			add(b, s);
 		}
 		try {
-			delegate = new PathRegexpMatcher(regexp);
+			delegate = b.build();
 		} catch (PatternSyntaxException ex) {
 			throw new IllegalArgumentException(ex);
 		}
 	}
 	
 
+	// literal globs, and those with ** at the very start or very end, don't need regexp to match
+	private static void add(CompiledPathMatcher.Builder b, String glob) {
+		// glob2regexp ignores trailing .* 
+		final String g = glob.length() > 2 && glob.endsWith(".*") ? glob.substring(0, glob.length() - 2) : glob;
+		if (isLiteral(g, 0, g.length())) {
+			b.exact(g);
+			return;
+		}
+		if (g.startsWith("**")) {
+			// ^.*?/?[^/]*?literal$, as many leading ** and * as there are, match any path that ends with the literal 
+			int start = 0;
+			while (g.startsWith("**", start)) {
+				start += 2;
+				if (start < g.length() && g.charAt(start) == '/') {
+					start++;
+				}
+			}
+			while (start < g.length() && g.charAt(start) == '*') {
+				start++;
+			}
+			if (isLiteral(g, start, g.length())) {
+				b.suffix(g.substring(start));
+				return;
+			}
+		} else if (g.endsWith("**") && isLiteral(g, 0, g.length() - 2)) {
+			// ^literal.*?$
+			b.prefix(g.substring(0, g.length() - 2));
+			return;
+		}
+		b.find(glob2regexp(glob));
+	}
+
+	private static boolean isLiteral(String s, int start, int end) {
+		for (int i = start; i < end; i++) {
+			char ch = s.charAt(i);
+			// glob2regexp escapes . and \, the rest of regexp meta chars come as is
+			if (ch != '.' && ch != '\\' && CompiledPathMatcher.isRegexpMeta(ch)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	// HgIgnore.glob2regex is similar, but IsIgnore solves slightly different task 
 	// (need to match partial paths, e.g. for glob 'bin' shall match not only 'bin' folder, but also any path below it,
 	// which is not generally the case
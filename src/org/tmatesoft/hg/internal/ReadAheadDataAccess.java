@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2012 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Forward-only {@link DataAccess} over a stream (e.g. server reply), which is read, and decompressed if needed,
+ * by a separate thread, ahead of the client, up to a fixed amount of data. Neither {@link #length()} nor
+ * positioning other than {@link #skip(int) skip forward} are supported.
+ *
+ * Reading starts once instance is created, {@link #done()} stops it and closes the stream.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class ReadAheadDataAccess extends DataAccess {
+	private static final int CHUNK_SIZE = 32 * 1024;
+	private static final int MAX_CHUNKS_AHEAD = 32; // 1 Mb
+	private static final byte[] END = new byte[0];
+
+	private final BlockingQueue<byte[]> chunks;
+	private final Reader reader;
+	private byte[] chunk;
+	private int chunkPos;
+
+	/**
+	 * @param source stream to read
+	 * @param inflate <code>true</code> if stream is zlib-compressed
+	 */
+	public ReadAheadDataAccess(InputStream source, boolean inflate) {
+		chunks = new ArrayBlockingQueue<byte[]>(MAX_CHUNKS_AHEAD);
+		reader = new Reader(source, inflate, chunks);
+		Thread t = new Thread(reader, "hg4j-read-ahead");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		try {
+			return !fill();
+		} catch (IOException ex) {
+			// there's something to report, let next read do that
+			return false;
+		}
+	}
+
+	@Override
+	public DataAccess reset() throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void skip(int bytes) throws IOException {
+		if (bytes < 0) {
+			throw new UnsupportedOperationException();
+		}
+		while (bytes > 0) {
+			if (!fill()) {
+				throw new EOFException();
+			}
+			int x = Math.min(bytes, chunk.length - chunkPos);
+			chunkPos += x;
+			bytes -= x;
+		}
+	}
+
+	@Override
+	public void readBytes(byte[] buf, int offset, int length) throws IOException {
+		while (length > 0) {
+			if (!fill()) {
+				throw new EOFException();
+			}
+			int x = Math.min(length, chunk.length - chunkPos);
+			System.arraycopy(chunk, chunkPos, buf, offset, x);
+			chunkPos += x;
+			offset += x;
+			length -= x;
+		}
+	}
+
+	@Override
+	public byte readByte() throws IOException {
+		if (!fill()) {
+			throw new EOFException();
+		}
+		return chunk[chunkPos++];
+	}
+
+	@Override
+	public void done() {
+		reader.stop();
+		chunk = END;
+		chunkPos = 0;
+	}
+
+	// true if there are bytes to read in the current chunk
+	private boolean fill() throws IOException {
+		while (chunk != END && (chunk == null || chunkPos == chunk.length)) {
+			try {
+				chunk = chunks.take();
+				chunkPos = 0;
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+		if (chunk == END) {
+			if (reader.failure != null) {
+				throw reader.failure;
+			}
+			return false;
+		}
+		return true;
+	}
+
+	private static class Reader implements Runnable {
+		private final InputStream source;
+		private final boolean inflate;
+		private final BlockingQueue<byte[]> queue;
+		private volatile boolean stopped = false;
+		// published to consumer along with END chunk
+		IOException failure;
+
+		Reader(InputStream is, boolean needInflate, BlockingQueue<byte[]> chunks) {
+			source = is;
+			inflate = needInflate;
+			queue = chunks;
+		}
+
+		public void run() {
+			InputStream is = source;
+			try {
+				if (inflate) {
+					is = new InflaterInputStream(source, new Inflater(), CHUNK_SIZE);
+				}
+				boolean eof = false;
+				while (!eof && !stopped) {
+					byte[] b = new byte[CHUNK_SIZE];
+					int n = 0, r;
+					// full chunks, whatever amount the stream gives at once
+					while (n < b.length && (r = is.read(b, n, b.length - n)) != -1) {
+						n += r;
+					}
+					eof = n < b.length;
+					if (n > 0) {
+						queue.put(eof ? Arrays.copyOf(b, n) : b);
+					}
+				}
+			} catch (IOException ex) {
+				failure = ex;
+			} catch (InterruptedException ex) {
+				failure = new InterruptedIOException();
+			} catch (RuntimeException ex) {
+				failure = new IOException(ex);
+			} finally {
+				try {
+					is.close();
+				} catch (IOException ex) {
+					// ignore, nothing to read anyway
+				}
+				if (stopped) {
+					queue.offer(END);
+				} else {
+					try {
+						queue.put(END);
+					} catch (InterruptedException ex) {
+						// nobody to wait for it
+					}
+				}
+			}
+		}
+
+		void stop() {
+			stopped = true;
+			try {
+				source.close();
+			} catch (IOException ex) {
+				// ignore
+			}
+			// let the thread get out of put(), if blocked there
+			queue.clear();
+		}
+	}
+}
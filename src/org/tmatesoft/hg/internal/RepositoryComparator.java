@@ -52,16 +52,30 @@ public class RepositoryComparator {
 	private final HgChangelog.ParentWalker localRepo;
 	private final HgRemoteRepository remoteRepo;
 	private List<Nodeid> common;
+	private List<Nodeid> remoteHeads;
 
 	public RepositoryComparator(HgChangelog.ParentWalker pwLocal, HgRemoteRepository hgRemote) {
 		localRepo = pwLocal;
 		remoteRepo = hgRemote;
 	}
 	
-	public RepositoryComparator compare(ProgressSupport progressSupport, CancelSupport cancelSupport) throws HgRemoteConnectionException, CancelledException {
+	/**
+	 * Finds revisions known to both repositories. Servers that answer 'known' queries get asked about samples of local revisions, 
+	 * older ones - about branches of their own history. 
+	 */
+	public RepositoryComparator compare(ProgressSupport progressSupport, CancelSupport cancelSupport) throws HgRemoteConnectionException, HgInvalidControlFileException, CancelledException {
 		cancelSupport.checkCancelled();
 		progressSupport.start(10);
-		common = Collections.unmodifiableList(findCommonWithRemote());
+		remoteHeads = remoteRepo.heads();
+		if (remoteRepo.supportsKnown()) {
+			SetDiscovery discovery = new SetDiscovery(RevisionGraph.create(localRepo.getRepo().getChangelog()), remoteRepo);
+			common = Collections.unmodifiableList(discovery.findCommonHeads(remoteHeads, cancelSupport));
+			if (debug) {
+				System.out.printf("Discovery: %d common heads, %d 'known' queries\n", common.size(), discovery.getRoundTrips());
+			}
+		} else {
+			common = Collections.unmodifiableList(findCommonWithRemote());
+		}
 		// sanity check
 		for (Nodeid n : common) {
 			if (!localRepo.knownNode(n)) {
@@ -79,6 +93,22 @@ public class RepositoryComparator {
 		return common;
 	}
 	
+	/**
+	 * @return heads of the remote repository missing locally, empty if there's nothing to pull
+	 */
+	public List<Nodeid> getRemoteOnlyHeads() {
+		if (remoteHeads == null) {
+			throw new HgBadStateException("Call #compare(Object) first");
+		}
+		ArrayList<Nodeid> rv = new ArrayList<Nodeid>(remoteHeads.size());
+		for (Nodeid n : remoteHeads) {
+			if (!n.isNull() && !localRepo.knownNode(n)) {
+				rv.add(n);
+			}
+		}
+		return rv;
+	}
+
 	/**
 	 * @return revisions that are children of common entries, i.e. revisions that are present on the local server and not on remote.
 	 */
@@ -126,7 +156,6 @@ public class RepositoryComparator {
 	}
 
 	private List<Nodeid> findCommonWithRemote() throws HgRemoteConnectionException {
-		List<Nodeid> remoteHeads = remoteRepo.heads();
 		LinkedList<Nodeid> resultCommon = new LinkedList<Nodeid>(); // these remotes are known in local
 		LinkedList<Nodeid> toQuery = new LinkedList<Nodeid>(); // these need further queries to find common
 		for (Nodeid rh : remoteHeads) {
@@ -155,26 +184,36 @@ public class RepositoryComparator {
 					checkUp2Head.add(rb);
 				} else {
 					// dig deeper in the history, if necessary
-					if (!rb.p1.isNull() && !localRepo.knownNode(rb.p1)) {
+					// branches often share parents, no reason to ask twice
+					if (!rb.p1.isNull() && !localRepo.knownNode(rb.p1) && !toQuery.contains(rb.p1)) {
 						toQuery.add(rb.p1);
 					}
-					if (!rb.p2.isNull() && !localRepo.knownNode(rb.p2)) {
+					if (!rb.p2.isNull() && !localRepo.knownNode(rb.p2) && !toQuery.contains(rb.p2)) {
 						toQuery.add(rb.p2);
 					}
 				}
 			}
 		}
 		// can't check nodes between checkUp2Head element and local heads, remote might have distinct descendants sequence
+		// rb.root is known locally, rb.head is not. All branches are narrowed down at once, single 'between' query for each step 
+		List<Range> toNarrow = new ArrayList<Range>(checkUp2Head.size());
 		for (RemoteBranch rb : checkUp2Head) {
-			// rb.root is known locally
-			List<Nodeid> remoteRevisions = remoteRepo.between(rb.head, rb.root);
-			if (remoteRevisions.isEmpty()) {
-				// head is immediate child
-				resultCommon.add(rb.root);
-			} else {
+			toNarrow.add(new Range(rb.root, rb.head));
+		}
+		while (!toNarrow.isEmpty()) {
+			Map<Range, List<Nodeid>> between = remoteRepo.between(toNarrow);
+			ArrayList<Range> next = new ArrayList<Range>(toNarrow.size());
+			for (Range range : toNarrow) {
+				List<Nodeid> remoteRevisions = between.get(range);
+				if (remoteRevisions == null || remoteRevisions.isEmpty()) {
+					// head is immediate child
+					resultCommon.add(range.start);
+					continue;
+				}
 				// between gives result from head to root, I'd like to go in reverse direction
+				remoteRevisions = new LinkedList<Nodeid>(remoteRevisions);
 				Collections.reverse(remoteRevisions);
-				Nodeid root = rb.root;
+				Nodeid root = range.start;
 				while(!remoteRevisions.isEmpty()) {
 					Nodeid n = remoteRevisions.remove(0);
 					if (localRepo.knownNode(n)) {
@@ -193,14 +232,12 @@ public class RepositoryComparator {
 						// might get handy for next between query, to narrow search down
 						root = n;
 					} else {
-						remoteRevisions = remoteRepo.between(n, root);
-						Collections.reverse(remoteRevisions);
-						if (remoteRevisions.isEmpty()) {
-							resultCommon.add(root);
-						}
+						next.add(new Range(root, n));
+						break;
 					}
 				}
 			}
+			toNarrow = next;
 		}
 		// TODO ensure unique elements in the list
 		return resultCommon;
@@ -247,7 +284,9 @@ public class RepositoryComparator {
 					// dig deeper in the history, if necessary
 					boolean hasP1 = !rb.p1.isNull(), hasP2 = !rb.p2.isNull();  
 					if (hasP1 && !localRepo.knownNode(rb.p1)) {
-						toQuery.add(rb.p1);
+						if (!toQuery.contains(rb.p1)) {
+							toQuery.add(rb.p1);
+						}
 						// we might have seen parent node already, and recorded it as a branch chain
 						// we shall reuse existing BC to get it completely initializer (head2chain map
 						// on second put with the same key would leave first BC uninitialized.
@@ -262,7 +301,9 @@ public class RepositoryComparator {
 						chainElement.p1 = bc;
 					}
 					if (hasP2 && !localRepo.knownNode(rb.p2)) {
-						toQuery.add(rb.p2);
+						if (!toQuery.contains(rb.p2)) {
+							toQuery.add(rb.p2);
+						}
 						BranchChain bc = head2chain.get(rb.p2);
 						if (bc == null) {
 							head2chain.put(rb.p2, bc = new BranchChain(rb.p2));
@@ -280,45 +321,60 @@ public class RepositoryComparator {
 				}
 			}
 		}
+		// narrow down all branches with known root at once, single 'between' query for each step
+		List<Range> toNarrow = new ArrayList<Range>(checkUp2Head.size());
+		HashMap<Range, BranchChain> range2chain = new HashMap<Range, BranchChain>();
 		for (RemoteBranch rb : checkUp2Head) {
-			Nodeid h = rb.head;
-			Nodeid r = rb.root;
-			int watchdog = 1000;
-			assert head2chain.containsKey(h);
-			BranchChain bc = head2chain.get(h);
-			assert bc != null : h.toString();
+			assert head2chain.containsKey(rb.head);
+			BranchChain bc = head2chain.get(rb.head);
+			assert bc != null : rb.head.toString();
 			// if we know branch root locally, there could be no parent branch chain elements.
 			assert bc.p1 == null;
 			assert bc.p2 == null;
-			do {
-				List<Nodeid> between = remoteRepo.between(h, r);
-				if (between.isEmpty()) {
+			Range range = new Range(rb.root, rb.head);
+			toNarrow.add(range);
+			range2chain.put(range, bc);
+		}
+		int watchdog = 1000;
+		while (!toNarrow.isEmpty()) {
+			if (--watchdog == 0) {
+				Range range = toNarrow.get(0);
+				throw new HgBadStateException(String.format("Can't narrow down branch [%s, %s]", range.end.shortNotation(), range.start.shortNotation()));
+			}
+			Map<Range, List<Nodeid>> between = remoteRepo.between(toNarrow);
+			ArrayList<Range> next = new ArrayList<Range>(toNarrow.size());
+			for (Range range : toNarrow) {
+				BranchChain bc = range2chain.remove(range);
+				Nodeid h = range.end;
+				Nodeid r = range.start;
+				List<Nodeid> btw = between.get(range);
+				if (btw == null || btw.isEmpty()) {
 					bc.branchRoot = r;
-					break;
-				} else {
-					Collections.reverse(between);
-					for (Nodeid n : between) {
-						if (localRepo.knownNode(n)) {
-							r = n;
-						} else {
-							h = n;
-							break;
-						}
-					}
-					Nodeid lastInBetween = between.get(between.size() - 1);
-					if (r.equals(lastInBetween)) {
-						bc.branchRoot = r;
-						break;
-					} else if (h.equals(lastInBetween)) { // the only chance for current head pointer to point to the sequence tail
-						// is when r is second from the between list end (iow, head,1,[2],4,8...,root)
-						bc.branchRoot = r;
+					continue;
+				}
+				btw = new ArrayList<Nodeid>(btw);
+				Collections.reverse(btw);
+				for (Nodeid n : btw) {
+					if (localRepo.knownNode(n)) {
+						r = n;
+					} else {
+						h = n;
 						break;
 					}
 				}
-			} while(--watchdog > 0);
-			if (watchdog == 0) {
-				throw new HgBadStateException(String.format("Can't narrow down branch [%s, %s]", rb.head.shortNotation(), rb.root.shortNotation()));
+				Nodeid lastInBetween = btw.get(btw.size() - 1);
+				if (r.equals(lastInBetween)) {
+					bc.branchRoot = r;
+				} else if (h.equals(lastInBetween)) { // the only chance for current head pointer to point to the sequence tail
+					// is when r is second from the between list end (iow, head,1,[2],4,8...,root)
+					bc.branchRoot = r;
+				} else {
+					Range narrowed = new Range(r, h);
+					next.add(narrowed);
+					range2chain.put(narrowed, bc);
+				}
 			}
+			toNarrow = next;
 		}
 		if (debug) {
 			System.out.println("calculateMissingBranches:");
@@ -553,7 +609,12 @@ public class RepositoryComparator {
 	}
 
 	public void collectKnownRoots(BranchChain bc, Set<Nodeid> result) {
-		if (bc == null) {
+		// chains share parent chains once there are merges, don't walk them more than once
+		collectKnownRoots(bc, result, new HashSet<BranchChain>());
+	}
+
+	private static void collectKnownRoots(BranchChain bc, Set<Nodeid> result, Set<BranchChain> visited) {
+		if (bc == null || !visited.add(bc)) {
 			return;
 		}
 		if (bc.isTerminal()) {
@@ -563,7 +624,7 @@ public class RepositoryComparator {
 		if (bc.isRepoStart()) {
 			return;
 		}
-		collectKnownRoots(bc.p1, result);
-		collectKnownRoots(bc.p2, result);
+		collectKnownRoots(bc.p1, result, visited);
+		collectKnownRoots(bc.p2, result, visited);
 	}
 }
@@ -0,0 +1,390 @@
+/*
+ * Copyright (c) 2012 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import static org.tmatesoft.hg.repo.HgRepository.BAD_REVISION;
+import static org.tmatesoft.hg.repo.HgRepository.TIP;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.tmatesoft.hg.core.HgBadStateException;
+import org.tmatesoft.hg.core.HgInvalidControlFileException;
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.repo.HgChangelog;
+import org.tmatesoft.hg.repo.HgDataFile;
+import org.tmatesoft.hg.repo.HgManifest;
+
+/**
+ * Ancestry queries over revision indexes of a single revlog. Unlike {@link HgChangelog.ParentWalker}, which answers
+ * questions in terms of {@link Nodeid}, all the work here is done with plain int arrays and {@link BitSet BitSets},
+ * and relies on the fact parents in a revlog always have smaller index than their children. Thus, set of ancestors
+ * is computed with a single backward sweep, and descendants - with a single forward one.
+ *
+ * Optional labelling ({@link #buildLabels()}) records generation number (length of the longest path to a root)
+ * and pre-order interval of the first-parent spanning tree for each revision. With labels in place, most
+ * {@link #isAncestor(int, int)} queries are answered in constant time, and the rest are limited to revisions between
+ * the two in question.
+ *
+ * Not thread-safe, initialize once and share read-only.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class RevisionGraph implements HgChangelog.ParentInspector {
+
+	/**
+	 * Index of the fake revision that serves as parent of the roots, as reported by revlog parent fields
+	 */
+	public static final int NO_REVISION = -1;
+
+	private final int[] parent1;
+	private final int[] parent2;
+	private final Nodeid[] sequential;
+	private int[] sorted2natural; // lazy, 1-based indexes from ArrayHelper
+	private Nodeid[] sorted;
+	// labels, built on demand, see #buildLabels()
+	private int[] generation;
+	private int[] preorder;
+	private int[] subtreeEnd; // exclusive, in preorder numbering
+
+	public RevisionGraph(int revisionCount) {
+		parent1 = new int[revisionCount];
+		parent2 = new int[revisionCount];
+		sequential = new Nodeid[revisionCount];
+		Arrays.fill(parent1, NO_REVISION);
+		Arrays.fill(parent2, NO_REVISION);
+	}
+
+	public static RevisionGraph create(HgChangelog clog) throws HgInvalidControlFileException {
+		RevisionGraph rv = new RevisionGraph(clog.getRevisionCount());
+		clog.walk(0, TIP, rv);
+		return rv;
+	}
+
+	public static RevisionGraph create(HgManifest manifest) throws HgInvalidControlFileException {
+		RevisionGraph rv = new RevisionGraph(manifest.getRevisionCount());
+		manifest.walk(0, TIP, rv);
+		return rv;
+	}
+
+	public static RevisionGraph create(HgDataFile df) throws HgInvalidControlFileException {
+		RevisionGraph rv = new RevisionGraph(df.getRevisionCount());
+		df.walk(0, TIP, rv);
+		return rv;
+	}
+
+	public void next(int revisionIndex, Nodeid revision, int parent1Revision, int parent2Revision, Nodeid nidParent1, Nodeid nidParent2) {
+		if (parent1Revision >= revisionIndex || parent2Revision >= revisionIndex) {
+			throw new HgBadStateException(); // sanity, revisions are sequential
+		}
+		sequential[revisionIndex] = revision;
+		// revlog of DataAccess.java has p2 set when p1 is -1, keep the order, #ancestors doesn't care
+		parent1[revisionIndex] = parent1Revision;
+		parent2[revisionIndex] = parent2Revision;
+		generation = preorder = subtreeEnd = null; // structure has changed
+	}
+
+	public int revisionCount() {
+		return parent1.length;
+	}
+
+	/**
+	 * @return index of the first parent, or {@link #NO_REVISION}
+	 */
+	public int firstParent(int revisionIndex) {
+		return parent1[revisionIndex];
+	}
+
+	/**
+	 * @return index of the second parent, or {@link #NO_REVISION}
+	 */
+	public int secondParent(int revisionIndex) {
+		return parent2[revisionIndex];
+	}
+
+	public Nodeid revision(int revisionIndex) {
+		return sequential[revisionIndex];
+	}
+
+	/**
+	 * Log(n) lookup, sorted index is built with first invocation.
+	 * @return index of the revision, or {@link org.tmatesoft.hg.repo.HgRepository#BAD_REVISION} if not known
+	 */
+	public int revisionIndex(Nodeid revision) {
+		if (revision == null || revision.isNull()) {
+			return BAD_REVISION;
+		}
+		if (sorted == null) {
+			sorted = sequential.clone();
+			final ArrayHelper ah = new ArrayHelper();
+			ah.sort(sorted);
+			sorted2natural = ah.getReverse();
+		}
+		int x = Arrays.binarySearch(sorted, revision);
+		if (x < 0) {
+			return BAD_REVISION;
+		}
+		return sorted2natural[x] - 1;
+	}
+
+	/**
+	 * All ancestors of supplied revisions, the revisions themselves included (like <code>::rev</code> in Mercurial).
+	 * Single backward sweep starting at the tip-most of supplied revisions.
+	 * @param revisions indexes of revisions, negative values (i.e. {@link #NO_REVISION}) are ignored
+	 * @return bit set with indexes of ancestor revisions
+	 */
+	public BitSet ancestors(int... revisions) {
+		BitSet rv = new BitSet(revisionCount());
+		for (int r : revisions) {
+			if (r >= 0) {
+				rv.set(r);
+			}
+		}
+		sweepAncestors(rv);
+		return rv;
+	}
+
+	/**
+	 * Same as {@link #ancestors(int...)}, takes revisions as bit set
+	 * @return new bit set, argument is not modified
+	 */
+	public BitSet ancestors(BitSet revisions) {
+		BitSet rv = (BitSet) revisions.clone();
+		sweepAncestors(rv);
+		return rv;
+	}
+
+	/**
+	 * All descendants of supplied revisions, the revisions themselves included (like <code>rev::</code> in Mercurial).
+	 * Single forward sweep starting at the earliest of supplied revisions.
+	 * @param revisions indexes of revisions, negative values (i.e. {@link #NO_REVISION}) are ignored
+	 * @return bit set with indexes of descendant revisions
+	 */
+	public BitSet descendants(int... revisions) {
+		BitSet rv = new BitSet(revisionCount());
+		for (int r : revisions) {
+			if (r >= 0) {
+				rv.set(r);
+			}
+		}
+		sweepDescendants(rv);
+		return rv;
+	}
+
+	/**
+	 * Same as {@link #descendants(int...)}, takes revisions as bit set
+	 * @return new bit set, argument is not modified
+	 */
+	public BitSet descendants(BitSet revisions) {
+		BitSet rv = (BitSet) revisions.clone();
+		sweepDescendants(rv);
+		return rv;
+	}
+
+	/**
+	 * Revisions from the set that have no children in the same set, i.e. heads of the sub-graph.
+	 * @param revisions bit set of revisions, not modified
+	 * @return new bit set with heads
+	 */
+	public BitSet heads(BitSet revisions) {
+		BitSet rv = (BitSet) revisions.clone();
+		for (int i = revisions.nextSetBit(0); i >= 0; i = revisions.nextSetBit(i+1)) {
+			if (parent1[i] >= 0) {
+				rv.clear(parent1[i]);
+			}
+			if (parent2[i] >= 0) {
+				rv.clear(parent2[i]);
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * Tells whether one revision is reachable from another following parent links. Revision is considered ancestor of itself.
+	 *
+	 * Fast paths: parent always has lesser index than child, and, once {@link #buildLabels() labels} are built,
+	 * generation numbers and first-parent intervals decide most queries without a walk. Otherwise, walks back
+	 * from <code>descendant</code>, never going past <code>ancestor</code>.
+	 *
+	 * @param ancestor index of possible ancestor revision
+	 * @param descendant index of possible descendant revision
+	 * @return <code>true</code> if <code>ancestor</code> is indeed ancestor of the <code>descendant</code>
+	 */
+	public boolean isAncestor(int ancestor, int descendant) {
+		if (ancestor == descendant) {
+			return true;
+		}
+		if (ancestor > descendant || ancestor < 0) {
+			return false;
+		}
+		if (parent1[descendant] == ancestor || parent2[descendant] == ancestor) {
+			return true;
+		}
+		if (generation != null) {
+			if (generation[ancestor] >= generation[descendant]) {
+				return false;
+			}
+			if (preorder[ancestor] <= preorder[descendant] && preorder[descendant] < subtreeEnd[ancestor]) {
+				return true; // first-parent line leads there
+			}
+		}
+		// bounded backward sweep, (ancestor..descendant]
+		BitSet reached = new BitSet(descendant - ancestor + 1);
+		reached.set(descendant - ancestor);
+		for (int i = descendant; i > ancestor; i--) {
+			if (!reached.get(i - ancestor)) {
+				continue;
+			}
+			int p1 = parent1[i], p2 = parent2[i];
+			if (p1 == ancestor || p2 == ancestor) {
+				return true;
+			}
+			if (p1 > ancestor && (generation == null || generation[p1] > generation[ancestor])) {
+				reached.set(p1 - ancestor);
+			}
+			if (p2 > ancestor && (generation == null || generation[p2] > generation[ancestor])) {
+				reached.set(p2 - ancestor);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Greatest common ancestor, chosen the same way Mercurial does: among heads of the common ancestors set,
+	 * the one that is farthest from the root (longest path), with ties resolved in favor of the latest revision.
+	 *
+	 * @return index of common ancestor revision, or {@link #NO_REVISION} if revisions are unrelated
+	 */
+	public int commonAncestor(int rev1, int rev2) {
+		if (rev1 < 0 || rev2 < 0) {
+			return NO_REVISION;
+		}
+		if (isAncestor(rev1, rev2)) {
+			return rev1;
+		}
+		if (isAncestor(rev2, rev1)) {
+			return rev2;
+		}
+		BitSet common = ancestors(rev1);
+		common.and(ancestors(rev2));
+		if (common.isEmpty()) {
+			return NO_REVISION;
+		}
+		BitSet candidates = heads(common);
+		final int[] gen = generation != null ? generation : computeGenerations();
+		int rv = NO_REVISION;
+		for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i+1)) {
+			if (rv == NO_REVISION || gen[i] >= gen[rv]) {
+				rv = i;
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * Build generation numbers and first-parent tree intervals to speed up repeated {@link #isAncestor(int, int)} queries.
+	 * Linear in number of revisions, 3 ints per revision.
+	 * @return <code>this</code> for convenience
+	 */
+	public RevisionGraph buildLabels() {
+		final int count = revisionCount();
+		final int[] gen = computeGenerations();
+		// first-parent spanning forest, children lists in compact form
+		int[] childCount = new int[count + 1];
+		for (int i = 0; i < count; i++) {
+			childCount[parent1[i] + 1]++; // slot 0 is virtual root for revisions without first parent
+		}
+		int[] childStart = new int[count + 2];
+		for (int i = 0; i <= count; i++) {
+			childStart[i+1] = childStart[i] + childCount[i];
+		}
+		int[] children = new int[count];
+		int[] fill = new int[count + 1];
+		for (int i = 0; i < count; i++) {
+			int slot = parent1[i] + 1;
+			children[childStart[slot] + fill[slot]++] = i;
+		}
+		// iterative DFS from the virtual root, assign pre-order numbers and subtree ends
+		final int[] pre = new int[count];
+		final int[] end = new int[count];
+		int[] stack = new int[count + 1];
+		int[] cursor = new int[count + 1];
+		int top = 0;
+		stack[0] = -1;
+		cursor[0] = childStart[0];
+		int order = 0;
+		while (top >= 0) {
+			int node = stack[top];
+			int slot = node + 1;
+			if (cursor[top] < childStart[slot + 1]) {
+				int child = children[cursor[top]++];
+				pre[child] = order++;
+				top++;
+				stack[top] = child;
+				cursor[top] = childStart[child + 1];
+			} else {
+				if (node >= 0) {
+					end[node] = order;
+				}
+				top--;
+			}
+		}
+		generation = gen;
+		preorder = pre;
+		subtreeEnd = end;
+		return this;
+	}
+
+	private int[] computeGenerations() {
+		final int count = revisionCount();
+		int[] gen = new int[count];
+		for (int i = 0; i < count; i++) {
+			int g1 = parent1[i] < 0 ? 0 : gen[parent1[i]];
+			int g2 = parent2[i] < 0 ? 0 : gen[parent2[i]];
+			gen[i] = 1 + (g1 > g2 ? g1 : g2);
+		}
+		return gen;
+	}
+
+	private void sweepAncestors(BitSet revs) {
+		for (int i = revs.length() - 1; i >= 0; i--) {
+			if (!revs.get(i)) {
+				continue;
+			}
+			if (parent1[i] >= 0) {
+				revs.set(parent1[i]);
+			}
+			if (parent2[i] >= 0) {
+				revs.set(parent2[i]);
+			}
+		}
+	}
+
+	private void sweepDescendants(BitSet revs) {
+		int start = revs.nextSetBit(0);
+		if (start < 0) {
+			return;
+		}
+		for (int i = start + 1, count = revisionCount(); i < count; i++) {
+			int p1 = parent1[i], p2 = parent2[i];
+			if ((p1 >= 0 && revs.get(p1)) || (p2 >= 0 && revs.get(p2))) {
+				revs.set(i);
+			}
+		}
+	}
+}
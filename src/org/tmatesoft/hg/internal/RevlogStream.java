@@ -21,6 +21,7 @@ import static org.tmatesoft.hg.repo.HgRepository.TIP;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.zip.Inflater;
 
 import org.tmatesoft.hg.core.HgBadStateException;
@@ -44,17 +45,7 @@ import org.tmatesoft.hg.repo.HgRepository;
  */
 public class RevlogStream {
 
-	/*
-	 * makes sense for index with inline data only - actual offset of the record in the .i file (record entry + revision * record size))
-	 * 
-	 * long[] in fact (there are 8-bytes field in the revlog)
-	 * However, (a) DataAccess currently doesn't operate with long seek/length
-	 * and, of greater significance, (b) files with inlined data are designated for smaller files,  
-	 * guess, about 130 Kb, and offset there won't ever break int capacity
-	 */
-	private int[] indexRecordOffset;  
-	private int[] baseRevisions;
-	private boolean inline = false;
+	private volatile Outline outline; // published once complete, never modified afterwards
 	private final File indexFile;
 	private final DataAccessProvider dataAccess;
 
@@ -77,8 +68,7 @@ public class RevlogStream {
 	}
 	
 	public int revisionCount() {
-		initOutline();
-		return baseRevisions.length;
+		return initOutline().baseRevisions.length;
 	}
 	
 	/**
@@ -145,6 +135,15 @@ public class RevlogStream {
 		}
 	}
 	
+	/**
+	 * @return index of the revision that starts delta chain of the supplied one, i.e. the closest one with complete content 
+	 * @throws HgInvalidRevisionException if revisionIndex argument doesn't represent a valid record in the revlog
+	 */
+	public int baseRevision(int revisionIndex) throws HgInvalidRevisionException {
+		revisionIndex = checkRevisionIndex(revisionIndex);
+		return getBaseRevision(revisionIndex);
+	}
+
 	// Perhaps, RevlogStream should be limited to use of plain int revisions for access,
 	// while Nodeids should be kept on the level up, in Revlog. Guess, Revlog better keep
 	// map of nodeids, and once this comes true, we may get rid of this method.
@@ -155,7 +154,8 @@ public class RevlogStream {
 	 */
 	public int findRevisionIndex(Nodeid nodeid) throws HgInvalidControlFileException {
 		// XXX this one may be implemented with iterate() once there's mechanism to stop iterations
-		final int indexSize = revisionCount();
+		final Outline o = initOutline();
+		final int indexSize = o.baseRevisions.length;
 		DataAccess daIndex = getIndexStream();
 		try {
 			byte[] nodeidBuf = new byte[20];
@@ -167,7 +167,7 @@ public class RevlogStream {
 				if (nodeid.equalsTo(nodeidBuf)) {
 					return i;
 				}
-				daIndex.skip(inline ? 12 + compressedLen : 12);
+				daIndex.skip(o.inline ? 12 + compressedLen : 12);
 			}
 		} catch (IOException ex) {
 			throw new HgInvalidControlFileException("Failed", ex, indexFile).setRevision(nodeid);
@@ -177,14 +177,62 @@ public class RevlogStream {
 		return BAD_REVISION;
 	}
 
+	/**
+	 * Batch counterpart of {@link #findRevisionIndex(Nodeid)}, looks up all supplied revisions with a single pass over the index,
+	 * stops as soon as all of them are found. Doesn't instantiate {@link Nodeid Nodeids} for index records.
+	 * 
+	 * @return array of the same length as argument, with revision indexes, or {@link HgRepository#BAD_REVISION} for unknown revisions
+	 * @throws HgInvalidControlFileException if attempt to read index file failed
+	 */
+	public int[] findRevisionIndexes(Nodeid[] nodeids) throws HgInvalidControlFileException {
+		final int[] rv = new int[nodeids.length];
+		Arrays.fill(rv, BAD_REVISION);
+		// first 4 bytes of the nodeid (same as Nodeid#hashCode) serve as a quick filter
+		final int[] hashes = new int[nodeids.length];
+		for (int i = 0; i < nodeids.length; i++) {
+			hashes[i] = nodeids[i].hashCode();
+		}
+		final int[] sortedHashes = hashes.clone();
+		Arrays.sort(sortedHashes);
+		int toFind = nodeids.length;
+		final Outline o = initOutline();
+		final int indexSize = o.baseRevisions.length;
+		DataAccess daIndex = getIndexStream();
+		try {
+			byte[] nodeidBuf = new byte[20];
+			for (int i = 0; i < indexSize && toFind > 0; i++) {
+				daIndex.skip(8);
+				int compressedLen = daIndex.readInt();
+				daIndex.skip(20);
+				daIndex.readBytes(nodeidBuf, 0, 20);
+				final byte[] b = nodeidBuf;
+				int h = b[0] << 24 | (b[1] & 0xFF) << 16 | (b[2] & 0xFF) << 8 | (b[3] & 0xFF);
+				if (Arrays.binarySearch(sortedHashes, h) >= 0) {
+					for (int j = 0; j < nodeids.length; j++) {
+						if (rv[j] == BAD_REVISION && hashes[j] == h && nodeids[j].equalsTo(nodeidBuf)) {
+							rv[j] = i;
+							toFind--;
+						}
+					}
+				}
+				daIndex.skip(o.inline ? 12 + compressedLen : 12);
+			}
+		} catch (IOException ex) {
+			throw new HgInvalidControlFileException("Failed", ex, indexFile);
+		} finally {
+			daIndex.done();
+		}
+		return rv;
+	}
+
 
 	private final int REVLOGV1_RECORD_SIZE = 64;
 
 	// should be possible to use TIP, ALL, or -1, -2, -n notation of Hg
 	// ? boolean needsNodeid
 	public void iterate(int start, int end, boolean needData, Inspector inspector) throws HgInvalidRevisionException, HgInvalidControlFileException /*REVISIT - too general exception*/ {
-		initOutline();
-		final int indexSize = revisionCount();
+		final Outline o = initOutline();
+		final int indexSize = o.baseRevisions.length;
 		if (indexSize == 0) {
 			return;
 		}
@@ -197,7 +245,7 @@ public class RevlogStream {
 		HgInternals.checkRevlogRange(start, end, indexSize-1);
 		// XXX may cache [start .. end] from index with a single read (pre-read)
 		
-		ReaderN1 r = new ReaderN1(needData, inspector);
+		ReaderN1 r = new ReaderN1(o, needData, inspector);
 		try {
 			r.start(end - start + 1);
 			r.range(start, end);
@@ -220,7 +268,8 @@ public class RevlogStream {
 	 * @param inspector callback to process entries
 	 */
 	public void iterate(int[] sortedRevisions, boolean needData, Inspector inspector) throws HgInvalidRevisionException, HgInvalidControlFileException /*REVISIT - too general exception*/ {
-		final int indexSize = revisionCount();
+		final Outline o = initOutline();
+		final int indexSize = o.baseRevisions.length;
 		if (indexSize == 0 || sortedRevisions.length == 0) {
 			return;
 		}
@@ -231,7 +280,7 @@ public class RevlogStream {
 			throw new HgInvalidRevisionException(String.format("Can't iterate [%d, %d] in range [0..%d]", sortedRevisions[0], sortedRevisions[sortedRevisions.length - 1], indexSize), null, sortedRevisions[sortedRevisions.length - 1]);
 		}
 
-		ReaderN1 r = new ReaderN1(needData, inspector);
+		ReaderN1 r = new ReaderN1(o, needData, inspector);
 		try {
 			r.start(sortedRevisions.length);
 			for (int i = 0; i < sortedRevisions.length; ) {
@@ -263,16 +312,16 @@ public class RevlogStream {
 	}
 
 	private int getBaseRevision(int revision) {
-		return baseRevisions[revision];
+		return outline.baseRevisions[revision];
 	}
 
 	/**
-	 * @param revisionIndex shall be valid index, [0..baseRevisions.length-1]. 
+	 * @param revisionIndex shall be valid index, [0..revisionCount()-1]. 
 	 * It's advised to use {@link #checkRevisionIndex(int)} to ensure argument is correct. 
 	 * @return  offset of the revision's record in the index (.i) stream
 	 */
 	private int getIndexOffsetInt(int revisionIndex) {
-		return inline ? indexRecordOffset[revisionIndex] : revisionIndex * REVLOGV1_RECORD_SIZE;
+		return outline.indexOffset(revisionIndex);
 	}
 	
 	private int checkRevisionIndex(int revisionIndex) throws HgInvalidRevisionException {
@@ -286,21 +335,31 @@ public class RevlogStream {
 		return revisionIndex;
 	}
 
-	private void initOutline() {
-		if (baseRevisions != null && baseRevisions.length > 0) {
-			return;
+	/*
+	 * Outline is read without any lock, threads that happen to read it at the same time would get equal outlines,
+	 * and whichever gets published, it's never modified, so that any thread sees complete arrays.
+	 */
+	private Outline initOutline() {
+		Outline o = outline;
+		if (o != null && o.baseRevisions.length > 0) {
+			return o;
 		}
+		o = readOutline();
+		outline = o;
+		return o;
+	}
+
+	private Outline readOutline() {
 		DataAccess da = getIndexStream();
 		try {
 			if (da.isEmpty()) {
 				// do not fail with exception if stream is empty, it's likely intentional
-				baseRevisions = new int[0];
-				return;
+				return new Outline(new int[0], null);
 			}
 			int versionField = da.readInt();
 			da.readInt(); // just to skip next 4 bytes of offset + flags
 			final int INLINEDATA = 1 << 16;
-			inline = (versionField & INLINEDATA) != 0;
+			final boolean inline = (versionField & INLINEDATA) != 0;
 			IntVector resBases, resOffsets = null;
 			int entryCountGuess = da.length() / REVLOGV1_RECORD_SIZE;
 			if (inline) {
@@ -336,11 +395,7 @@ public class RevlogStream {
 				}
 				if (da.isEmpty()) {
 					// fine, done then
-					baseRevisions = resBases.toArray(true);
-					if (inline) {
-						indexRecordOffset = resOffsets.toArray(true);
-					}
-					break;
+					return new Outline(resBases.toArray(true), inline ? resOffsets.toArray(true) : null);
 				} else {
 					// start reading next record
 					long l = da.readLong();
@@ -350,17 +405,46 @@ public class RevlogStream {
 		} catch (IOException ex) {
 			ex.printStackTrace(); // FIXME, log error is not enough
 			// too bad, no outline then, but don't fail with NPE
-			baseRevisions = new int[0];
+			return new Outline(new int[0], null);
 		} finally {
 			da.done();
 		}
 	}
+
+	/**
+	 * Base revisions and (for index with inline data) offsets of index records, as read from the index file.
+	 * Immutable, may be shared between threads.
+	 */
+	private final class Outline {
+		final int[] baseRevisions;
+		/*
+		 * makes sense for index with inline data only - actual offset of the record in the .i file (record entry + revision * record size))
+		 * 
+		 * long[] in fact (there are 8-bytes field in the revlog)
+		 * However, (a) DataAccess currently doesn't operate with long seek/length
+		 * and, of greater significance, (b) files with inlined data are designated for smaller files,  
+		 * guess, about 130 Kb, and offset there won't ever break int capacity
+		 */
+		final int[] indexRecordOffset; // null unless inline
+		final boolean inline;
+
+		Outline(int[] bases, int[] recordOffsets) {
+			baseRevisions = bases;
+			indexRecordOffset = recordOffsets;
+			inline = recordOffsets != null;
+		}
+
+		int indexOffset(int revisionIndex) {
+			return inline ? indexRecordOffset[revisionIndex] : revisionIndex * REVLOGV1_RECORD_SIZE;
+		}
+	}
 	
 	/**
 	 * operation with single file open/close and multiple diverse reads.
 	 * XXX initOutline might need similar extraction to keep N1 format knowledge  
 	 */
 	class ReaderN1 {
+		private final Outline outline;
 		private final Inspector inspector;
 		private final boolean needData;
 		private DataAccess daIndex = null, daData = null;
@@ -371,15 +455,16 @@ public class RevlogStream {
 //		private long applyTime, inspectorTime; // TIMING
 
 
-		public ReaderN1(boolean needData, Inspector insp) {
+		public ReaderN1(Outline revlogOutline, boolean needData, Inspector insp) {
 			assert insp != null;
+			outline = revlogOutline;
 			this.needData = needData;
 			inspector = insp;
 		}
 		
 		public void start(int totalWork) {
 			daIndex = getIndexStream();
-			if (needData && !inline) {
+			if (needData && !outline.inline) {
 				daData = getDataStream();
 			}
 			if (inspector instanceof Lifecycle) {
@@ -408,7 +493,7 @@ public class RevlogStream {
 			byte[] nodeidBuf = new byte[20];
 			int i;
 			// it (i.e. replace with i >= start)
-			if (needData && (i = getBaseRevision(start)) < start) {
+			if (needData && (i = outline.baseRevisions[start]) < start) {
 				// if lastRevisionRead in [baseRevision(start), start)  can reuse lastUserData
 				// doesn't make sense to reuse if lastRevisionRead == start (too much to change in the cycle below). 
 				if (lastRevisionRead != BAD_REVISION && i <= lastRevisionRead && lastRevisionRead < start) {
@@ -424,7 +509,7 @@ public class RevlogStream {
 				i = start;
 			}
 			
-			daIndex.seek(getIndexOffsetInt(i));
+			daIndex.seek(outline.indexOffset(i));
 			//
 			// reuse some instances
 			final Patch patch = new Patch();
@@ -434,9 +519,9 @@ public class RevlogStream {
 			//
 			
 			for (; i <= end; i++ ) {
-				if (inline && needData) {
+				if (outline.inline && needData) {
 					// inspector reading data (though FilterDataAccess) may have affected index position
-					daIndex.seek(getIndexOffsetInt(i));
+					daIndex.seek(outline.indexOffset(i));
 				}
 				long l = daIndex.readLong(); // 0
 				long offset = i == 0 ? 0 : (l >>> 16);
@@ -455,9 +540,9 @@ public class RevlogStream {
 				if (needData) {
 					int streamOffset;
 					DataAccess streamDataAccess;
-					if (inline) {
+					if (outline.inline) {
 						streamDataAccess = daIndex;
-						streamOffset = getIndexOffsetInt(i) + REVLOGV1_RECORD_SIZE; // don't need to do seek as it's actual position in the index stream
+						streamOffset = outline.indexOffset(i) + REVLOGV1_RECORD_SIZE; // don't need to do seek as it's actual position in the index stream
 					} else {
 						streamOffset = (int) offset;
 						streamDataAccess = daData;
@@ -496,7 +581,7 @@ public class RevlogStream {
 						userDataAccess = new ByteArrayDataAccess(userData);
 					}
 				} else {
-					if (inline) {
+					if (outline.inline) {
 						daIndex.skip(compressedLen);
 					}
 				}
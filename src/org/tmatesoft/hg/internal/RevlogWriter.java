@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2012 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import static org.tmatesoft.hg.repo.HgRepository.BAD_REVISION;
+import static org.tmatesoft.hg.repo.HgRepository.TIP;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+import org.tmatesoft.hg.core.HgBadStateException;
+import org.tmatesoft.hg.core.HgException;
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.core.SessionContext;
+
+/**
+ * Appends revisions of a bundle group (e.g. received from a server) to a revlog, either new or existing one.
+ * Revisions of a group come as patches, first one against its first parent, each next against the one before.
+ * Patch gets written as is when it's against last revision of the revlog, otherwise complete revision is written.
+ * Revisions already present in the revlog are checked, but not written once again.
+ *
+ * Not thread-safe, one instance per group.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class RevlogWriter {
+	private static final int INLINEDATA = 1 << 16;
+
+	private final String filename; // human-readable name of the file being written, for log/exception purposes
+	private final File indexFile, dataFile;
+	private final RevlogStream existing; // null for a new revlog
+	private final long indexFileLength, dataFileLength; // original length of existing files, to roll changes back
+	private final boolean inline;
+	private OutputStream indexStream, dataStream; // same stream for inline revlog
+	private int base;
+	private long offset;
+	// texts of the last revision and the one being added, reused, as each revision is a patch of the previous one
+	private byte[] prevRevContent = new byte[0], content = new byte[0];
+	private int prevRevLength = 0;
+	private int prevRevIndex = BAD_REVISION; // revision with text in prevRevContent, -1 for empty text
+	private final NodeidIndex revisions; // all revisions of the revlog, existing and new, with their indexes
+
+	/**
+	 * @param ctx session to access existing revlog, if any
+	 * @param hgDir repository's .hg directory
+	 * @param storeFilename index file name, relative to <code>hgDir</code>
+	 */
+	public RevlogWriter(SessionContext ctx, File hgDir, String storeFilename) {
+		filename = storeFilename;
+		indexFile = new File(hgDir, storeFilename);
+		dataFile = new File(indexFile.getParentFile(), indexFile.getName().substring(0, indexFile.getName().length() - 1) + "d");
+		try {
+			if (indexFile.length() > 0) {
+				existing = new RevlogStream(new DataAccessProvider(ctx), indexFile);
+				final int count = existing.revisionCount();
+				revisions = new NodeidIndex(count + 16);
+				existing.iterate(0, TIP, false, new RevlogStream.Inspector() {
+
+					public void next(int revisionIndex, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess data) {
+						revisions.add(Nodeid.fromBinary(nodeid, 0));
+					}
+				});
+				DataAccess da = existing.getIndexStream();
+				try {
+					inline = (da.readInt() & INLINEDATA) != 0;
+				} finally {
+					da.done();
+				}
+				indexFileLength = indexFile.length();
+				dataFileLength = inline ? -1 : dataFile.length();
+				// offset in the index record tells position in the data stream, as if there were no index records
+				offset = inline ? indexFileLength - count * 64 /* REVLOGV1_RECORD_SIZE */ : dataFileLength;
+				base = existing.baseRevision(count - 1);
+			} else {
+				existing = null;
+				revisions = new NodeidIndex(0);
+				inline = true;
+				indexFileLength = dataFileLength = -1;
+				offset = 0;
+				base = -1;
+				indexFile.getParentFile().mkdirs();
+			}
+			indexStream = new FileOutputStream(indexFile, true);
+			dataStream = inline ? indexStream : new FileOutputStream(dataFile, true);
+		} catch (IOException ex) {
+			throw new HgBadStateException(ex);
+		} catch (HgException ex) {
+			throw new HgBadStateException(ex);
+		}
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * @return number of revisions in the revlog, including those added with this writer
+	 */
+	public int revisionCount() {
+		return revisions.size();
+	}
+
+	/**
+	 * @return revision index in the revlog, or {@link org.tmatesoft.hg.repo.HgRepository#BAD_REVISION} if unknown
+	 */
+	public int revisionIndex(Nodeid nid) {
+		return revisions.indexOf(nid);
+	}
+
+	public void close() {
+		try {
+			prevRevContent = content = null;
+			if (dataStream != indexStream) {
+				dataStream.close();
+			}
+			indexStream.close();
+		} catch (IOException ex) {
+			throw new HgBadStateException(ex);
+		}
+	}
+
+	/**
+	 * Brings revlog files back to the state they were before this writer, closes the writer if not yet.
+	 */
+	public void rollback() throws IOException {
+		try {
+			close();
+		} catch (HgBadStateException ex) {
+			// files get truncated anyway
+		}
+		if (existing == null) {
+			indexFile.delete();
+			return;
+		}
+		truncate(indexFile, indexFileLength);
+		if (!inline) {
+			truncate(dataFile, dataFileLength);
+		}
+	}
+
+	private static void truncate(File f, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private int knownRevision(Nodeid p) {
+		if (p.isNull()) {
+			return -1;
+		}
+		final int i = revisions.indexOf(p);
+		if (i != BAD_REVISION) {
+			return i;
+		}
+		throw new HgBadStateException(String.format(
+				"Can't find index of %s for file %s", p.shortNotation(),
+				filename));
+	}
+
+	// text of the revision the first patch of the group applies to
+	private void readBase(final int revisionIndex) throws IOException {
+		prevRevIndex = revisionIndex;
+		prevRevLength = 0;
+		if (revisionIndex == -1) {
+			return;
+		}
+		try {
+			existing.iterate(revisionIndex, revisionIndex, true, new RevlogStream.Inspector() {
+
+				public void next(int revisionIndex, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess data) {
+					try {
+						prevRevContent = data.byteArray();
+						prevRevLength = prevRevContent.length;
+					} catch (IOException ex) {
+						throw new HgBadStateException(ex);
+					}
+				}
+			});
+		} catch (HgException ex) {
+			throw new IOException(String.format("Failed to read revision %d of %s", revisionIndex, filename), ex);
+		}
+	}
+
+	/*
+	 * Revision text is needed to check revision's hash, and as a base for the next patch.
+	 */
+	public void add(Nodeid p1, Nodeid p2, Nodeid node, int link, byte[] patchContent, Buffers wb) throws IOException {
+		final int p1Rev = knownRevision(p1), p2Rev = knownRevision(p2);
+		if (prevRevIndex == BAD_REVISION) {
+			// first revision of the group
+			readBase(p1Rev);
+		}
+		final Patch patch = wb.patch;
+		patch.read(new ByteArrayDataAccess(patchContent));
+		final int contentLength = patch.outcomeLength(prevRevLength);
+		if (content.length < contentLength) {
+			content = new byte[Math.max(contentLength, content.length + (content.length >>> 1))];
+		}
+		patch.apply(new ByteArrayDataAccess(prevRevContent, 0, prevRevLength), content);
+		byte[] calculated = wb.dh.sha1(p1.toByteArray(), p2.toByteArray()).update(content, 0, contentLength).done().asBinary();
+		if (!node.equalsTo(calculated)) {
+			throw new HgBadStateException(
+					String.format(
+							"Checksum failed: expected %s, calculated %s. File %s",
+							node, Nodeid.fromBinary(calculated, 0), filename));
+		}
+		final int knownIndex = revisions.indexOf(node);
+		if (knownIndex != BAD_REVISION) {
+			// got it already, still the base for the next one
+			swapContent(knownIndex, contentLength);
+			return;
+		}
+		final int revisionIndex = revisions.size();
+		// patch is against previous revision in the revlog, unless the group started elsewhere or skipped known revisions
+		boolean writeComplete = prevRevIndex == -1 || prevRevIndex != revisionIndex - 1;
+		if (p1.isNull() && p2.isNull() /*
+										 * or forced flag, does
+										 * REVIDX_PUNCHED_FLAG indicate
+										 * that?
+										 */) {
+			writeComplete = true;
+		}
+		writeComplete = writeComplete
+				|| patchContent.length >= (/* 3/4 of actual */contentLength - (contentLength >>> 2));
+		if (writeComplete) {
+			base = revisionIndex;
+		}
+		final byte[] sourceData = writeComplete ? content : patchContent;
+		final int sourceLength = writeComplete ? contentLength : patchContent.length;
+		// compression is not worth it unless it takes less than 3/4 of the original
+		final int compressedLength = wb.compress(sourceData, sourceLength, sourceLength - (sourceLength >>> 2));
+		final boolean compressed = compressedLength != -1;
+		final int dataLength = compressed ? compressedLength : sourceLength + 1 /*'u' prefix*/;
+
+		ByteBuffer header = wb.header;
+		header.clear();
+		if (revisionIndex == 0) {
+			header.putInt(1 /* RevlogNG */| INLINEDATA);
+			header.putInt(0);
+		} else {
+			header.putLong(offset << 16);
+		}
+		header.putInt(dataLength);
+		header.putInt(contentLength);
+		header.putInt(base);
+		header.putInt(link);
+		header.putInt(p1Rev);
+		header.putInt(p2Rev);
+		header.put(node.toByteArray());
+		// 12 bytes left are zeros, never written
+		indexStream.write(header.array());
+		if (compressed) {
+			dataStream.write(wb.compressed, 0, compressedLength);
+		} else {
+			dataStream.write('u');
+			dataStream.write(sourceData, 0, sourceLength);
+		}
+		//
+		offset += dataLength;
+		revisions.add(node);
+		swapContent(revisionIndex, contentLength);
+	}
+
+	// revision just added is the base for the next one
+	private void swapContent(int revisionIndex, int contentLength) {
+		byte[] t = prevRevContent;
+		prevRevContent = content;
+		prevRevLength = contentLength;
+		prevRevIndex = revisionIndex;
+		content = t;
+	}
+
+	/**
+	 * Deflater, digest and other buffers, owned by a thread that writes a revlog, reused for subsequent revisions
+	 */
+	public static class Buffers {
+		final DigestHelper dh = new DigestHelper();
+		final Patch patch = new Patch();
+		final ByteBuffer header = ByteBuffer.allocate(64 /* REVLOGV1_RECORD_SIZE */);
+		private final Deflater deflater = new Deflater();
+		byte[] compressed = new byte[4096];
+
+		/**
+		 * Compressed data goes to {@link #compressed}
+		 * @return length of compressed data, or -1 if it takes no less than <code>limit</code> bytes
+		 */
+		int compress(byte[] sourceData, int length, int limit) {
+			if (compressed.length < limit) {
+				compressed = new byte[Math.max(limit, compressed.length + (compressed.length >>> 1))];
+			}
+			deflater.reset();
+			deflater.setInput(sourceData, 0, length);
+			deflater.finish();
+			int n = 0;
+			while (!deflater.finished()) {
+				if (n >= limit) {
+					return -1; // no reason to go on
+				}
+				n += deflater.deflate(compressed, n, limit - n);
+			}
+			// deflater may finish right at the limit, that's no gain either
+			return n < limit ? n : -1;
+		}
+
+		public void dispose() {
+			deflater.end();
+		}
+	}
+}
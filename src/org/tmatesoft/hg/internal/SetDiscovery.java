@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2012 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import static org.tmatesoft.hg.repo.HgRepository.BAD_REVISION;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.tmatesoft.hg.core.HgRemoteConnectionException;
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.repo.HgRemoteRepository;
+import org.tmatesoft.hg.util.CancelSupport;
+import org.tmatesoft.hg.util.CancelledException;
+
+/**
+ * Finds revisions common to local and remote repositories asking server whether it knows samples of local revisions,
+ * same as Mercurial's <code>setdiscovery</code> does. Each answer decides on ancestors (if known) or descendants
+ * (if unknown) of the sampled revisions, thus number of round trips doesn't depend on length of branches the way
+ * 'branches' and 'between' search does.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+final class SetDiscovery {
+	private static final int INITIAL_SAMPLE_SIZE = 100;
+	private static final int FULL_SAMPLE_SIZE = 200;
+
+	private final RevisionGraph graph;
+	private final HgRemoteRepository remoteRepo;
+	private final Random random = new Random();
+	private int[] childrenStart, children; // lazy, children of each revision, for sampling from roots
+	private int roundTrips;
+
+	SetDiscovery(RevisionGraph localGraph, HgRemoteRepository hgRemote) {
+		graph = localGraph;
+		remoteRepo = hgRemote;
+	}
+
+	/**
+	 * @param remoteHeads heads of the remote repository
+	 * @return heads of the revision set known to both repositories, empty if there's nothing in common
+	 */
+	public List<Nodeid> findCommonHeads(List<Nodeid> remoteHeads, CancelSupport cancelSupport) throws HgRemoteConnectionException, CancelledException {
+		final int total = graph.revisionCount();
+		BitSet common = new BitSet(total);
+		boolean allRemoteHeadsKnown = true;
+		for (Nodeid n : remoteHeads) {
+			if (n.isNull()) {
+				continue; // empty remote
+			}
+			int x = graph.revisionIndex(n);
+			if (x == BAD_REVISION) {
+				allRemoteHeadsKnown = false;
+			} else {
+				common.set(x);
+			}
+		}
+		if (allRemoteHeadsKnown) {
+			return toNodeids(common);
+		}
+		// remote heads we know are the first (implicit) answer
+		common = graph.ancestors(common);
+		BitSet missing = new BitSet(total); // local revisions remote doesn't have
+		BitSet undecided = new BitSet(total);
+		undecided.set(0, total);
+		undecided.andNot(common);
+		boolean initial = true;
+		while (!undecided.isEmpty()) {
+			cancelSupport.checkCancelled();
+			final int[] sample;
+			if (initial) {
+				// cheap sample, along the first parents of the heads, to decide on long linear history at once
+				sample = takeQuickSample(undecided, INITIAL_SAMPLE_SIZE, common.isEmpty());
+				initial = false;
+			} else {
+				sample = takeFullSample(undecided, FULL_SAMPLE_SIZE);
+			}
+			ArrayList<Nodeid> query = new ArrayList<Nodeid>(sample.length);
+			for (int r : sample) {
+				query.add(graph.revision(r));
+			}
+			boolean[] known = remoteRepo.known(query);
+			roundTrips++;
+			BitSet yes = new BitSet(total), no = new BitSet(total);
+			for (int i = 0; i < sample.length; i++) {
+				(known[i] ? yes : no).set(sample[i]);
+			}
+			common.or(graph.ancestors(yes));
+			missing.or(graph.descendants(no));
+			undecided.andNot(common);
+			undecided.andNot(missing);
+		}
+		return toNodeids(graph.heads(common));
+	}
+
+	/**
+	 * @return number of 'known' queries sent during last discovery
+	 */
+	public int getRoundTrips() {
+		return roundTrips;
+	}
+
+	private List<Nodeid> toNodeids(BitSet revisions) {
+		if (revisions.isEmpty()) {
+			return Collections.emptyList();
+		}
+		ArrayList<Nodeid> rv = new ArrayList<Nodeid>(revisions.cardinality());
+		for (int i = revisions.nextSetBit(0); i >= 0; i = revisions.nextSetBit(i+1)) {
+			rv.add(graph.revision(i));
+		}
+		return rv;
+	}
+
+	// heads of the set, and revisions at exponentially growing distance from them, up to the sample size
+	private int[] takeQuickSample(BitSet undecided, int size, boolean wholeGraph) {
+		if (undecided.cardinality() <= size) {
+			return toArray(undecided);
+		}
+		final BitSet heads = graph.heads(undecided);
+		BitSet sample = (BitSet) heads.clone();
+		if (sample.cardinality() < size) {
+			// sample may go beyond undecided revisions when there's no information yet
+			addDistantRevisions(sample, heads, wholeGraph ? null : undecided, false, size);
+		}
+		return toArray(sample);
+	}
+
+	// revisions at exponentially growing distance both from heads and roots of undecided set, randomly thinned or extended up to the sample size
+	private int[] takeFullSample(BitSet undecided, int size) {
+		if (undecided.cardinality() <= size) {
+			return toArray(undecided);
+		}
+		final BitSet always = graph.heads(undecided);
+		final int desired = size - always.cardinality();
+		if (desired <= 0) {
+			return toArray(always);
+		}
+		BitSet sample = new BitSet(graph.revisionCount());
+		addDistantRevisions(sample, always, undecided, false, -1);
+		addDistantRevisions(sample, roots(undecided), undecided, true, -1);
+		sample.andNot(always);
+		int[] rv = toArray(sample);
+		if (rv.length > desired) {
+			shuffle(rv);
+			rv = Arrays.copyOf(rv, desired);
+		} else if (rv.length < desired) {
+			BitSet rest = (BitSet) undecided.clone();
+			rest.andNot(sample);
+			rest.andNot(always);
+			int[] more = toArray(rest);
+			shuffle(more);
+			int[] x = Arrays.copyOf(rv, desired);
+			System.arraycopy(more, 0, x, rv.length, desired - rv.length);
+			rv = x;
+		}
+		int[] result = Arrays.copyOf(rv, rv.length + always.cardinality());
+		int i = rv.length;
+		for (int r = always.nextSetBit(0); r >= 0; r = always.nextSetBit(r+1)) {
+			result[i++] = r;
+		}
+		return result;
+	}
+
+	/*
+	 * Breadth-first walk from start revisions (towards parents, or children if inverse), limited to the revisions of the scope
+	 * (if not null). Revisions at distance 1, 2, 4, 8... go to the sample, until it gets limit size (if not negative).
+	 */
+	private void addDistantRevisions(BitSet sample, BitSet start, BitSet scope, boolean inverse, int limit) {
+		final int total = graph.revisionCount();
+		int[] distance = new int[total];
+		int[] queue = new int[total];
+		int head = 0, tail = 0;
+		for (int r = start.nextSetBit(0); r >= 0; r = start.nextSetBit(r+1)) {
+			queue[tail++] = r;
+			distance[r] = 1;
+		}
+		int factor = 1;
+		while (head < tail) {
+			// each revision gets queued once, distance tells it's been queued already
+			final int r = queue[head++];
+			final int d = distance[r];
+			if (d > factor) {
+				factor <<= 1;
+			}
+			if (d == factor) {
+				sample.set(r);
+				if (limit > 0 && sample.cardinality() >= limit) {
+					return;
+				}
+			}
+			if (inverse) {
+				initChildren();
+				for (int i = childrenStart[r], end = childrenStart[r+1]; i < end; i++) {
+					tail = enqueue(children[i], d, scope, distance, queue, tail);
+				}
+			} else {
+				tail = enqueue(graph.firstParent(r), d, scope, distance, queue, tail);
+				tail = enqueue(graph.secondParent(r), d, scope, distance, queue, tail);
+			}
+		}
+	}
+
+	private static int enqueue(int r, int d, BitSet scope, int[] distance, int[] queue, int tail) {
+		if (r < 0 || (scope != null && !scope.get(r)) || distance[r] != 0) {
+			return tail;
+		}
+		distance[r] = d + 1;
+		queue[tail] = r;
+		return tail + 1;
+	}
+
+	// revisions of the set with no parents in the set
+	private BitSet roots(BitSet revisions) {
+		BitSet rv = new BitSet(graph.revisionCount());
+		for (int r = revisions.nextSetBit(0); r >= 0; r = revisions.nextSetBit(r+1)) {
+			int p1 = graph.firstParent(r), p2 = graph.secondParent(r);
+			if ((p1 < 0 || !revisions.get(p1)) && (p2 < 0 || !revisions.get(p2))) {
+				rv.set(r);
+			}
+		}
+		return rv;
+	}
+
+	private void initChildren() {
+		if (children != null) {
+			return;
+		}
+		final int total = graph.revisionCount();
+		childrenStart = new int[total + 1];
+		for (int r = 0; r < total; r++) {
+			int p1 = graph.firstParent(r), p2 = graph.secondParent(r);
+			if (p1 >= 0) {
+				childrenStart[p1 + 1]++;
+			}
+			if (p2 >= 0 && p2 != p1) {
+				childrenStart[p2 + 1]++;
+			}
+		}
+		for (int r = 0; r < total; r++) {
+			childrenStart[r + 1] += childrenStart[r];
+		}
+		children = new int[childrenStart[total]];
+		int[] fill = childrenStart.clone();
+		for (int r = 0; r < total; r++) {
+			int p1 = graph.firstParent(r), p2 = graph.secondParent(r);
+			if (p1 >= 0) {
+				children[fill[p1]++] = r;
+			}
+			if (p2 >= 0 && p2 != p1) {
+				children[fill[p2]++] = r;
+			}
+		}
+	}
+
+	private void shuffle(int[] values) {
+		for (int i = values.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int t = values[i];
+			values[i] = values[j];
+			values[j] = t;
+		}
+	}
+
+	private static int[] toArray(BitSet revisions) {
+		int[] rv = new int[revisions.cardinality()];
+		for (int i = 0, r = revisions.nextSetBit(0); r >= 0; r = revisions.nextSetBit(r+1)) {
+			rv[i++] = r;
+		}
+		return rv;
+	}
+}
@@ -24,7 +24,6 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -36,7 +35,6 @@ import java.util.regex.Pattern;
 
 import org.tmatesoft.hg.core.HgException;
 import org.tmatesoft.hg.core.HgInvalidControlFileException;
-import org.tmatesoft.hg.core.HgInvalidRevisionException;
 import org.tmatesoft.hg.core.Nodeid;
 import org.tmatesoft.hg.internal.Experimental;
 import org.tmatesoft.hg.repo.HgChangelog.RawChangeset;
@@ -75,23 +73,25 @@ public class HgBranches {
 			String[] cacheIdentity = spacePattern.split(line.trim());
 			lastInCache = Integer.parseInt(cacheIdentity[1]);
 			final int lastKnownRepoRevIndex = repo.getChangelog().getLastRevision();
-			if (lastInCache > lastKnownRepoRevIndex || !repo.getChangelog().getRevision(lastKnownRepoRevIndex).equals(Nodeid.fromAscii(cacheIdentity[0]))) {
+			// cache recorded at lastInCache is good for any later tip, as long as the revision there is still the same
+			if (lastInCache > lastKnownRepoRevIndex || !repo.getChangelog().getRevision(lastInCache).equals(Nodeid.fromAscii(cacheIdentity[0]))) {
 				// there are chances cache file got invalid entries due to e.g. rollback operation
 				return -1;
 			}
 			while ((line = br.readLine()) != null) {
-				String[] elements = spacePattern.split(line.trim());
-				if (elements.length != 2) {
+				line = line.trim();
+				// branch names may contain spaces, nodeid is always first 
+				int space = line.indexOf(' ');
+				if (space != 40 || line.length() == 41) {
 					// bad entry
 					continue;
 				}
-				// I assume split returns substrings of the original string, hence copy of a branch name
-				String branchName = new String(elements[elements.length-1]);
-				List<Nodeid> heads = branchHeads.get(elements[1]);
+				String branchName = line.substring(41);
+				List<Nodeid> heads = branchHeads.get(branchName);
 				if (heads == null) {
 					branchHeads.put(branchName, heads = new LinkedList<Nodeid>());
 				}
-				heads.add(Nodeid.fromAscii(elements[0]));
+				heads.add(Nodeid.fromAscii(line.substring(0, 40)));
 			}
 			for (Map.Entry<String, List<Nodeid>> e : branchHeads.entrySet()) {
 				Nodeid[] heads = e.getValue().toArray(new Nodeid[e.getValue().size()]);
@@ -106,13 +106,14 @@ public class HgBranches {
 		} catch (NumberFormatException ex) {
 			repo.getContext().getLog().warn(getClass(), ex, null);
 			// FALL THROUGH
+		} catch (IllegalArgumentException ex) {
+			// malformed nodeid
+			repo.getContext().getLog().warn(getClass(), ex, null);
+			// FALL THROUGH
 		} catch (HgInvalidControlFileException ex) {
 			// shall not happen, thus log as error
 			repo.getContext().getLog().error(getClass(), ex, null);
 			// FALL THROUGH
-		} catch (HgInvalidRevisionException ex) {
-			repo.getContext().getLog().error(getClass(), ex, null);
-			// FALL THROUGH
 		} finally {
 			if (br != null) {
 				try {
@@ -122,111 +123,120 @@ public class HgBranches {
 				}
 			}
 		}
+		branches.clear(); // some branches might have been read before an error
 		return -1; // deliberately not lastInCache, to avoid anything but -1 when 1st line was read and there's error is in lines 2..end
 	}
 
 	void collect(final ProgressSupport ps) throws HgInvalidControlFileException {
 		branches.clear();
-		ps.start(1 + repo.getChangelog().getRevisionCount() * 2);
-		//
+		final HgChangelog clog = repo.getChangelog();
+		final int lastRevision = clog.getLastRevision();
 		int lastCached = readCache();
-		isCacheActual = lastCached == repo.getChangelog().getLastRevision();
+		ps.start(1 + (lastRevision - lastCached) * 2);
+		//
+		// Figure out revision indexes of cached heads, all at once. Any head unknown to the changelog means
+		// the cache was written for a different history, and can't be trusted.
+		int[] cachedHeadIndexes = headIndexes(clog);
+		for (int i = 0; i < cachedHeadIndexes.length; i++) {
+			if (cachedHeadIndexes[i] == HgRepository.BAD_REVISION || cachedHeadIndexes[i] > lastCached) {
+				repo.getContext().getLog().info(getClass(), "Branch heads cache doesn't match the repository, rebuilding");
+				branches.clear();
+				lastCached = -1;
+				cachedHeadIndexes = new int[0];
+				break;
+			}
+		}
+		isCacheActual = lastCached == lastRevision;
+		// revision index for each head, cached and new
+		final HashMap<Nodeid, Integer> headIndexes = new HashMap<Nodeid, Integer>();
 		if (!isCacheActual) {
-			final HgChangelog.ParentWalker pw = repo.getChangelog().new ParentWalker();
-			pw.init();
-			ps.worked(repo.getChangelog().getRevisionCount());
-			// first revision branch found at
+			int i = 0;
+			for (BranchInfo bi : branches.values()) {
+				for (Nodeid h : bi.getHeads()) {
+					headIndexes.put(h, cachedHeadIndexes[i++]);
+				}
+			}
+			final int start = lastCached + 1;
+			// parents of revisions after cached, index-only pass
+			final Nodeid[] firstParent = new Nodeid[lastRevision - start + 1];
+			final Nodeid[] secondParent = new Nodeid[firstParent.length];
+			clog.walk(start, lastRevision, new HgChangelog.ParentInspector() {
+
+				public void next(int revisionIndex, Nodeid revision, int parent1, int parent2, Nodeid nidParent1, Nodeid nidParent2) {
+					firstParent[revisionIndex - start] = nidParent1;
+					secondParent[revisionIndex - start] = nidParent2;
+				}
+			});
+			ps.worked(firstParent.length);
+			// heads known so far, per branch. Start with cached heads, if any.
+			final HashMap<String, LinkedHashSet<Nodeid>> branchHeads = new HashMap<String, LinkedHashSet<Nodeid>>();
+			// first revision branch found at, only for branches not known from the cache
 			final HashMap<String, Nodeid> branchStart = new HashMap<String, Nodeid>();
-			// last revision seen for the branch
-			final HashMap<String, Nodeid> branchLastSeen = new HashMap<String, Nodeid>();
-			// revisions from the branch that have no children at all
-			final HashMap<String, List<Nodeid>> branchHeads = new HashMap<String, List<Nodeid>>();
-			// revisions that are immediate children of a node from a given branch
-			// after iteration, there are some revisions left in this map (children of a branch last revision
-			// that doesn't belong to the branch. No use of this now, perhaps can deduce isInactive (e.g.those 
-			// branches that have non-empty candidates are inactive if all their heads are roots for those left)
-			final HashMap<String, List<Nodeid>> branchHeadCandidates = new HashMap<String, List<Nodeid>>();
+			for (BranchInfo bi : branches.values()) {
+				branchHeads.put(bi.getName(), new LinkedHashSet<Nodeid>(bi.getHeads()));
+			}
 			HgChangelog.Inspector insp = new HgChangelog.Inspector() {
 				
 				public void next(int revisionNumber, Nodeid nodeid, RawChangeset cset) {
 					String branchName = cset.branch();
-					if (!branchStart.containsKey(branchName)) {
+					LinkedHashSet<Nodeid> heads = branchHeads.get(branchName);
+					if (heads == null) {
+						branchHeads.put(branchName, heads = new LinkedHashSet<Nodeid>());
 						branchStart.put(branchName, nodeid);
-						branchHeads.put(branchName, new LinkedList<Nodeid>());
-						branchHeadCandidates.put(branchName, new LinkedList<Nodeid>());
-					} else {
-						final List<Nodeid> headCandidates = branchHeadCandidates.get(branchName);
-						if (headCandidates.remove(nodeid)) {
-							// likely we don't need to keep parent anymore, as we found at least 1 child thereof to be at the same branch
-							// however, it's possible the child we found is a result of an earlier fork, and revision in the 
-							// branchLastSeen is 'parallel' head, which needs to be kept
-							Nodeid lastSeenInBranch = branchLastSeen.get(branchName);
-							// check if current revision is on descendant line. Seems direct parents check is enough
-							if (pw.safeFirstParent(nodeid).equals(lastSeenInBranch) || pw.safeSecondParent(nodeid).equals(lastSeenInBranch)) {
-								branchLastSeen.remove(branchName);
-							}
-						}
-					}
-					List<Nodeid> immediateChildren = pw.directChildren(nodeid);
-					if (immediateChildren.size() > 0) {
-						// 1) children may be in another branch
-						// and unless we later came across another element from this branch,
-						// we need to record all these as potential heads
-						//
-						// 2) head1 with children in different branch, and head2 in this branch without children
-						branchLastSeen.put(branchName, nodeid);
-						branchHeadCandidates.get(branchName).addAll(immediateChildren);
-					} else {
-						// no more children known for this node, it's (one of the) head of the branch
-						branchHeads.get(branchName).add(nodeid);
 					}
+					// Head is a revision without children in the same branch. Heads of the branch are its revisions only,
+					// hence no need to check parent's branch: parent found among heads got a child in the same branch
+					heads.remove(firstParent[revisionNumber - start]);
+					heads.remove(secondParent[revisionNumber - start]);
+					heads.add(nodeid);
+					headIndexes.put(nodeid, revisionNumber);
 					ps.worked(1);
 				}
 			}; 
-			repo.getChangelog().range(lastCached == -1 ? 0 : lastCached+1, HgRepository.TIP, insp);
-			// those last seen revisions from the branch that had no children from the same branch are heads.
-			for (String bn : branchLastSeen.keySet()) {
-				// these are inactive branches? - there were children, but not from the same branch?
-				branchHeads.get(bn).add(branchLastSeen.get(bn));
-			}
-			for (String bn : branchStart.keySet()) {
+			clog.range(start, lastRevision, insp);
+			for (Map.Entry<String, LinkedHashSet<Nodeid>> e : branchHeads.entrySet()) {
+				final String bn = e.getKey();
+				final Nodeid[] heads = e.getValue().toArray(new Nodeid[e.getValue().size()]);
 				BranchInfo bi = branches.get(bn);
-				if (bi != null) {
-					// although heads from cache shall not intersect with heads after lastCached,
-					// use of LHS doesn't hurt (and makes sense e.g. if cache is not completely correct in my tests) 
-					LinkedHashSet<Nodeid> heads = new LinkedHashSet<Nodeid>(bi.getHeads());
-					for (Nodeid oldHead : bi.getHeads()) {
-						// XXX perhaps, need pw.canReach(Nodeid from, Collection<Nodeid> to)
-						List<Nodeid> newChildren = pw.childrenOf(Collections.singletonList(oldHead));
-						if (!newChildren.isEmpty()) {
-							// likely not a head any longer,
-							// check if any new head can be reached from old one, and, if yes,
-							// do not consider that old head as head.
-							for (Nodeid newHead : branchHeads.get(bn)) {
-								if (newChildren.contains(newHead)) {
-									heads.remove(oldHead);
-									break;
-								}
-							}
-						} // else - oldHead still head for the branch
-					}
-					heads.addAll(branchHeads.get(bn));
-					bi = new BranchInfo(bn, bi.getStart(), heads.toArray(new Nodeid[0]));
-				} else {
-					Nodeid[] heads = branchHeads.get(bn).toArray(new Nodeid[0]);
-					bi = new BranchInfo(bn, branchStart.get(bn), heads);
-				}
+				bi = new BranchInfo(bn, bi == null ? branchStart.get(bn) : bi.getStart(), heads);
 				branches.put(bn, bi);
 			}
+		} else {
+			int i = 0;
+			for (BranchInfo bi : branches.values()) {
+				for (Nodeid h : bi.getHeads()) {
+					headIndexes.put(h, cachedHeadIndexes[i++]);
+				}
+			}
 		}
-		final HgChangelog clog = repo.getChangelog();
-		final HgChangelog.RevisionMap rmap = clog.new RevisionMap().init();
 		for (BranchInfo bi : branches.values()) {
-			bi.validate(clog, rmap);
+			bi.validate(clog, headIndexes);
+		}
+		if (!isCacheActual) {
+			try {
+				writeCache();
+			} catch (IOException ex) {
+				// not a reason to fail, cache is just an optimization
+				repo.getContext().getLog().warn(getClass(), ex, "Failed to update branch heads cache");
+			} catch (HgException ex) {
+				repo.getContext().getLog().warn(getClass(), ex, "Failed to update branch heads cache");
+			}
 		}
 		ps.done();
 	}
 
+	// indexes of heads of all known branches, in the order of #branches iteration
+	private int[] headIndexes(HgChangelog clog) throws HgInvalidControlFileException {
+		ArrayList<Nodeid> allHeads = new ArrayList<Nodeid>();
+		for (BranchInfo bi : branches.values()) {
+			allHeads.addAll(bi.getHeads());
+		}
+		if (allHeads.isEmpty()) {
+			return new int[0];
+		}
+		return clog.getRevisionIndexes(allHeads.toArray(new Nodeid[allHeads.size()]));
+	}
+
 	public List<BranchInfo> getAllBranches() {
 		return new LinkedList<BranchInfo>(branches.values());
 				
@@ -299,11 +309,11 @@ public class HgBranches {
 			this(branchName, Nodeid.NULL, branchHeads);
 		}
 		
-		void validate(HgChangelog clog, HgChangelog.RevisionMap rmap) throws HgInvalidControlFileException {
+		void validate(HgChangelog clog, Map<Nodeid, Integer> headIndexes) throws HgInvalidControlFileException {
 			int[] localCset = new int[heads.size()];
 			int i = 0;
 			for (Nodeid h : heads) {
-				localCset[i++] = rmap.revisionIndex(h);
+				localCset[i++] = headIndexes.get(h);
 			}
 			// [0] tipmost, [1] tipmost open
 			final Nodeid[] tipmost = new Nodeid[] {null, null};
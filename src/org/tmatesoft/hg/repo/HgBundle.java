@@ -45,6 +45,7 @@ public class HgBundle {
 
 	private final File bundleFile;
 	private final DataAccessProvider accessProvider;
+	private DataAccess bundleStream; // uncompressed bundle content that can be read only once, if not backed by a file
 
 	// private final SessionContext sessionContext;
 
@@ -54,7 +55,25 @@ public class HgBundle {
 		bundleFile = bundle;
 	}
 
+	/**
+	 * Bundle that is not saved anywhere, and can be inspected only once
+	 * @param bundleData uncompressed content of the bundle, without signature 
+	 */
+	HgBundle(SessionContext ctx, DataAccess bundleData) {
+		accessProvider = null;
+		bundleFile = null;
+		bundleStream = bundleData;
+	}
+
 	private DataAccess getDataStream() throws IOException {
+		if (bundleFile == null) {
+			if (bundleStream == null) {
+				throw new HgBadStateException("Bundle that comes as a stream can be inspected only once");
+			}
+			DataAccess da = bundleStream;
+			bundleStream = null;
+			return da;
+		}
 		DataAccess da = accessProvider.create(bundleFile);
 		byte[] signature = new byte[6];
 		if (da.length() > 6) {
@@ -91,6 +110,11 @@ public class HgBundle {
 		if (uses == 0 && bundleFile != null) {
 			bundleFile.deleteOnExit();
 		}
+		if (uses == 0 && bundleStream != null) {
+			// nobody is going to read it, release the source
+			bundleStream.done();
+			bundleStream = null;
+		}
 	}
 
 	public boolean inUse() {
@@ -42,6 +42,7 @@ import org.tmatesoft.hg.internal.Lifecycle;
 import org.tmatesoft.hg.internal.Pool;
 import org.tmatesoft.hg.internal.RevlogStream;
 import org.tmatesoft.hg.util.CancelSupport;
+import org.tmatesoft.hg.util.CancelledException;
 import org.tmatesoft.hg.util.Pair;
 import org.tmatesoft.hg.util.ProgressSupport;
 
@@ -98,6 +99,53 @@ public class HgChangelog extends Revlog {
 		content.iterate(sortedRevisions, true, new RawCsetParser(inspector));
 	}
 
+	/**
+	 * Walk changesets newest first, from <code>end</code> down to <code>start</code>, both inclusive.
+	 * Revisions are read in small batches that start no earlier than their delta chain base, so that each batch
+	 * gets reconstructed from the closest full revision, and callers interested in few recent changesets 
+	 * don't pay for complete history. Inspector may implement {@link CancelSupport} to stop the walk early, 
+	 * it's consulted after each changeset.
+	 * 
+	 * @param start the oldest revision to report, or {@link HgRepository#TIP}
+	 * @param end the newest revision to report, the first to reach inspector, or {@link HgRepository#TIP}
+	 * @param inspector callback to get changesets
+	 * @throws HgInvalidRevisionException if start or end don't represent valid revisions of the changelog
+	 * @throws HgInvalidControlFileException if access to revlog index/data entry failed
+	 */
+	public void rangeReverse(int start, int end, HgChangelog.Inspector inspector) throws HgInvalidRevisionException, HgInvalidControlFileException {
+		if (inspector == null) {
+			throw new IllegalArgumentException();
+		}
+		final int last = getLastRevision();
+		if (end == HgRepository.TIP) {
+			end = last;
+		}
+		if (start == HgRepository.TIP) {
+			start = last;
+		}
+		HgInternals.checkRevlogRange(start, end, last);
+		final CancelSupport cancelSupport = CancelSupport.Factory.get(inspector, null);
+		final ReverseBatch batch = new ReverseBatch(REVERSE_BATCH_SIZE);
+		try {
+			for (int hi = end; hi >= start; ) {
+				// XXX when delta chain is longer than batch size, each batch gets reconstructed from the same base. 
+				// Could keep last reconstructed revision between batches, but RevlogStream doesn't support that (yet?)
+				final int lo = Math.max(start, Math.max(content.baseRevision(hi), hi - REVERSE_BATCH_SIZE + 1));
+				batch.clear();
+				content.iterate(lo, hi, true, new RawCsetParser(batch));
+				for (int i = batch.count - 1; i >= 0; i--) {
+					inspector.next(batch.revisions[i], batch.nodeids[i], batch.changesets[i]);
+					if (cancelSupport != null) {
+						cancelSupport.checkCancelled();
+					}
+				}
+				hi = lo - 1;
+			}
+		} catch (CancelledException ex) {
+			// inspector doesn't need more changesets, fine
+		}
+	}
+
 	/**
 	 * @throws HgInvalidRevisionException if supplied nodeid doesn't identify any revision from this revlog  
 	 * @throws HgInvalidControlFileException if access to revlog index/data entry failed
@@ -359,6 +407,34 @@ public class HgChangelog extends Revlog {
 		}
 	}
 
+	private static final int REVERSE_BATCH_SIZE = 64;
+
+	private static class ReverseBatch implements Inspector {
+		final int[] revisions;
+		final Nodeid[] nodeids;
+		final RawChangeset[] changesets;
+		int count;
+		
+		public ReverseBatch(int size) {
+			revisions = new int[size];
+			nodeids = new Nodeid[size];
+			changesets = new RawChangeset[size];
+		}
+
+		public void next(int revisionNumber, Nodeid nodeid, RawChangeset cset) {
+			revisions[count] = revisionNumber;
+			nodeids[count] = nodeid;
+			changesets[count] = cset.clone();
+			count++;
+		}
+		
+		void clear() {
+			Arrays.fill(nodeids, 0, count, null);
+			Arrays.fill(changesets, 0, count, null);
+			count = 0;
+		}
+	}
+
 	private static class RawCsetCollector implements Inspector {
 		final ArrayList<RawChangeset> result;
 		
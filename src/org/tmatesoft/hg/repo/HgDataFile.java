@@ -465,13 +465,7 @@ public class HgDataFile extends Revlog {
 	 * @throws HgDataStreamException if attempt to access file metadata failed
 	 */
 	public boolean isCopy() throws HgDataStreamException {
-		if (metadata == null || !metadata.checked(0)) {
-			checkAndRecordMetadata(0);
-		}
-		if (!metadata.known(0)) {
-			return false;
-		}
-		return metadata.find(0, "copy") != null;
+		return getCopyInfo(0) != null;
 	}
 
 	/**
@@ -482,18 +476,31 @@ public class HgDataFile extends Revlog {
 	 * @throws UnsupportedOperationException if this file doesn't represent a copy ({@link #isCopy()} was false)
 	 */
 	public Path getCopySourceName() throws HgDataStreamException {
-		if (isCopy()) {
-			return Path.create(metadata.find(0, "copy"));
+		Pair<Path, Nodeid> copy = getCopyInfo(0);
+		if (copy != null) {
+			return copy.first();
 		}
 		throw new UnsupportedOperationException(); // XXX REVISIT, think over if Exception is good (clients would check isCopy() anyway, perhaps null is sufficient?)
 	}
 	
 	public Nodeid getCopySourceRevision() throws HgDataStreamException {
-		if (isCopy()) {
-			return Nodeid.fromAscii(metadata.find(0, "copyrev")); // XXX reuse/cache Nodeid
+		Pair<Path, Nodeid> copy = getCopyInfo(0);
+		if (copy != null) {
+			return copy.second();
 		}
 		throw new UnsupportedOperationException();
 	}
+
+	// origin of the file revision (name and revision), or null if the revision is not a copy
+	private Pair<Path, Nodeid> getCopyInfo(int fileRevisionIndex) throws HgDataStreamException {
+		if (metadata == null || !metadata.checked(fileRevisionIndex)) {
+			checkAndRecordMetadata(fileRevisionIndex);
+		}
+		if (!metadata.known(fileRevisionIndex)) {
+			return null;
+		}
+		return metadata.copy(fileRevisionIndex);
+	}
 	
 	@Override
 	public String toString() {
@@ -505,22 +512,27 @@ public class HgDataFile extends Revlog {
 	}
 	
 	private void checkAndRecordMetadata(int localRev) throws HgDataStreamException {
-		// content() always initializes metadata.
-		// FIXME this is expensive way to find out metadata, distinct RevlogStream.Iterator would be better.
-		// Alternatively, may parameterize MetadataContentPipe to do prepare only.
-		// For reference, when throwing CancelledException, hg status -A --rev 3:80 takes 70 ms
-		// however, if we just consume buffer instead (buffer.position(buffer.limit()), same command takes ~320ms
-		// (compared to command-line counterpart of 190ms)
+		if (metadata == null) {
+			metadata = new Metadata();
+		}
+		// Unlike content(), doesn't pipe anything, MetadataInspector without delegate stops right after metadata
+		// (or after first two bytes if there's none), and we don't need to abuse CancelledException to get out of ContentPipe
+		MetadataInspector insp = new MetadataInspector(metadata, getRepo().getContext().getLog(), getPath(), null);
 		try {
-			content(localRev, new ByteChannel() { // No-op channel
-				public int write(ByteBuffer buffer) throws IOException, CancelledException {
-					throw new CancelledException();
-				}
-			});
-		} catch (CancelledException ex) {
-			// it's ok, we did that
+			super.content.iterate(localRev, localRev, true, insp);
+			insp.checkFailed();
+		} catch (HgDataStreamException ex) {
+			throw ex;
 		} catch (HgInvalidControlFileException ex) {
 			throw new HgDataStreamException(getPath(), ex);
+		} catch (IOException ex) {
+			throw new HgDataStreamException(getPath(), ex).setRevisionIndex(localRev);
+		} catch (HgException ex) {
+			// shall not happen, MetadataInspector reports either HgDataStreamException or IOException
+			throw new HgDataStreamException(getPath(), ex.getClass().getName(), ex);
+		} catch (CancelledException ex) {
+			// IGNORE, can't happen, we did not configure cancellation
+			getRepo().getContext().getLog().debug(getClass(), ex, null);
 		}
 	}
 
@@ -554,6 +566,8 @@ public class HgDataFile extends Revlog {
 		private static class Record {
 			public final int offset;
 			public final MetadataEntry[] entries;
+			// parsed "copy" and "copyrev" entries, initialized on demand
+			public Pair<Path, Nodeid> copy;
 			
 			public Record(int off, MetadataEntry[] entr) {
 				offset = off;
@@ -564,6 +578,7 @@ public class HgDataFile extends Revlog {
 		private final IntMap<Record> entries = new IntMap<Record>(5);
 		
 		private final Record NONE = new Record(-1, null); // don't want statics
+		private final Pair<Path, Nodeid> NO_COPY = new Pair<Path, Nodeid>(null, null);
 
 		// true when there's metadata for given revision
 		boolean known(int revision) {
@@ -603,6 +618,21 @@ public class HgDataFile extends Revlog {
 			entries.put(revision, new Record(dataOffset, e.toArray(new MetadataEntry[e.size()])));
 		}
 
+		// copy origin is asked for repeatedly when history is followed across renames, keep it parsed
+		Pair<Path, Nodeid> copy(int revision) {
+			Record r = entries.get(revision);
+			if (r.copy == null) {
+				String src = find(revision, "copy");
+				if (src == null) {
+					r.copy = NO_COPY;
+				} else {
+					String srcRev = find(revision, "copyrev");
+					r.copy = new Pair<Path, Nodeid>(Path.create(src), srcRev == null ? Nodeid.NULL : Nodeid.fromAscii(srcRev));
+				}
+			}
+			return r.copy == NO_COPY ? null : r.copy;
+		}
+
 		String find(int revision, String key) {
 			for (MetadataEntry me : entries.get(revision).entries) {
 				if (me.matchKey(key)) {
@@ -23,12 +23,14 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.TreeSet;
 
+import org.tmatesoft.hg.core.HgBadStateException;
 import org.tmatesoft.hg.core.HgInvalidControlFileException;
 import org.tmatesoft.hg.core.Nodeid;
 import org.tmatesoft.hg.internal.DataAccess;
@@ -55,14 +57,23 @@ public final class HgDirstate /* XXX RepoChangeListener */{
 	private final File dirstateFile;
 	private final PathPool pathPool;
 	private final PathRewrite canonicalPathRewrite;
-	private Map<Path, Record> normal;
-	private Map<Path, Record> added;
-	private Map<Path, Record> removed;
-	private Map<Path, Record> merged;
+	/*
+	 * Entries are kept in parallel arrays, sorted by file name (in the order of Path#compareTo), with names 
+	 * left in the dirstate file content and referenced by offset. Objects (Path, Record) are created on demand.
+	 */
+	private byte[] content;
+	private int entryCount;
+	private byte[] states; // 'n', 'a', 'r' or 'm'
+	private int[] modes, sizes, times;
+	private int[] nameOffsets, nameLengths; 
+	private int[] copyOffsets, copyLengths; // copyLength of -1 for no copy 
+	private Path[] names; // by entry index, initialized on demand
 	/* map of canonicalized file names to their originals from dirstate file.
 	 * Note, only those canonical names that differ from their dirstate counterpart are recorded here
 	 */
 	private Map<Path, Path> canonical2dirstateName; 
+	// all names known to dirstate in canonical form, sorted. Initialized on demand, if canonical form is in use 
+	private String[] sortedCanonicalNames;
 	private Pair<Nodeid, Nodeid> parents;
 	private String currentBranch;
 	
@@ -75,7 +86,9 @@ public final class HgDirstate /* XXX RepoChangeListener */{
 	}
 
 	/*package-local*/ void read() throws HgInvalidControlFileException {
-		normal = added = removed = merged = Collections.<Path, Record>emptyMap();
+		content = new byte[0];
+		initEntries(0);
+		sortedCanonicalNames = null;
 		parents = new Pair<Nodeid,Nodeid>(Nodeid.NULL, Nodeid.NULL);
 		if (canonicalPathRewrite != null) {
 			canonical2dirstateName = new HashMap<Path,Path>();
@@ -85,71 +98,146 @@ public final class HgDirstate /* XXX RepoChangeListener */{
 		if (dirstateFile == null || !dirstateFile.exists()) {
 			return;
 		}
+		// DataAccessProvider maps big files into memory. Mapping is not kept past the read, though, 
+		// mapped dirstate can't get replaced (e.g. by hg status) on some platforms until the mapping is collected. 
 		DataAccess da = repo.getDataAccess().create(dirstateFile);
 		if (da.isEmpty()) {
 			return;
 		}
-		// not sure linked is really needed here, just for ease of debug
-		normal = new LinkedHashMap<Path, Record>();
-		added = new LinkedHashMap<Path, Record>();
-		removed = new LinkedHashMap<Path, Record>();
-		merged = new LinkedHashMap<Path, Record>();
+		final byte[] data;
 		try {
-			parents = internalReadParents(da);
-			// hg init; hg up produces an empty repository where dirstate has parents (40 bytes) only
-			while (!da.isEmpty()) {
-				final byte state = da.readByte();
-				final int fmode = da.readInt();
-				final int size = da.readInt();
-				final int time = da.readInt();
-				final int nameLen = da.readInt();
-				String fn1 = null, fn2 = null;
-				byte[] name = new byte[nameLen];
-				da.readBytes(name, 0, nameLen);
-				for (int i = 0; i < nameLen; i++) {
-					if (name[i] == 0) {
-						fn1 = new String(name, 0, i, "UTF-8"); // XXX unclear from documentation what encoding is used there
-						fn2 = new String(name, i+1, nameLen - i - 1, "UTF-8"); // need to check with different system codepages
-						break;
-					}
-				}
-				if (fn1 == null) {
-					fn1 = new String(name);
-				}
-				Record r = new Record(fmode, size, time, pathPool.path(fn1), fn2 == null ? null : pathPool.path(fn2));
-				if (canonicalPathRewrite != null) {
-					Path canonicalPath = pathPool.path(canonicalPathRewrite.rewrite(fn1).toString());
-					if (canonicalPath != r.name()) { // == as they come from the same pool
-						assert !canonical2dirstateName.containsKey(canonicalPath); // otherwise there's already a file with same canonical name
-						// which can't happen for case-insensitive file system (or there's erroneous PathRewrite, perhaps doing smth else)
-						canonical2dirstateName.put(canonicalPath, r.name());
-					}
-					if (fn2 != null) {
-						// not sure I need copy origin in the map, I don't seem to use it anywhere,
-						// but I guess I'll have to use it some day.
-						canonicalPath = pathPool.path(canonicalPathRewrite.rewrite(fn2).toString());
-						if (canonicalPath != r.copySource()) {
-							canonical2dirstateName.put(canonicalPath, r.copySource());
-						}
-					}
-				}
-				if (state == 'n') {
-					normal.put(r.name1, r);
-				} else if (state == 'a') {
-					added.put(r.name1, r);
-				} else if (state == 'r') {
-					removed.put(r.name1, r);
-				} else if (state == 'm') {
-					merged.put(r.name1, r);
-				} else {
-					repo.getContext().getLog().warn(getClass(), "Dirstate record for file %s (size: %d, tstamp:%d) has unknown state '%c'", r.name1, r.size(), r.time, state);
-				}
-			}
+			data = da.byteArray();
+			parents = internalReadParents(da.reset());
 		} catch (IOException ex) {
 			throw new HgInvalidControlFileException("Dirstate read failed", ex, dirstateFile); 
 		} finally {
 			da.done();
 		}
+		// fixed part of an entry is 17 bytes, name is at least 1 byte
+		initEntries((data.length - 40) / 18);
+		int count = 0;
+		// hg init; hg up produces an empty repository where dirstate has parents (40 bytes) only
+		for (int offset = 40; offset < data.length; ) {
+			if (offset + 17 > data.length) {
+				throw new HgInvalidControlFileException(String.format("Dirstate entry at offset %d is truncated", offset), null, dirstateFile);
+			}
+			final byte state = data[offset];
+			final int nameLen = readInt(data, offset + 13);
+			final int nameOffset = offset + 17;
+			if (nameLen < 0 || nameOffset + nameLen > data.length) {
+				throw new HgInvalidControlFileException(String.format("Dirstate entry at offset %d is truncated", offset), null, dirstateFile);
+			}
+			int fn1Len = nameLen, fn2Offset = -1, fn2Len = -1;
+			for (int i = nameOffset, end = nameOffset + nameLen; i < end; i++) {
+				if (data[i] == 0) {
+					fn1Len = i - nameOffset;
+					fn2Offset = i + 1;
+					fn2Len = end - i - 1;
+					break;
+				}
+			}
+			if (state == 'n' || state == 'a' || state == 'r' || state == 'm') {
+				states[count] = state;
+				modes[count] = readInt(data, offset + 1);
+				sizes[count] = readInt(data, offset + 5);
+				times[count] = readInt(data, offset + 9);
+				nameOffsets[count] = nameOffset;
+				nameLengths[count] = fn1Len;
+				copyOffsets[count] = fn2Offset;
+				copyLengths[count] = fn2Len;
+				count++;
+			} else {
+				repo.getContext().getLog().warn(getClass(), "Dirstate record for file %s (size: %d, tstamp:%d) has unknown state '%c'", new String(data, nameOffset, fn1Len), readInt(data, offset + 5), readInt(data, offset + 9), state);
+			}
+			offset = nameOffset + nameLen;
+		}
+		content = data;
+		entryCount = count;
+		sortEntries();
+		if (canonicalPathRewrite != null) {
+			for (int i = 0; i < entryCount; i++) {
+				Path name = name(i);
+				Path canonicalPath = pathPool.path(canonicalPathRewrite.rewrite(name).toString());
+				if (canonicalPath != name) { // == as they come from the same pool
+					assert !canonical2dirstateName.containsKey(canonicalPath); // otherwise there's already a file with same canonical name
+					// which can't happen for case-insensitive file system (or there's erroneous PathRewrite, perhaps doing smth else)
+					canonical2dirstateName.put(canonicalPath, name);
+				}
+			}
+		}
+	}
+
+	private void initEntries(int capacity) {
+		entryCount = 0;
+		states = new byte[capacity];
+		modes = new int[capacity];
+		sizes = new int[capacity];
+		times = new int[capacity];
+		nameOffsets = new int[capacity];
+		nameLengths = new int[capacity];
+		copyOffsets = new int[capacity];
+		copyLengths = new int[capacity];
+		names = new Path[capacity];
+	}
+
+	// sorts first entryCount elements of entry arrays by name
+	private void sortEntries() {
+		int[] order = new int[entryCount];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		mergeSort(order, order.clone(), 0, order.length);
+		byte[] st = new byte[entryCount];
+		int[] m = new int[entryCount], sz = new int[entryCount], t = new int[entryCount];
+		int[] no = new int[entryCount], nl = new int[entryCount], co = new int[entryCount], cl = new int[entryCount];
+		for (int i = 0; i < order.length; i++) {
+			final int x = order[i];
+			st[i] = states[x];
+			m[i] = modes[x];
+			sz[i] = sizes[x];
+			t[i] = times[x];
+			no[i] = nameOffsets[x];
+			nl[i] = nameLengths[x];
+			co[i] = copyOffsets[x];
+			cl[i] = copyLengths[x];
+		}
+		states = st;
+		modes = m;
+		sizes = sz;
+		times = t;
+		nameOffsets = no;
+		nameLengths = nl;
+		copyOffsets = co;
+		copyLengths = cl;
+		names = new Path[entryCount];
+	}
+
+	// sorts src[from..to) into dst, both arrays shall have same content initially 
+	private void mergeSort(int[] dst, int[] src, int from, int to) {
+		if (to - from < 7) {
+			for (int i = from + 1; i < to; i++) {
+				for (int j = i; j > from && compareNames(dst[j-1], dst[j]) > 0; j--) {
+					int x = dst[j];
+					dst[j] = dst[j-1];
+					dst[j-1] = x;
+				}
+			}
+			return;
+		}
+		final int mid = (from + to) >>> 1;
+		mergeSort(src, dst, from, mid);
+		mergeSort(src, dst, mid, to);
+		for (int i = from, l = from, r = mid; i < to; i++) {
+			if (r >= to || (l < mid && compareNames(src[l], src[r]) <= 0)) {
+				dst[i] = src[l++];
+			} else {
+				dst[i] = src[r++];
+			}
+		}
+	}
+
+	private static int readInt(byte[] data, int offset) {
+		return (data[offset] & 0xFF) << 24 | (data[offset+1] & 0xFF) << 16 | (data[offset+2] & 0xFF) << 8 | (data[offset+3] & 0xFF);
 	}
 
 	private static Pair<Nodeid, Nodeid> internalReadParents(DataAccess da) throws IOException {
@@ -230,87 +318,219 @@ public final class HgDirstate /* XXX RepoChangeListener */{
 
 	// new, modifiable collection
 	/*package-local*/ TreeSet<Path> all() {
-		assert normal != null;
+		assert parents != null; // instance not initialized with #read()
 		TreeSet<Path> rv = new TreeSet<Path>();
-		@SuppressWarnings("unchecked")
-		Map<Path, Record>[] all = new Map[] { normal, added, removed, merged };
-		for (int i = 0; i < all.length; i++) {
-			for (Record r : all[i].values()) {
-				rv.add(r.name1);
-			}
+		for (int i = 0; i < entryCount; i++) {
+			rv.add(name(i));
 		}
 		return rv;
 	}
 	
+	/**
+	 * @param dir repository-relative directory name, with trailing slash
+	 * @return <code>true</code> if dirstate has an entry (in any state) for a file under the directory, at any depth
+	 */
+	/*package-local*/ boolean hasEntriesUnder(Path dir) {
+		assert parents != null;
+		if (canonicalPathRewrite == null) {
+			final String d = dir.toString();
+			int x = binarySearch(d);
+			if (x < 0) {
+				x = -x - 1; // insertion point, the first name greater than the directory
+			}
+			return x < entryCount && nameStartsWith(x, d);
+		}
+		if (sortedCanonicalNames == null) {
+			String[] canonicalNames = new String[entryCount];
+			for (int i = 0; i < entryCount; i++) {
+				canonicalNames[i] = canonicalPathRewrite.rewrite(name(i)).toString();
+			}
+			// rewritten names might not keep the order
+			Arrays.sort(canonicalNames);
+			sortedCanonicalNames = canonicalNames;
+		}
+		final String d = canonicalPathRewrite.rewrite(dir).toString();
+		int x = Arrays.binarySearch(sortedCanonicalNames, d);
+		if (x < 0) {
+			x = -x - 1;
+		}
+		return x < sortedCanonicalNames.length && sortedCanonicalNames[x].startsWith(d);
+	}
+
 	/*package-local*/ Record checkNormal(Path fname) {
-		return internalCheck(normal, fname);
+		return internalCheck('n', fname);
 	}
 
 	/*package-local*/ Record checkAdded(Path fname) {
-		return internalCheck(added, fname);
+		return internalCheck('a', fname);
 	}
 	/*package-local*/ Record checkRemoved(Path fname) {
-		return internalCheck(removed, fname);
+		return internalCheck('r', fname);
 	}
 	/*package-local*/ Record checkMerged(Path fname) {
-		return internalCheck(merged, fname);
+		return internalCheck('m', fname);
 	}
 
 	
 	// return non-null if fname is known, either as is, or its canonical form. in latter case, this canonical form is return value
 	/*package-local*/ Path known(Path fname) {
-		Path fnameCanonical = null;
-		if (canonicalPathRewrite != null) {
-			fnameCanonical = pathPool.path(canonicalPathRewrite.rewrite(fname).toString());
-			if (fnameCanonical != fname && canonical2dirstateName.containsKey(fnameCanonical)) {
-				// we know right away there's name in dirstate with alternative canonical form
-				return canonical2dirstateName.get(fnameCanonical);
-			}
+		int x = binarySearch(fname.toString());
+		if (x >= 0) {
+			return fname;
+		}
+		x = findCanonical(fname);
+		return x < 0 ? null : name(x);
+	}
+
+	private Record internalCheck(char state, Path fname) {
+		int x = binarySearch(fname.toString());
+		if (x < 0) {
+			x = findCanonical(fname);
 		}
-		@SuppressWarnings("unchecked")
-		Map<Path, Record>[] all = new Map[] { normal, added, removed, merged };
-		for (int i = 0; i < all.length; i++) {
-			if (all[i].containsKey(fname)) {
-				return fname;
+		return x >= 0 && states[x] == state ? new Record(this, x) : null;
+	}
+
+	// index of the entry with the name that has the same canonical form as fname, or negative value if none
+	private int findCanonical(Path fname) {
+		if (canonicalPathRewrite == null) {
+			return -1;
+		}
+		Path fnameCanonical = pathPool.path(canonicalPathRewrite.rewrite(fname).toString());
+		if (fnameCanonical == fname) {
+			return -1;
+		}
+		// case when fname = /a/B/c, and dirstate is /a/b/C 
+		Path dirstateName = canonical2dirstateName.get(fnameCanonical);
+		// otherwise, try canonical directly, fname = /a/B/C, dirstate has /a/b/c
+		return binarySearch(dirstateName == null ? fnameCanonical.toString() : dirstateName.toString());
+	}
+
+	public void walk(Inspector inspector) {
+		assert parents != null;
+		Record r = new Record(this, -1);
+		for (int i = 0; i < entryCount; i++) {
+			r.init(this, i);
+			if (!inspector.next(entryKind(i), r)) {
+				return;
 			}
-			if (fnameCanonical != null && all[i].containsKey(fnameCanonical)) {
-				return fnameCanonical;
+		}
+	}
+
+	/*package-local*/ int entryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * @param index entry index, entries are sorted by name, same way {@link Path#compareTo(Path)} does
+	 */
+	/*package-local*/ Path entryName(int index) {
+		return name(index);
+	}
+
+	/**
+	 * @return <code>true</code> if names are matched {@link #known(Path) ignoring case}, and thus file names 
+	 * from the file system may differ from those of the entries
+	 */
+	/*package-local*/ boolean hasCanonicalNames() {
+		return canonicalPathRewrite != null;
+	}
+
+	/*package-local*/ EntryKind entryKind(int index) {
+		switch (states[index]) {
+		case 'n' : return EntryKind.Normal;
+		case 'a' : return EntryKind.Added;
+		case 'r' : return EntryKind.Removed;
+		default : return EntryKind.Merged;
+		}
+	}
+
+	private Path name(int index) {
+		Path rv = names[index];
+		if (rv == null) {
+			names[index] = rv = pathPool.path(decodeName(nameOffsets[index], nameLengths[index], copyLengths[index] != -1));
+		}
+		return rv;
+	}
+
+	private Path copySource(int index) {
+		return copyLengths[index] == -1 ? null : pathPool.path(decodeName(copyOffsets[index], copyLengths[index], true));
+	}
+
+	private String decodeName(int offset, int length, boolean hasCopy) {
+		if (!hasCopy) {
+			return new String(content, offset, length);
+		}
+		try {
+			return new String(content, offset, length, "UTF-8"); // XXX unclear from documentation what encoding is used there
+		} catch (UnsupportedEncodingException ex) {
+			throw new HgBadStateException(ex); // UTF-8 is always there
+		}
+	}
+
+	// Arrays.binarySearch contract
+	private int binarySearch(String name) {
+		int low = 0, high = entryCount - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			final int cmp = compareName(mid, name);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
 			}
 		}
-		return null;
+		return -(low + 1);
 	}
 
-	private Record internalCheck(Map<Path, Record> map, Path fname) {
-		Record rv = map.get(fname);
-		if (rv != null || canonicalPathRewrite == null) {
-			return rv;
+	// compares name of the entry with the string, same as String#compareTo does, 
+	// ASCII names (most common) are compared without decoding 
+	private int compareName(int index, String name) {
+		final int offset = nameOffsets[index], length = nameLengths[index];
+		for (int i = 0, n = Math.min(length, name.length()); i < n; i++) {
+			final int b = content[offset + i];
+			if (b < 0) {
+				return name(index).toString().compareTo(name);
+			}
+			final int c = name.charAt(i);
+			if (b != c) {
+				return b - c;
+			}
 		}
-		Path fnameCanonical = pathPool.path(canonicalPathRewrite.rewrite(fname).toString());
-		if (fnameCanonical != fname) {
-			// case when fname = /a/B/c, and dirstate is /a/b/C 
-			if (canonical2dirstateName.containsKey(fnameCanonical)) {
-				return map.get(canonical2dirstateName.get(fnameCanonical));
+		return length - name.length();
+	}
+
+	private int compareNames(int index1, int index2) {
+		final int offset1 = nameOffsets[index1], length1 = nameLengths[index1];
+		final int offset2 = nameOffsets[index2], length2 = nameLengths[index2];
+		for (int i = 0, n = Math.min(length1, length2); i < n; i++) {
+			final int b1 = content[offset1 + i], b2 = content[offset2 + i];
+			if (b1 < 0 || b2 < 0) {
+				return name(index1).toString().compareTo(name(index2).toString());
 			}
-			// try canonical directly, fname = /a/B/C, dirstate has /a/b/c
-			if ((rv = map.get(fnameCanonical)) != null) {
-				return rv;
+			if (b1 != b2) {
+				return b1 - b2;
 			}
 		}
-		return null;
+		return length1 - length2;
 	}
 
-	public void walk(Inspector inspector) {
-		assert normal != null;
-		@SuppressWarnings("unchecked")
-		Map<Path, Record>[] all = new Map[] { normal, added, removed, merged };
-		for (int i = 0; i < all.length; i++) {
-			EntryKind k = EntryKind.values()[i];
-			for (Record r : all[i].values()) {
-				if (!inspector.next(k, r)) {
-					return;
-				}
+	private boolean nameStartsWith(int index, String prefix) {
+		final int offset = nameOffsets[index];
+		if (nameLengths[index] < prefix.length()) {
+			return false;
+		}
+		for (int i = 0, n = prefix.length(); i < n; i++) {
+			final int b = content[offset + i];
+			if (b < 0) {
+				return name(index).toString().startsWith(prefix);
+			}
+			if (b != prefix.charAt(i)) {
+				return false;
 			}
 		}
+		return true;
 	}
 
 	public interface Inspector {
@@ -324,10 +544,10 @@ public final class HgDirstate /* XXX RepoChangeListener */{
 	}
 
 	public static final class Record implements Cloneable {
-		private final int mode, size, time;
+		private int mode, size, time;
 		// Dirstate keeps local file size (i.e. that with any filters already applied). 
 		// Thus, can't compare directly to HgDataFile.length()
-		private final Path name1, name2;
+		private Path name1, name2;
 
 		/*package-local*/ Record(int fmode, int fsize, int ftime, Path name1, Path name2) {
 			mode = fmode;
@@ -338,6 +558,21 @@ public final class HgDirstate /* XXX RepoChangeListener */{
 			
 		}
 
+		// index of -1 for an instance to get initialized later
+		private Record(HgDirstate ds, int index) {
+			if (index != -1) {
+				init(ds, index);
+			}
+		}
+
+		private void init(HgDirstate ds, int index) {
+			mode = ds.modes[index];
+			size = ds.sizes[index];
+			time = ds.times[index];
+			name1 = ds.name(index);
+			name2 = ds.copySource(index);
+		}
+
 		public Path name() {
 			return name1;
 		}
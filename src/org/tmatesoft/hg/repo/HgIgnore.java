@@ -26,6 +26,7 @@ import java.util.List;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
+import org.tmatesoft.hg.internal.CompiledPathMatcher;
 import org.tmatesoft.hg.util.Path;
 
 /**
@@ -37,9 +38,14 @@ import org.tmatesoft.hg.util.Path;
 public class HgIgnore implements Path.Matcher {
 
 	private List<Pattern> entries;
+	// same patterns as entries, with literal ones in a form that doesn't need regular expressions 
+	private final CompiledPathMatcher.Builder matcherBuilder;
+	private CompiledPathMatcher matcher;
 
 	HgIgnore() {
 		entries = Collections.emptyList();
+		matcherBuilder = new CompiledPathMatcher.Builder();
+		matcher = matcherBuilder.build();
 	}
 
 	/* package-local */List<String> read(File hgignoreFile) throws IOException {
@@ -84,29 +90,85 @@ public class HgIgnore implements Path.Matcher {
 				if (line.length() == 0) {
 					continue;
 				}
+				final String regexp;
 				if ("glob".equals(syntax)) {
 					// hgignore(5)
 					// (http://www.selenic.com/mercurial/hgignore.5.html) says slashes '\' are escape characters,
 					// hence no special  treatment of Windows path
 					// however, own attempts make me think '\' on Windows are not treated as escapes
-					line = glob2regex(line);
+					regexp = glob2regex(line);
 				} else {
 					assert "regexp".equals(syntax);
 					// regular expression patterns need not match start of the line unless demanded explicitly 
-					line = line.charAt(0) == '^' ? line : ".*" + line;
+					regexp = line.charAt(0) == '^' ? line : ".*" + line;
 				}
 				try {
-					result.add(Pattern.compile(line)); // case-sensitive
+					result.add(Pattern.compile(regexp)); // case-sensitive
 				} catch (PatternSyntaxException ex) {
-					errors.add(line + "@" + ex.getMessage());
+					errors.add(regexp + "@" + ex.getMessage());
+					continue;
+				}
+				if ("glob".equals(syntax)) {
+					addGlob(line, regexp);
+				} else {
+					addRegexp(line, regexp);
 				}
 			}
 		}
 		result.trimToSize();
 		entries = result;
+		matcher = matcherBuilder.build();
 		return errors.isEmpty() ? null : errors;
 	}
 
+	// Same result as regexp from glob2regex would give, see #isIgnored() 
+	private void addGlob(String glob, String regexp) {
+		// leading asterisks are meaningless as (?:|.*/) from glob2regex allows for anything in front of the rest 
+		int start = 0;
+		while (start < glob.length() && glob.charAt(start) == '*') {
+			start++;
+		}
+		if (start < glob.length() && isLiteral(glob, start, "*?{},")) {
+			// glob2regex gives literal followed by (?:/|$), found anywhere in the path
+			matcherBuilder.segmentSuffix(glob.substring(start));
+		} else {
+			matcherBuilder.find(regexp).matchParentDirectory(regexp);
+		}
+	}
+
+	private void addRegexp(String line, String regexp) {
+		if (line.charAt(0) == '^') {
+			if (line.length() > 1 && isLiteral(line, 1, "")) {
+				// anchored literal, matches directories it starts with as well
+				matcherBuilder.prefix(line.substring(1));
+				return;
+			}
+		} else if (isLiteral(line, 0, "")) {
+			// .*literal, either found in the path, or matching directory, which implies former
+			matcherBuilder.substring(line);
+			return;
+		}
+		matcherBuilder.find(regexp).matchParentDirectory(regexp);
+	}
+
+	// no chars special for regexp, except those escaped by glob2regex
+	private static boolean isLiteral(String s, int start, String alsoSpecial) {
+		final boolean glob = alsoSpecial.length() > 0;
+		for (int i = start; i < s.length(); i++) {
+			char ch = s.charAt(i);
+			if (alsoSpecial.indexOf(ch) != -1) {
+				return false;
+			}
+			if (glob && (ch == '.' || ch == '\\')) {
+				continue;
+			}
+			if (CompiledPathMatcher.isRegexpMeta(ch)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	// note, #isIgnored(), even if queried for directories and returned positive reply, may still get
 	// a file from that ignored folder to get examined. Thus, patterns like "bin" shall match not only a folder,
 	// but any file under that folder as well
@@ -169,19 +231,38 @@ public class HgIgnore implements Path.Matcher {
 	 * @return <code>true</code> if matches repository configuration of ignored files.
 	 */
 	public boolean isIgnored(Path path) {
-		String ps = path.toString();
+		// Literal patterns are checked at once, and regular expressions (combined into one) in a way
+		// each pattern from entries would be checked by itself:
+		// for (Pattern p : entries) {
+		//   if (p.matcher(path).find()) return true;
+		//   for each directory prefix of the path (except path itself) if (p.matcher(prefix).matches()) return true;
+		// }
+		return matcher.accept(path);
+	}
+
+	/**
+	 * Tells whether directory is ignored as a whole, i.e. whether {@link #isIgnored(Path)} would answer <code>true</code>
+	 * for any file under it, so that there's no need to look into the directory to find out ignored files.
+	 * Note, directory might be ignored, yet contain tracked files (which are not subject to .hgignore).
+	 * 
+	 * @param dir repository-relative directory name, with or without trailing slash
+	 * @return <code>true</code> if any file under the directory is deemed ignored
+	 */
+	/*package-local*/ boolean isIgnoredDirectory(Path dir) {
+		String ps = dir.toString();
+		final int end = ps.length() > 0 && ps.charAt(ps.length() - 1) == '/' ? ps.length() - 1 : ps.length();
 		for (Pattern p : entries) {
-			int x = ps.indexOf('/'); // reset for each pattern
-			if (p.matcher(ps).find()) {
-				return true;
-			}
-			while (x != -1 && x+1 != ps.length() /*skip very last segment not to check complete string twice*/) {
-				String fragment = ps.substring(0, x);
-				if (p.matcher(fragment).matches()) {
+			// the same fragments #isIgnored checks with matches() for any file under the directory
+			int x = ps.indexOf('/');
+			while (x != -1 && x < end) {
+				if (p.matcher(ps.substring(0, x)).matches()) {
 					return true;
 				}
 				x = ps.indexOf('/', x+1);
 			}
+			if (end > 0 && p.matcher(ps.substring(0, end)).matches()) {
+				return true;
+			}
 		}
 		return false;
 	}
@@ -29,9 +29,11 @@ import org.tmatesoft.hg.core.HgInvalidControlFileException;
 import org.tmatesoft.hg.core.HgInvalidRevisionException;
 import org.tmatesoft.hg.core.SessionContext;
 import org.tmatesoft.hg.internal.Experimental;
+import org.tmatesoft.hg.internal.Internals;
 import org.tmatesoft.hg.internal.RelativePathRewrite;
 import org.tmatesoft.hg.util.FileIterator;
 import org.tmatesoft.hg.util.FileWalker;
+import org.tmatesoft.hg.util.ParallelFileWalker;
 import org.tmatesoft.hg.util.Path;
 import org.tmatesoft.hg.util.PathPool;
 import org.tmatesoft.hg.util.PathRewrite;
@@ -121,11 +123,37 @@ public class HgInternals {
 	@Experimental(reason="Don't want to expose io.File from HgRepository; need to create FileIterator for working dir. Need a place to keep that code")
 	/*package-local*/ FileIterator createWorkingDirWalker(Path.Matcher workindDirScope) {
 		File repoRoot = repo.getWorkingDir();
-		Path.Source pathSrc = new Path.SimpleSource(new PathRewrite.Composite(new RelativePathRewrite(repoRoot), repo.getToRepoPathHelper()));
+		Path.Source pathSrc = createWorkingDirPathSource();
+		int n = getThreadCount(Internals.CFG_PROPERTY_FS_WALKER_THREADS);
+		if (n > 1) {
+			return new ParallelFileWalker(repoRoot, pathSrc, workindDirScope, n);
+		}
+		return new FileWalker(repoRoot, pathSrc, workindDirScope);
+	}
+	
+	// repository-relative paths for files in the working directory
+	/*package-local*/ Path.Source createWorkingDirPathSource() {
 		// Impl note: simple source is enough as files in the working dir are all unique
 		// even if they might get reused (i.e. after FileIterator#reset() and walking once again),
 		// path caching is better to be done in the code which knows that path are being reused 
-		return new FileWalker(repoRoot, pathSrc, workindDirScope);
+		return new Path.SimpleSource(new PathRewrite.Composite(new RelativePathRewrite(repo.getWorkingDir()), repo.getToRepoPathHelper()));
+	}
+
+	// number of threads configured with the property, as many as there are processors (up to 4) unless set
+	/*package-local*/ int getThreadCount(String configProperty) {
+		final SessionContext ctx = repo.getContext();
+		Object threads = ctx.getProperty(configProperty, null);
+		if (threads != null) {
+			try {
+				int n = threads instanceof Number ? ((Number) threads).intValue() : Integer.parseInt(threads.toString());
+				// zero or negative value makes no sense, stick to single thread then
+				return Math.max(1, n);
+			} catch (NumberFormatException ex) {
+				ctx.getLog().warn(getClass(), ex, null);
+				// FALL THROUGH to default
+			}
+		}
+		return Math.min(4, Runtime.getRuntime().availableProcessors());
 	}
 	
 	// expose othewise package-local information primarily to use in our own o.t.hg.core package
@@ -50,7 +50,7 @@ import org.tmatesoft.hg.util.ProgressSupport;
  * @author TMate Software Ltd.
  */
 public class HgManifest extends Revlog {
-	private RevisionMapper revisionMap;
+	private volatile RevisionMapper revisionMap;
 	
 	public enum Flags {
 		Exec, Link;
@@ -205,11 +205,18 @@ public class HgManifest extends Revlog {
 			throw new IllegalArgumentException("Can't use constants like WORKING_COPY or BAD_REVISION");
 		}
 		// revisionNumber == TIP is processed by RevisionMapper 
-		if (revisionMap == null) {
-			revisionMap = new RevisionMapper(getRepo());
-			content.iterate(0, TIP, false, revisionMap);
+		RevisionMapper rm = revisionMap;
+		if (rm == null) {
+			synchronized (this) {
+				if ((rm = revisionMap) == null) {
+					// published once filled, other threads never see partial mapping
+					rm = new RevisionMapper(getRepo());
+					content.iterate(0, TIP, false, rm);
+					revisionMap = rm;
+				}
+			}
 		}
-		return revisionMap.at(changesetRevisionIndex);
+		return rm.at(changesetRevisionIndex);
 	}
 	
 	/**
@@ -16,8 +16,12 @@
  */
 package org.tmatesoft.hg.repo;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -32,17 +36,20 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
@@ -52,6 +59,8 @@ import org.tmatesoft.hg.core.HgInvalidFileException;
 import org.tmatesoft.hg.core.HgRemoteConnectionException;
 import org.tmatesoft.hg.core.Nodeid;
 import org.tmatesoft.hg.core.SessionContext;
+import org.tmatesoft.hg.internal.Experimental;
+import org.tmatesoft.hg.internal.ReadAheadDataAccess;
 
 /**
  * WORK IN PROGRESS, DO NOT USE
@@ -62,13 +71,18 @@ import org.tmatesoft.hg.core.SessionContext;
  * @author TMate Software Ltd.
  */
 public class HgRemoteRepository {
+	// longer arguments go in a body of POST request, URLs of few kilobytes are not welcome by some servers and proxies
+	private static final int MAX_GET_ARGUMENTS_LENGTH = 1024;
 	
 	private final URL url;
 	private final SSLContext sslContext;
+	private SSLSocketFactory sslSocketFactory; // the same factory for each connection, otherwise open connections can't get reused
 	private final String authInfo;
 	private final boolean debug = Boolean.parseBoolean(System.getProperty("hg4j.remote.debug"));
 	private HgLookup lookupHelper;
 	private final SessionContext sessionContext;
+	private Set<String> remoteCapabilities;
+	private final LinkedHashMap<String, WireCommandStats> wireStats = new LinkedHashMap<String, WireCommandStats>();
 
 	HgRemoteRepository(SessionContext ctx, URL url) throws HgBadArgumentException {
 		if (url == null || ctx == null) {
@@ -143,22 +157,20 @@ public class HgRemoteRepository {
 
 	public List<Nodeid> heads() throws HgRemoteConnectionException {
 		try {
-			URL u = new URL(url, url.getPath() + "?cmd=heads");
-			HttpURLConnection c = setupConnection(u.openConnection());
-			c.connect();
-			if (debug) {
-				dumpResponseHeader(u, c);
-			}
-			InputStreamReader is = new InputStreamReader(c.getInputStream(), "US-ASCII");
-			StreamTokenizer st = new StreamTokenizer(is);
-			st.ordinaryChars('0', '9');
-			st.wordChars('0', '9');
-			st.eolIsSignificant(false);
-			LinkedList<Nodeid> parseResult = new LinkedList<Nodeid>();
-			while (st.nextToken() != StreamTokenizer.TT_EOF) {
-				parseResult.add(Nodeid.fromAscii(st.sval));
+			InputStream is = command("heads", null);
+			try {
+				StreamTokenizer st = new StreamTokenizer(new InputStreamReader(is, "US-ASCII"));
+				st.ordinaryChars('0', '9');
+				st.wordChars('0', '9');
+				st.eolIsSignificant(false);
+				LinkedList<Nodeid> parseResult = new LinkedList<Nodeid>();
+				while (st.nextToken() != StreamTokenizer.TT_EOF) {
+					parseResult.add(Nodeid.fromAscii(st.sval));
+				}
+				return parseResult;
+			} finally {
+				is.close();
 			}
-			return parseResult;
 		} catch (MalformedURLException ex) {
 			throw new HgRemoteConnectionException("Bad URL", ex).setRemoteCommand("heads").setServerInfo(getLocation());
 		} catch (IOException ex) {
@@ -196,69 +208,55 @@ public class HgRemoteRepository {
 			sb.setLength(sb.length() - 1);
 		}
 		try {
-			boolean usePOST = ranges.size() > 3;
-			URL u = new URL(url, url.getPath() + "?cmd=between" + (usePOST ? "" : '&' + sb.toString()));
-			HttpURLConnection c = setupConnection(u.openConnection());
-			if (usePOST) {
-				c.setRequestMethod("POST");
-				c.setRequestProperty("Content-Length", String.valueOf(sb.length()/*nodeids are ASCII, bytes == characters */));
-				c.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-				c.setDoOutput(true);
-				c.connect();
-				OutputStream os = c.getOutputStream();
-				os.write(sb.toString().getBytes());
-				os.flush();
-				os.close();
-			} else {
-				c.connect();
-			}
+			InputStream is = command("between", sb);
 			if (debug) {
-				System.out.printf("%d ranges, method:%s \n", ranges.size(), c.getRequestMethod());
-				dumpResponseHeader(u, c);
+				System.out.printf("between: %d ranges\n", ranges.size());
 			}
-			InputStreamReader is = new InputStreamReader(c.getInputStream(), "US-ASCII");
-			StreamTokenizer st = new StreamTokenizer(is);
-			st.ordinaryChars('0', '9');
-			st.wordChars('0', '9');
-			st.eolIsSignificant(true);
-			Iterator<Range> rangeItr = ranges.iterator();
-			LinkedList<Nodeid> currRangeList = null;
-			Range currRange = null;
-			boolean possiblyEmptyNextLine = true;
-			while (st.nextToken() != StreamTokenizer.TT_EOF) {
-				if (st.ttype == StreamTokenizer.TT_EOL) {
-					if (possiblyEmptyNextLine) {
-						// newline follows newline;
-						assert currRange == null;
-						assert currRangeList == null;
-						if (!rangeItr.hasNext()) {
-							throw new HgBadStateException();
+			try {
+				StreamTokenizer st = new StreamTokenizer(new InputStreamReader(is, "US-ASCII"));
+				st.ordinaryChars('0', '9');
+				st.wordChars('0', '9');
+				st.eolIsSignificant(true);
+				Iterator<Range> rangeItr = ranges.iterator();
+				LinkedList<Nodeid> currRangeList = null;
+				Range currRange = null;
+				boolean possiblyEmptyNextLine = true;
+				while (st.nextToken() != StreamTokenizer.TT_EOF) {
+					if (st.ttype == StreamTokenizer.TT_EOL) {
+						if (possiblyEmptyNextLine) {
+							// newline follows newline;
+							assert currRange == null;
+							assert currRangeList == null;
+							if (!rangeItr.hasNext()) {
+								throw new HgBadStateException();
+							}
+							rv.put(rangeItr.next(), Collections.<Nodeid>emptyList());
+						} else {
+							if (currRange == null || currRangeList == null) {
+								throw new HgBadStateException();
+							}
+							// indicate next range value is needed
+							currRange = null;
+							currRangeList = null;
+							possiblyEmptyNextLine = true;
 						}
-						rv.put(rangeItr.next(), Collections.<Nodeid>emptyList());
 					} else {
-						if (currRange == null || currRangeList == null) {
-							throw new HgBadStateException();
-						}
-						// indicate next range value is needed
-						currRange = null;
-						currRangeList = null;
-						possiblyEmptyNextLine = true;
-					}
-				} else {
-					possiblyEmptyNextLine = false;
-					if (currRange == null) {
-						if (!rangeItr.hasNext()) {
-							throw new HgBadStateException();
+						possiblyEmptyNextLine = false;
+						if (currRange == null) {
+							if (!rangeItr.hasNext()) {
+								throw new HgBadStateException();
+							}
+							currRange = rangeItr.next();
+							currRangeList = new LinkedList<Nodeid>();
+							rv.put(currRange, currRangeList);
 						}
-						currRange = rangeItr.next();
-						currRangeList = new LinkedList<Nodeid>();
-						rv.put(currRange, currRangeList);
+						Nodeid nid = Nodeid.fromAscii(st.sval);
+						currRangeList.addLast(nid);
 					}
-					Nodeid nid = Nodeid.fromAscii(st.sval);
-					currRangeList.addLast(nid);
 				}
+			} finally {
+				is.close();
 			}
-			is.close();
 			return rv;
 		} catch (MalformedURLException ex) {
 			throw new HgRemoteConnectionException("Bad URL", ex).setRemoteCommand("between").setServerInfo(getLocation());
@@ -267,6 +265,62 @@ public class HgRemoteRepository {
 		}
 	}
 
+	/**
+	 * Whether server answers {@link #known(List)} queries (Mercurial 1.9 and later do).
+	 */
+	public boolean supportsKnown() throws HgRemoteConnectionException {
+		return getCapabilities().contains("known");
+	}
+
+	/**
+	 * Tells which of the revisions are known to the server, with a single 'known' command, 
+	 * use {@link #supportsKnown()} to find out if server understands one.
+	 * 
+	 * @param nodes revisions to check
+	 * @return array of the same length as argument, <code>true</code> for revisions present at remote
+	 * @throws HgRemoteConnectionException
+	 */
+	public boolean[] known(List<Nodeid> nodes) throws HgRemoteConnectionException {
+		if (nodes.isEmpty()) {
+			return new boolean[0];
+		}
+		StringBuilder sb = new StringBuilder(20 + nodes.size() * 41);
+		sb.append("nodes=");
+		for (Nodeid n : nodes) {
+			sb.append(n.toString());
+			sb.append('+');
+		}
+		// strip last space 
+		sb.setLength(sb.length() - 1);
+		try {
+			InputStream is = command("known", sb);
+			if (debug) {
+				System.out.printf("known: %d nodes\n", nodes.size());
+			}
+			final String reply;
+			try {
+				reply = readLine(is);
+			} finally {
+				is.close();
+			}
+			// one char for each node, '1' if known
+			if (reply.length() < nodes.size()) {
+				throw new HgRemoteConnectionException(String.format("Bad reply, expected %d values, got %d", nodes.size(), reply.length())).setRemoteCommand("known").setServerInfo(getLocation());
+			}
+			boolean[] rv = new boolean[nodes.size()];
+			for (int i = 0; i < rv.length; i++) {
+				rv[i] = reply.charAt(i) == '1';
+			}
+			return rv;
+		} catch (MalformedURLException ex) {
+			throw new HgRemoteConnectionException("Bad URL", ex).setRemoteCommand("known").setServerInfo(getLocation());
+		} catch (EOFException ex) {
+			throw new HgRemoteConnectionException("Empty reply", ex).setRemoteCommand("known").setServerInfo(getLocation());
+		} catch (IOException ex) {
+			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand("known").setServerInfo(getLocation());
+		}
+	}
+
 	public List<RemoteBranch> branches(List<Nodeid> nodes) throws HgRemoteConnectionException {
 		StringBuilder sb = new StringBuilder(20 + nodes.size() * 41);
 		sb.append("nodes=");
@@ -279,20 +333,18 @@ public class HgRemoteRepository {
 			sb.setLength(sb.length() - 1);
 		}
 		try {
-			URL u = new URL(url, url.getPath() + "?cmd=branches&" + sb.toString());
-			HttpURLConnection c = setupConnection(u.openConnection());
-			c.connect();
-			if (debug) {
-				dumpResponseHeader(u, c);
-			}
-			InputStreamReader is = new InputStreamReader(c.getInputStream(), "US-ASCII");
-			StreamTokenizer st = new StreamTokenizer(is);
-			st.ordinaryChars('0', '9');
-			st.wordChars('0', '9');
-			st.eolIsSignificant(false);
 			ArrayList<Nodeid> parseResult = new ArrayList<Nodeid>(nodes.size() * 4);
-			while (st.nextToken() != StreamTokenizer.TT_EOF) {
-				parseResult.add(Nodeid.fromAscii(st.sval));
+			InputStream is = command("branches", sb);
+			try {
+				StreamTokenizer st = new StreamTokenizer(new InputStreamReader(is, "US-ASCII"));
+				st.ordinaryChars('0', '9');
+				st.wordChars('0', '9');
+				st.eolIsSignificant(false);
+				while (st.nextToken() != StreamTokenizer.TT_EOF) {
+					parseResult.add(Nodeid.fromAscii(st.sval));
+				}
+			} finally {
+				is.close();
 			}
 			if (parseResult.size() != nodes.size() * 4) {
 				throw new HgRemoteConnectionException(String.format("Bad number of nodeids in result (shall be factor 4), expected %d, got %d", nodes.size()*4, parseResult.size()));
@@ -327,10 +379,75 @@ public class HgRemoteRepository {
 	 * as one may expect according to http://mercurial.selenic.com/wiki/BundleFormat)
 	 */
 	public HgBundle getChanges(List<Nodeid> roots) throws HgRemoteConnectionException, HgInvalidFileException {
-		List<Nodeid> _roots = roots.isEmpty() ? Collections.singletonList(Nodeid.NULL) : roots;
-		StringBuilder sb = new StringBuilder(20 + _roots.size() * 41);
-		sb.append("roots=");
-		for (Nodeid n : _roots) {
+		try {
+			File tf = writeBundle(changegroup(roots), false, "HG10GZ" /*didn't see any other that zip*/);
+			if (debug) {
+				System.out.printf("Wrote bundle %s for roots %s\n", tf, roots);
+			}
+			return getLookupHelper().loadBundle(tf);
+		} catch (MalformedURLException ex) { // XXX in fact, this exception might be better to be re-thrown as RuntimeEx,
+			// as there's little user can do about this issue (URLs are constructed by our code)
+			throw new HgRemoteConnectionException("Bad URL", ex).setRemoteCommand("changegroup").setServerInfo(getLocation());
+		} catch (IOException ex) {
+			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand("changegroup").setServerInfo(getLocation());
+		}
+	}
+
+	/**
+	 * Same as {@link #getChanges(List)}, except that changes are not written into a bundle file. Server reply is read
+	 * and decompressed by a separate thread, ahead of bundle inspector (up to a limit), so that changes received so far
+	 * get processed while the rest is still on its way.
+	 * 
+	 * Bundle can be inspected only once, with any one of its <code>inspect</code> methods, and shall be 
+	 * {@link HgBundle#unlink() unlinked} once no longer needed, to release the connection.
+	 */
+	public HgBundle getChangesStream(List<Nodeid> roots) throws HgRemoteConnectionException {
+		try {
+			return new HgBundle(sessionContext, new ReadAheadDataAccess(changegroup(roots), true)).link();
+		} catch (MalformedURLException ex) {
+			throw new HgRemoteConnectionException("Bad URL", ex).setRemoteCommand("changegroup").setServerInfo(getLocation());
+		} catch (IOException ex) {
+			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand("changegroup").setServerInfo(getLocation());
+		}
+	}
+
+	/**
+	 * Whether server sends changes for {@link #getBundleStream(List)} (Mercurial 1.9 and later do).
+	 */
+	public boolean supportsGetBundle() throws HgRemoteConnectionException {
+		return getCapabilities().contains("getbundle");
+	}
+
+	/**
+	 * Changes missing at a client that has <code>common</code> revisions along with all their ancestors ('getbundle' command).
+	 * Unlike {@link #getChangesStream(List)}, which sends descendants of the roots, there's no need to name a root 
+	 * for each remote branch, heads of the common set (e.g. as found by {@link #known(List) known} queries) are enough.
+	 * Changes are streamed the same way {@link #getChangesStream(List)} does. 
+	 * 
+	 * @param common revisions known to both the client and the server, empty if there are none
+	 * @throws HgRemoteConnectionException
+	 */
+	public HgBundle getBundleStream(List<Nodeid> common) throws HgRemoteConnectionException {
+		try {
+			return new HgBundle(sessionContext, new ReadAheadDataAccess(changegroup("getbundle", "common", common), true)).link();
+		} catch (MalformedURLException ex) {
+			throw new HgRemoteConnectionException("Bad URL", ex).setRemoteCommand("getbundle").setServerInfo(getLocation());
+		} catch (IOException ex) {
+			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand("getbundle").setServerInfo(getLocation());
+		}
+	}
+
+	private InputStream changegroup(List<Nodeid> roots) throws IOException {
+		return changegroup("changegroup", "roots", roots);
+	}
+
+	// according to WireProtocol wiki, bundleformat data is sent through zlib (there's no header like HG10??)
+	private InputStream changegroup(String command, String argName, List<Nodeid> nodes) throws IOException {
+		List<Nodeid> _nodes = nodes.isEmpty() ? Collections.singletonList(Nodeid.NULL) : nodes;
+		StringBuilder sb = new StringBuilder(20 + _nodes.size() * 41);
+		sb.append(argName);
+		sb.append('=');
+		for (Nodeid n : _nodes) {
 			sb.append(n.toString());
 			sb.append('+');
 		}
@@ -338,31 +455,200 @@ public class HgRemoteRepository {
 			// strip last space 
 			sb.setLength(sb.length() - 1);
 		}
+		return command(command, sb);
+	}
+
+	/**
+	 * Raw content of the remote repository store, as sent by server for 'stream_out' command (i.e. what
+	 * <code>hg clone --uncompressed</code> does). Files come one by one, content of each is copied as is
+	 * into the stream supplied by the inspector.
+	 * 
+	 * @param inspector receives store files, not <code>null</code>
+	 * @return <code>false</code> if server doesn't stream its store, or refused to stream it this time. Inspector gets nothing in this case.
+	 * @throws HgRemoteConnectionException if communication with the server failed or its reply is not the one we expect
+	 * @throws HgInvalidFileException if inspector failed to create or write a file
+	 */
+	public boolean getStoreFiles(StoreInspector inspector) throws HgRemoteConnectionException, HgInvalidFileException {
+		if (!canStream()) {
+			return false;
+		}
 		try {
-			URL u = new URL(url, url.getPath() + "?cmd=changegroup&" + sb.toString());
-			HttpURLConnection c = setupConnection(u.openConnection());
-			c.connect();
-			if (debug) {
-				dumpResponseHeader(u, c);
-			}
-			File tf = writeBundle(c.getInputStream(), false, "HG10GZ" /*didn't see any other that zip*/);
-			if (debug) {
-				System.out.printf("Wrote bundle %s for roots %s\n", tf, sb);
+			final int bufferSize = 64 * 1024; // few big writes for files of any considerable size
+			InputStream is = new BufferedInputStream(command("stream_out", null), bufferSize);
+			try {
+				String status = readLine(is);
+				if (!"0".equals(status)) {
+					// 1 - operation forbidden by server, 2 - locking the remote repository failed
+					sessionContext.getLog().info(getClass(), "Server %s refused to stream its store, status: %s", getLocation(), status);
+					return false;
+				}
+				final int fileCount;
+				final long totalBytes;
+				String counts = readLine(is);
+				try {
+					int x = counts.indexOf(' ');
+					fileCount = Integer.parseInt(counts.substring(0, x));
+					totalBytes = Long.parseLong(counts.substring(x + 1));
+				} catch (RuntimeException ex) {
+					throw new HgRemoteConnectionException(String.format("Bad file count and size: %s", counts), ex);
+				}
+				inspector.start(fileCount, totalBytes);
+				final byte[] buf = new byte[bufferSize];
+				for (int i = 0; i < fileCount; i++) {
+					String entry = readLine(is);
+					final String name;
+					final long length;
+					try {
+						int x = entry.indexOf('\0');
+						// see store.encodedir() in Mercurial
+						name = entry.substring(0, x).replace(".d.hg/", ".d/").replace(".i.hg/", ".i/").replace(".hg.hg/", ".hg/");
+						length = Long.parseLong(entry.substring(x + 1));
+					} catch (RuntimeException ex) {
+						throw new HgRemoteConnectionException(String.format("Bad store file entry: %s", entry), ex);
+					}
+					copyStoreFile(is, inspector, name, length, buf);
+				}
+			} finally {
+				is.close();
 			}
-			return getLookupHelper().loadBundle(tf);
-		} catch (MalformedURLException ex) { // XXX in fact, this exception might be better to be re-thrown as RuntimeEx,
-			// as there's little user can do about this issue (URLs are constructed by our code)
-			throw new HgRemoteConnectionException("Bad URL", ex).setRemoteCommand("changegroup").setServerInfo(getLocation());
+			return true;
+		} catch (MalformedURLException ex) {
+			throw new HgRemoteConnectionException("Bad URL", ex).setRemoteCommand("stream_out").setServerInfo(getLocation());
+		} catch (HgRemoteConnectionException ex) {
+			throw ex.setRemoteCommand("stream_out").setServerInfo(getLocation());
 		} catch (IOException ex) {
-			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand("changegroup").setServerInfo(getLocation());
+			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand("stream_out").setServerInfo(getLocation());
 		}
 	}
 
+	/**
+	 * Diagnostic information about communication with the server, how many times each wire command was sent, 
+	 * how long it took and how much data came in reply. Time is counted from the request till its reply is read 
+	 * (or no longer needed), so commands with long replies (e.g. changegroup) include time spent processing data.
+	 *  
+	 * @return snapshot of the statistics, one entry per command, in the order commands were first sent
+	 */
+	@Experimental(reason="Diagnostics, might get changed")
+	public synchronized List<WireCommandStats> getWireStatistics() {
+		ArrayList<WireCommandStats> rv = new ArrayList<WireCommandStats>(wireStats.size());
+		for (WireCommandStats s : wireStats.values()) {
+			WireCommandStats copy = new WireCommandStats(s.command);
+			copy.requests = s.requests;
+			copy.time = s.time;
+			copy.bytes = s.bytes;
+			rv.add(copy);
+		}
+		return rv;
+	}
+
 	@Override
 	public String toString() {
 		return getClass().getSimpleName() + '[' + getLocation() + ']';
 	}
 
+	// whether server is known to send its store in a format we understand
+	private boolean canStream() throws HgRemoteConnectionException {
+		for (String c : getCapabilities()) {
+			if ("stream".equals(c) || "stream=1".equals(c)) {
+				return true;
+			}
+			if (c.startsWith("streamreqs=")) {
+				// revlog formats needed to read the store
+				for (String req : c.substring("streamreqs=".length()).split(",")) {
+					if (!"revlogv1".equals(req)) {
+						return false;
+					}
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Set<String> getCapabilities() throws HgRemoteConnectionException {
+		if (remoteCapabilities != null) {
+			return remoteCapabilities;
+		}
+		try {
+			InputStream is = command("capabilities", null);
+			HashSet<String> rv = new HashSet<String>();
+			try {
+				String line = readLine(is);
+				for (String cap : line.split(" ")) {
+					if (cap.length() > 0) {
+						rv.add(cap);
+					}
+				}
+			} catch (EOFException ex) {
+				// no capabilities at all, old server
+			} finally {
+				is.close();
+			}
+			return remoteCapabilities = rv;
+		} catch (MalformedURLException ex) {
+			throw new HgRemoteConnectionException("Bad URL", ex).setRemoteCommand("capabilities").setServerInfo(getLocation());
+		} catch (IOException ex) {
+			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand("capabilities").setServerInfo(getLocation());
+		}
+	}
+
+	private static void copyStoreFile(InputStream is, StoreInspector inspector, String name, long length, byte[] buf) throws IOException, HgInvalidFileException {
+		final OutputStream os;
+		try {
+			os = inspector.file(name, length);
+		} catch (IOException ex) {
+			throw new HgInvalidFileException(String.format("Failed to create %s", name), ex);
+		}
+		boolean complete = false;
+		try {
+			long left = length;
+			while (left > 0) {
+				// fill the buffer completely, whatever amount network gives us at once
+				final int chunk = (int) Math.min(buf.length, left);
+				int filled = 0;
+				while (filled < chunk) {
+					int r = is.read(buf, filled, chunk - filled);
+					if (r == -1) {
+						throw new EOFException(String.format("Unexpected end of stream, %d bytes of %s are missing", left - filled, name));
+					}
+					filled += r;
+				}
+				try {
+					os.write(buf, 0, chunk);
+				} catch (IOException ex) {
+					throw new HgInvalidFileException(String.format("Failed to write %s", name), ex);
+				}
+				left -= chunk;
+			}
+			complete = true;
+		} finally {
+			try {
+				os.close();
+			} catch (IOException ex) {
+				if (complete) {
+					throw new HgInvalidFileException(String.format("Failed to write %s", name), ex);
+				}
+				// otherwise, there's exception on its way already
+			}
+		}
+	}
+
+	// line of server's reply, without trailing newline
+	private static String readLine(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(80);
+		int b;
+		while ((b = is.read()) != '\n') {
+			if (b == -1) {
+				if (bos.size() == 0) {
+					throw new EOFException();
+				}
+				break;
+			}
+			bos.write(b);
+		}
+		return new String(bos.toByteArray());
+	}
+
 	private HgLookup getLookupHelper() {
 		if (lookupHelper == null) {
 			lookupHelper = new HgLookup(sessionContext);
@@ -370,6 +656,71 @@ public class HgRemoteRepository {
 		return lookupHelper;
 	}
 	
+	/**
+	 * Sends wire command to the server. Arguments go with the URL, unless too long for that, in which case
+	 * they are sent as a body of POST request.
+	 * 
+	 * Connections are kept alive and reused by the platform's HTTP client, which needs reply to be read completely, 
+	 * and closed, never {@link HttpURLConnection#disconnect() disconnected}.
+	 * 
+	 * @param cmd name of the command
+	 * @param args url-encoded arguments, like <code>nodes=hash1+hash2</code>, or <code>null</code> if none
+	 * @return server reply, caller shall close it
+	 */
+	private InputStream command(String cmd, CharSequence args) throws IOException {
+		final long start = System.currentTimeMillis();
+		final boolean usePOST = args != null && args.length() > MAX_GET_ARGUMENTS_LENGTH;
+		URL u = new URL(url, url.getPath() + "?cmd=" + cmd + (args == null || usePOST ? "" : "&" + args));
+		HttpURLConnection c = setupConnection(u.openConnection());
+		if (usePOST) {
+			final byte[] body = args.toString().getBytes(); // nodeids are ASCII, bytes == characters
+			c.setRequestMethod("POST");
+			c.setRequestProperty("Content-Length", String.valueOf(body.length));
+			c.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+			c.setDoOutput(true);
+			c.connect();
+			OutputStream os = c.getOutputStream();
+			os.write(body);
+			os.close();
+		} else {
+			c.connect();
+		}
+		final int responseCode = c.getResponseCode();
+		if (debug) {
+			System.out.printf("%s: %s %d\n", cmd, c.getRequestMethod(), responseCode);
+			dumpResponseHeader(u, c);
+		}
+		if (responseCode != HttpURLConnection.HTTP_OK) {
+			// read error reply, so that connection could serve next request
+			InputStream es = c.getErrorStream();
+			if (es != null) {
+				try {
+					byte[] buf = new byte[1024];
+					while (es.read(buf) != -1) {
+						;
+					}
+				} finally {
+					es.close();
+				}
+			}
+			throw new IOException(String.format("Server replied %d %s", responseCode, c.getResponseMessage()));
+		}
+		return new ReplyStream(c.getInputStream(), cmd, start);
+	}
+
+	private synchronized void recordCommand(String cmd, long time, long bytes) {
+		WireCommandStats s = wireStats.get(cmd);
+		if (s == null) {
+			wireStats.put(cmd, s = new WireCommandStats(cmd));
+		}
+		s.requests++;
+		s.time += time;
+		s.bytes += bytes;
+		if (debug) {
+			System.out.printf("%s: %d ms, %d bytes\n", cmd, time, bytes);
+		}
+	}
+
 	private HttpURLConnection setupConnection(URLConnection urlConnection) {
 		urlConnection.setRequestProperty("User-Agent", "hg4j/0.5.0");
 		urlConnection.addRequestProperty("Accept", "application/mercurial-0.1");
@@ -377,7 +728,10 @@ public class HgRemoteRepository {
 			urlConnection.addRequestProperty("Authorization", "Basic " + authInfo);
 		}
 		if (sslContext != null) {
-			((HttpsURLConnection) urlConnection).setSSLSocketFactory(sslContext.getSocketFactory());
+			if (sslSocketFactory == null) {
+				sslSocketFactory = sslContext.getSocketFactory();
+			}
+			((HttpsURLConnection) urlConnection).setSSLSocketFactory(sslSocketFactory);
 		}
 		return (HttpURLConnection) urlConnection;
 	}
@@ -407,6 +761,120 @@ public class HgRemoteRepository {
 	}
 
 
+	/**
+	 * Client of {@link HgRemoteRepository#getStoreFiles(StoreInspector)}
+	 */
+	public interface StoreInspector {
+		/**
+		 * @param fileCount number of files to come
+		 * @param totalBytes size of all files
+		 */
+		void start(int fileCount, long totalBytes);
+
+		/**
+		 * @param name file name within the store, as recorded in <em>fncache</em> (not encoded), e.g. <code>data/dir/file.txt.i</code> or <code>00changelog.i</code>
+		 * @param length file size, in bytes
+		 * @return stream for file content, caller closes it once the content is written 
+		 */
+		OutputStream file(String name, long length) throws IOException;
+	}
+
+	/**
+	 * @see HgRemoteRepository#getWireStatistics()
+	 */
+	@Experimental(reason="Diagnostics, might get changed")
+	public static final class WireCommandStats {
+		private final String command;
+		private int requests;
+		private long time, bytes;
+
+		WireCommandStats(String cmd) {
+			command = cmd;
+		}
+
+		public String getCommand() {
+			return command;
+		}
+
+		/**
+		 * @return number of requests sent
+		 */
+		public int getRequests() {
+			return requests;
+		}
+
+		/**
+		 * @return total time of all requests, in milliseconds
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * @return total size of all replies, in bytes
+		 */
+		public long getBytesReceived() {
+			return bytes;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d requests, %d ms, %d bytes", command, requests, time, bytes);
+		}
+	}
+
+	// counts bytes of the reply, records statistics once closed
+	private class ReplyStream extends FilterInputStream {
+		private final String command;
+		private final long start;
+		private long bytes;
+		private boolean closed;
+
+		ReplyStream(InputStream is, String cmd, long startTime) {
+			super(is);
+			command = cmd;
+			start = startTime;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				bytes++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int r = super.read(b, off, len);
+			if (r > 0) {
+				bytes += r;
+			}
+			return r;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long r = super.skip(n);
+			bytes += r;
+			return r;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				super.close();
+			} finally {
+				recordCommand(command, System.currentTimeMillis() - start, bytes);
+			}
+		}
+	}
+
 	public static final class Range {
 		/**
 		 * Root of the range, earlier revision
@@ -18,25 +18,21 @@ package org.tmatesoft.hg.repo;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
 import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.tmatesoft.hg.core.HgDataStreamException;
 import org.tmatesoft.hg.core.HgInvalidControlFileException;
 import org.tmatesoft.hg.core.Nodeid;
 import org.tmatesoft.hg.core.SessionContext;
-import org.tmatesoft.hg.internal.ByteArrayChannel;
 import org.tmatesoft.hg.internal.ConfigFile;
 import org.tmatesoft.hg.internal.DataAccessProvider;
 import org.tmatesoft.hg.internal.Experimental;
 import org.tmatesoft.hg.internal.Filter;
 import org.tmatesoft.hg.internal.RevlogStream;
 import org.tmatesoft.hg.internal.SubrepoManager;
-import org.tmatesoft.hg.util.CancelledException;
 import org.tmatesoft.hg.util.Pair;
 import org.tmatesoft.hg.util.Path;
 import org.tmatesoft.hg.util.PathPool;
@@ -74,19 +70,26 @@ public final class HgRepository {
 	private final PathRewrite repoPathHelper;
 	private final SessionContext sessionContext;
 
-	private HgChangelog changelog;
-	private HgManifest manifest;
-	private HgTags tags;
-	private HgBranches branches;
-	private HgMergeState mergeState;
-	private SubrepoManager subRepos;
+	/*
+	 * Lazily initialized values below are published through volatile fields once complete. Cheap to create ones get 
+	 * initialized under lock of this instance, while tags and branches, which may take a while to read, have locks of their own,
+	 * so that other threads asking for e.g. changelog don't wait for them. Locks are acquired in order tags, branches, this.
+	 */
+	private volatile HgChangelog changelog;
+	private volatile HgManifest manifest;
+	private volatile HgTags tags;
+	private volatile HgBranches branches;
+	private volatile HgMergeState mergeState;
+	private volatile SubrepoManager subRepos;
+	private final Object tagsLock = new Object();
+	private final Object branchesLock = new Object();
 
 	// XXX perhaps, shall enable caching explicitly
-	private final HashMap<Path, SoftReference<RevlogStream>> streamsCache = new HashMap<Path, SoftReference<RevlogStream>>();
+	private final ConcurrentHashMap<Path, SoftReference<RevlogStream>> streamsCache = new ConcurrentHashMap<Path, SoftReference<RevlogStream>>();
 	
 	private final org.tmatesoft.hg.internal.Internals impl;
-	private HgIgnore ignore;
-	private HgRepoConfig repoConfig;
+	private volatile HgIgnore ignore;
+	private volatile HgRepoConfig repoConfig;
 	
 	HgRepository(String repositoryPath) {
 		repoDir = null;
@@ -133,77 +136,88 @@ public final class HgRepository {
 	}
 	
 	public HgChangelog getChangelog() {
-		if (changelog == null) {
-			CharSequence storagePath = repoPathHelper.rewrite("00changelog.i");
-			RevlogStream content = resolve(Path.create(storagePath), true);
-			changelog = new HgChangelog(this, content);
+		HgChangelog rv = changelog;
+		if (rv == null) {
+			synchronized (this) {
+				if ((rv = changelog) == null) {
+					CharSequence storagePath = repoPathHelper.rewrite("00changelog.i");
+					RevlogStream content = resolve(Path.create(storagePath), true);
+					changelog = rv = new HgChangelog(this, content);
+				}
+			}
 		}
-		return changelog;
+		return rv;
 	}
 	
 	public HgManifest getManifest() {
-		if (manifest == null) {
-			RevlogStream content = resolve(Path.create(repoPathHelper.rewrite("00manifest.i")), true);
-			manifest = new HgManifest(this, content);
+		HgManifest rv = manifest;
+		if (rv == null) {
+			synchronized (this) {
+				if ((rv = manifest) == null) {
+					RevlogStream content = resolve(Path.create(repoPathHelper.rewrite("00manifest.i")), true);
+					manifest = rv = new HgManifest(this, content);
+				}
+			}
 		}
-		return manifest;
+		return rv;
 	}
 	
 	public HgTags getTags() throws HgInvalidControlFileException {
-		if (tags == null) {
-			tags = new HgTags(this);
+		HgTags rv = tags;
+		if (rv != null) {
+			return rv;
+		}
+		synchronized (tagsLock) {
+			if ((rv = tags) != null) {
+				return rv;
+			}
+			rv = new HgTags(this);
 			HgDataFile hgTags = getFileNode(".hgtags");
 			if (hgTags.exists()) {
-				for (int i = 0; i <= hgTags.getLastRevision(); i++) { // FIXME in fact, would be handy to have walk(start,end) 
-					// method for data files as well, though it looks odd.
-					try {
-						ByteArrayChannel sink = new ByteArrayChannel();
-						hgTags.content(i, sink);
-						final String content = new String(sink.toArray(), "UTF8");
-						tags.readGlobal(new StringReader(content));
-					} catch (CancelledException ex) {
-						 // IGNORE, can't happen, we did not configure cancellation
-						getContext().getLog().debug(getClass(), ex, null);
-					} catch (HgDataStreamException ex) {
-						getContext().getLog().error(getClass(), ex, null);
-						// FIXME need to react
-					} catch (IOException ex) {
-						// UnsupportedEncodingException can't happen (UTF8)
-						// only from readGlobal. Need to reconsider exceptions thrown from there:
-						// BufferedReader wraps String and unlikely to throw IOException, perhaps, log is enough?
-						getContext().getLog().error(getClass(), ex, null);
-						// XXX need to decide what to do this. failure to read single revision shall not break complete cycle
-					}
-				}
+				rv.readGlobal(hgTags);
 			}
 			File file2read = null;
 			try {
 				file2read = new File(getWorkingDir(), ".hgtags");
-				tags.readGlobal(file2read); // XXX replace with HgDataFile.workingCopy
+				rv.readGlobal(file2read); // XXX replace with HgDataFile.workingCopy
 				file2read = new File(repoDir, "localtags");
-				tags.readLocal(file2read);
+				rv.readLocal(file2read);
 			} catch (IOException ex) {
 				getContext().getLog().error(getClass(), ex, null);
 				throw new HgInvalidControlFileException("Failed to read tags", ex, file2read);
 			}
+			// publish once read completely
+			tags = rv;
+			return rv;
 		}
-		return tags;
 	}
 	
 	public HgBranches getBranches() throws HgInvalidControlFileException {
-		if (branches == null) {
-			branches = new HgBranches(this);
-			branches.collect(ProgressSupport.Factory.get(null));
+		HgBranches rv = branches;
+		if (rv != null) {
+			return rv;
+		}
+		synchronized (branchesLock) {
+			if ((rv = branches) == null) {
+				rv = new HgBranches(this);
+				rv.collect(ProgressSupport.Factory.get(null));
+				branches = rv;
+			}
+			return rv;
 		}
-		return branches;
 	}
 
 	@Experimental(reason="Perhaps, shall not cache instance, and provide loadMergeState as it may change often")
 	public HgMergeState getMergeState() {
-		if (mergeState == null) {
-			mergeState = new HgMergeState(this);
+		HgMergeState rv = mergeState;
+		if (rv == null) {
+			synchronized (this) {
+				if ((rv = mergeState) == null) {
+					mergeState = rv = new HgMergeState(this);
+				}
+			}
 		}
-		return mergeState;
+		return rv;
 	}
 	
 	public HgDataFile getFileNode(String path) {
@@ -261,27 +275,39 @@ public final class HgRepository {
 	 * @return list of all known sub-repositories in this repository, or empty list if none found.
 	 */
 	public List<HgSubrepoLocation> getSubrepositories() throws HgInvalidControlFileException {
-		if (subRepos == null) {
-			subRepos = new SubrepoManager(this);
-			subRepos.read();
+		SubrepoManager rv = subRepos;
+		if (rv == null) {
+			synchronized (this) {
+				if ((rv = subRepos) == null) {
+					rv = new SubrepoManager(this);
+					rv.read();
+					subRepos = rv;
+				}
+			}
 		}
-		return subRepos.all();
+		return rv.all();
 	}
 
 	
 	public HgRepoConfig getConfiguration() /* XXX throws HgInvalidControlFileException? Description of the exception suggests it is only for files under ./hg/*/ {
-		if (repoConfig == null) {
-			try {
-				ConfigFile configFile = impl.readConfiguration(this, getRepositoryRoot());
-				repoConfig = new HgRepoConfig(configFile);
-			} catch (IOException ex) {
-				String m = "Errors while reading user configuration file";
-				getContext().getLog().warn(getClass(), ex, m);
-				return new HgRepoConfig(new ConfigFile()); // empty config, do not cache, allow to try once again
-				//throw new HgInvalidControlFileException(m, ex, null);
+		HgRepoConfig rv = repoConfig;
+		if (rv != null) {
+			return rv;
+		}
+		synchronized (this) {
+			if ((rv = repoConfig) == null) {
+				try {
+					ConfigFile configFile = impl.readConfiguration(this, getRepositoryRoot());
+					repoConfig = rv = new HgRepoConfig(configFile);
+				} catch (IOException ex) {
+					String m = "Errors while reading user configuration file";
+					getContext().getLog().warn(getClass(), ex, m);
+					return new HgRepoConfig(new ConfigFile()); // empty config, do not cache, allow to try once again
+					//throw new HgInvalidControlFileException(m, ex, null);
+				}
 			}
+			return rv;
 		}
-		return repoConfig;
 	}
 
 	// shall be of use only for internal classes 
@@ -317,21 +343,28 @@ public final class HgRepository {
 	 */
 	public HgIgnore getIgnore() /*throws HgInvalidControlFileException */{
 		// TODO read config for additional locations
-		if (ignore == null) {
-			ignore = new HgIgnore();
-			File ignoreFile = new File(getWorkingDir(), ".hgignore");
-			try {
-				final List<String> errors = ignore.read(ignoreFile);
-				if (errors != null) {
-					getContext().getLog().warn(getClass(), "Syntax errors parsing .hgignore:\n%s", errors);
+		HgIgnore rv = ignore;
+		if (rv != null) {
+			return rv;
+		}
+		synchronized (this) {
+			if ((rv = ignore) == null) {
+				rv = new HgIgnore();
+				File ignoreFile = new File(getWorkingDir(), ".hgignore");
+				try {
+					final List<String> errors = rv.read(ignoreFile);
+					if (errors != null) {
+						getContext().getLog().warn(getClass(), "Syntax errors parsing .hgignore:\n%s", errors);
+					}
+				} catch (IOException ex) {
+					final String m = "Error reading .hgignore file";
+					getContext().getLog().warn(getClass(), ex, m);
+//					throw new HgInvalidControlFileException(m, ex, ignoreFile);
 				}
-			} catch (IOException ex) {
-				final String m = "Error reading .hgignore file";
-				getContext().getLog().warn(getClass(), ex, m);
-//				throw new HgInvalidControlFileException(m, ex, ignoreFile);
+				ignore = rv;
 			}
+			return rv;
 		}
-		return ignore;
 	}
 
 	/*package-local*/ DataAccessProvider getDataAccess() {
@@ -352,7 +385,20 @@ public final class HgRepository {
 		if (f.exists()) {
 			RevlogStream s = new RevlogStream(dataAccess, f);
 			if (impl.shallCacheRevlogs()) {
-				streamsCache.put(path, new SoftReference<RevlogStream>(s));
+				// threads that resolve same path at once shall end up with the same stream
+				final SoftReference<RevlogStream> newRef = new SoftReference<RevlogStream>(s);
+				SoftReference<RevlogStream> existing = streamsCache.putIfAbsent(path, newRef);
+				while (existing != null) {
+					RevlogStream other = existing.get();
+					if (other != null) {
+						return other;
+					}
+					// cleared reference, replace unless another thread did
+					if (streamsCache.replace(path, existing, newRef)) {
+						break;
+					}
+					existing = streamsCache.putIfAbsent(path, newRef);
+				}
 			}
 			return s;
 		} else {
@@ -19,20 +19,25 @@ package org.tmatesoft.hg.repo;
 import static org.tmatesoft.hg.repo.HgRepository.BAD_REVISION;
 import static org.tmatesoft.hg.repo.HgRepository.TIP;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeSet;
 
 import org.tmatesoft.hg.core.HgBadStateException;
 import org.tmatesoft.hg.core.HgDataStreamException;
 import org.tmatesoft.hg.core.HgException;
 import org.tmatesoft.hg.core.HgInvalidControlFileException;
 import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.core.SessionContext;
 import org.tmatesoft.hg.internal.IntMap;
+import org.tmatesoft.hg.internal.IntVector;
+import org.tmatesoft.hg.internal.Internals;
 import org.tmatesoft.hg.internal.ManifestRevision;
 import org.tmatesoft.hg.internal.Pool;
 import org.tmatesoft.hg.util.Path;
@@ -49,12 +54,19 @@ import org.tmatesoft.hg.util.PathRewrite;
 public class HgStatusCollector {
 
 	private final HgRepository repo;
-	private final IntMap<ManifestRevision> cache; // sparse array, in fact
+	private final IntMap<CacheEntry> cache; // sparse array, in fact
 	// with cpython repository, ~70 000 changes, complete Log (direct out, no reverse) output 
 	// no cache limit, no nodeids and fname caching - OOME on changeset 1035
 	// no cache limit, but with cached nodeids and filenames - 1730+
 	// cache limit 100 - 19+ minutes to process 10000, and still working (too long, stopped)
-	private final int cacheMaxSize = 50; // do not keep too much manifest revisions
+	// Hence the limit is memory (estimated), rather than number of revisions, which differ in size a lot
+	private final long cacheMaxSize;
+	private long cacheSize; // estimated, of all cache entries
+	private int accessCount; // recency of cache entries
+	private int lastRevision = BAD_REVISION, direction = 0; // revisions asked for most recently, and whether they go up (1) or down (-1)
+	private int windowFirst = BAD_REVISION, windowLast = BAD_REVISION;
+	private int inUse1 = BAD_REVISION, inUse2 = BAD_REVISION; // revisions compared at the moment, not to evict
+	private int averageManifestSize = 0;
 	private PathPool pathPool;
 	private final Pool<Nodeid> cacheNodes;
 	private final Pool<Path> cacheFilenames;
@@ -64,7 +76,8 @@ public class HgStatusCollector {
 
 	public HgStatusCollector(HgRepository hgRepo) {
 		this.repo = hgRepo;
-		cache = new IntMap<ManifestRevision>(cacheMaxSize);
+		cacheMaxSize = getCacheSize(hgRepo.getContext());
+		cache = new IntMap<CacheEntry>(50);
 		cacheNodes = new Pool<Nodeid>();
 		cacheFilenames = new Pool<Path>();
 
@@ -74,44 +87,146 @@ public class HgStatusCollector {
 	public HgRepository getRepo() {
 		return repo;
 	}
+
+	private long getCacheSize(SessionContext ctx) {
+		final long defaultSize = 16 * 1024 * 1024;
+		Object cacheSizeProperty = ctx.getProperty(Internals.CFG_PROPERTY_STATUS_CACHE_SIZE, null);
+		if (cacheSizeProperty != null) {
+			try {
+				long size = cacheSizeProperty instanceof Number ? ((Number) cacheSizeProperty).longValue() : Long.parseLong(cacheSizeProperty.toString());
+				if (size > 0) {
+					return size;
+				}
+				// zero or negative limit would evict everything, as good as no cache at all
+				ctx.getLog().warn(getClass(), "Bad %s value: %d, using default", Internals.CFG_PROPERTY_STATUS_CACHE_SIZE, size);
+			} catch (NumberFormatException ex) {
+				ctx.getLog().warn(getClass(), ex, null);
+				// FALL THROUGH to default
+			}
+		}
+		return defaultSize;
+	}
 	
 	private ManifestRevision get(int rev) throws HgInvalidControlFileException {
-		ManifestRevision i = cache.get(rev);
-		if (i == null) {
-			if (rev == -1) {
-				return emptyFakeState;
-			}
-			ensureCacheSize();
-			i = new ManifestRevision(cacheNodes, cacheFilenames);
-			cache.put(rev, i);
+		if (rev == -1) {
+			return emptyFakeState;
+		}
+		CacheEntry e = cache.get(rev);
+		if (e == null) {
+			ManifestRevision i = new ManifestRevision(cacheNodes, cacheFilenames);
 			repo.getManifest().walk(rev, rev, i);
+			e = cache(rev, i);
+		} else if (e.revision == null) {
+			e.revision = e.delta.apply();
+			cacheSize += e.revision.estimatedSize() - e.delta.estimatedSize();
+			e.delta = null;
+			ensureCacheSize();
 		}
-		return i;
+		e.lastAccess = ++accessCount;
+		return e.revision;
 	}
 
 	private boolean cached(int revision) {
 		return cache.containsKey(revision) || revision == -1;
 	}
-	
+
+	private CacheEntry cache(int rev, ManifestRevision revision) {
+		CacheEntry e = new CacheEntry();
+		e.revision = revision;
+		e.lastAccess = ++accessCount;
+		cache.put(rev, e);
+		final int size = revision.estimatedSize();
+		cacheSize += size;
+		averageManifestSize = averageManifestSize == 0 ? size : (averageManifestSize * 7 + size) / 8;
+		ensureCacheSize();
+		return e;
+	}
+
+	// evict revisions left behind by traversal first, least recently used first
 	private void ensureCacheSize() {
-		if (cache.size() > cacheMaxSize) {
-			// assume usually we go from oldest to newest, hence remove oldest as most likely to be no longer necessary
-			cache.removeFromStart(cache.size() - cacheMaxSize + 1 /* room for new element */);
+		while (cacheSize > cacheMaxSize && cache.size() > 2) {
+			int victim = BAD_REVISION;
+			boolean victimBehind = false;
+			int victimAccess = Integer.MAX_VALUE;
+			for (int rev : cache.keys()) {
+				if (rev == inUse1 || rev == inUse2) {
+					continue;
+				}
+				final CacheEntry e = cache.get(rev);
+				final boolean behind = direction != 0 && Integer.signum(rev - lastRevision) == -direction;
+				if (victim == BAD_REVISION || (behind && !victimBehind) || (behind == victimBehind && e.lastAccess < victimAccess)) {
+					victim = rev;
+					victimBehind = behind;
+					victimAccess = e.lastAccess;
+				}
+			}
+			if (victim == BAD_REVISION) {
+				break;
+			}
+			evict(victim);
+		}
+		// pooled names and revisions outlive cached revisions, don't let them grow unbounded
+		if ((cacheNodes.size() + cacheFilenames.size()) * POOL_ENTRY_SIZE > cacheMaxSize / 2) {
+			cacheNodes.clear();
+			cacheFilenames.clear();
 		}
 	}
-	
+
+	private void evict(int rev) {
+		final CacheEntry e = cache.get(rev);
+		cache.remove(rev);
+		cacheSize -= e.estimatedSize();
+		if (e.revision != null) {
+			// deltas based on the revision would keep it in memory
+			for (int r : cache.keys()) {
+				CacheEntry d = cache.get(r);
+				if (d.delta != null && d.delta.base() == e.revision) {
+					cache.remove(r);
+					cacheSize -= d.estimatedSize();
+				}
+			}
+		}
+	}
+
+	// keep revision as a difference with the other one, provided the difference is small
+	private void keepAsDelta(int rev, int baseRev) {
+		final CacheEntry e = cache.get(rev), base = cache.get(baseRev);
+		if (e == null || base == null || e.revision == null || base.revision == null) {
+			return;
+		}
+		ManifestRevision.Delta delta = new ManifestRevision.Delta(base.revision, e.revision);
+		final int fullSize = e.revision.estimatedSize();
+		if (delta.estimatedSize() >= fullSize / 2) {
+			return;
+		}
+		for (int r : cache.keys()) {
+			CacheEntry d = cache.get(r);
+			if (d.delta != null && d.delta.base() == e.revision) {
+				// differences with the revision, likely passed by traversal (i.e. its parent), are of no value once it's gone 
+				cache.remove(r);
+				cacheSize -= d.estimatedSize();
+			}
+		}
+		e.delta = delta;
+		e.revision = null;
+		cacheSize += delta.estimatedSize() - fullSize;
+	}
+
 	private void initCacheRange(int minRev, int maxRev) throws HgInvalidControlFileException {
-		ensureCacheSize();
-		// In fact, walk(minRev, maxRev) doesn't imply
-		// there would be maxRev-minRev+1 revisions visited. For example,
-		// check cpython repo with 'hg log -r 22418:22420 --debug' and admire
-		// manifest revisions 66650, 21683, 21684.  Thus, innocent walk(22418,22420) results in 40k+ revisions and OOME
-		// Instead, be explicit of what revisions are of interest
 		assert minRev <= maxRev;
 		int[] revisionsToCollect = new int[maxRev - minRev + 1];
 		for (int x = minRev, i = 0; x <= maxRev; i++, x++) {
 			revisionsToCollect[i] = x;
 		}
+		initCache(revisionsToCollect);
+	}
+	
+	private void initCache(int[] revisionsToCollect) throws HgInvalidControlFileException {
+		// In fact, walk(minRev, maxRev) doesn't imply
+		// there would be maxRev-minRev+1 revisions visited. For example,
+		// check cpython repo with 'hg log -r 22418:22420 --debug' and admire
+		// manifest revisions 66650, 21683, 21684.  Thus, innocent walk(22418,22420) results in 40k+ revisions and OOME
+		// Instead, be explicit of what revisions are of interest
 		repo.getManifest().walk(new HgManifest.Inspector2() {
 			private ManifestRevision delegate;
 			private boolean cacheHit; // range may include revisions we already know about, do not re-create them
@@ -121,9 +236,7 @@ public class HgStatusCollector {
 				if (cache.containsKey(changelogRevision)) { // don't need to check emptyFakeState hit as revision never -1 here
 					cacheHit = true;
 				} else {
-					cache.put(changelogRevision, delegate = new ManifestRevision(cacheNodes, cacheFilenames));
-					// cache may grow bigger than max size here, but it's ok as present simplistic cache clearing mechanism may
-					// otherwise remove entries we just added
+					delegate = new ManifestRevision(cacheNodes, cacheFilenames);
 					delegate.begin(manifestRevision, nid, changelogRevision);
 					cacheHit = false;
 				}
@@ -144,6 +257,7 @@ public class HgStatusCollector {
 			public boolean end(int revision) {
 				if (!cacheHit) {
 					delegate.end(revision);
+					cache(delegate.changesetLocalRev(), delegate);
 				}
 				cacheHit = false;				
 				delegate = null;
@@ -151,6 +265,47 @@ public class HgStatusCollector {
 			}
 		}, revisionsToCollect);
 	}
+
+	// changesets of the window that follow the one given, along with their first parents, as many as fit into the cache
+	private void prefetchWindow(int rev) throws HgInvalidControlFileException {
+		final int step = windowFirst <= windowLast ? 1 : -1;
+		int count = averageManifestSize == 0 ? 10 : (int) Math.min(100, cacheMaxSize / 2 / averageManifestSize);
+		count = Math.max(count, 2);
+		IntVector toRead = new IntVector(count, count);
+		int[] parents = new int[2];
+		for (int r = rev; toRead.size() < count && (r - windowLast) * step <= 0; r += step) {
+			if (!cached(r)) {
+				toRead.add(r);
+			}
+			repo.getChangelog().parents(r, parents, null, null);
+			if (!cached(parents[0])) {
+				toRead.add(parents[0]);
+			}
+		}
+		int[] revisions = toRead.toArray();
+		Arrays.sort(revisions);
+		int unique = 0;
+		for (int i = 0; i < revisions.length; i++) {
+			if (unique == 0 || revisions[unique - 1] != revisions[i]) {
+				revisions[unique++] = revisions[i];
+			}
+		}
+		if (unique > 0) {
+			initCache(unique == revisions.length ? revisions : Arrays.copyOf(revisions, unique));
+		}
+	}
+
+	private static final int POOL_ENTRY_SIZE = 64; // HashMap$Entry and pooled object itself, roughly
+
+	private static final class CacheEntry {
+		ManifestRevision revision; // null when only difference with another revision is kept
+		ManifestRevision.Delta delta;
+		int lastAccess;
+
+		int estimatedSize() {
+			return revision != null ? revision.estimatedSize() : delta.estimatedSize();
+		}
+	}
 	
 	/*package-local*/ static ManifestRevision createEmptyManifestRevision() {
 		ManifestRevision fakeEmptyRev = new ManifestRevision(null, null);
@@ -189,7 +344,73 @@ public class HgStatusCollector {
 	public void change(int rev, HgStatusInspector inspector) throws /*FIXME HInvalidRevisionException,*/ HgInvalidControlFileException {
 		int[] parents = new int[2];
 		repo.getChangelog().parents(rev, parents, null, null);
-		walk(parents[0], rev, inspector);
+		change(parents[0], rev, inspector);
+	}
+
+	/**
+	 * Status of each changeset in the range against its first parent, as {@link #change(int, HgStatusInspector)} would report it.
+	 * Changesets are processed in revision order, or from <code>end</code> down to <code>start</code> if {@link #setRevisionWindow(int, int) revision window}
+	 * goes down. Manifests are read few at once, with a single pass over the manifest revlog.
+	 * Records don't keep clean files, and know revisions of changed files without further access to manifests. 
+	 * 
+	 * @param start first changeset, inclusive
+	 * @param end last changeset, inclusive, not less than start
+	 * @return status of each changeset, starting with <code>start</code>
+	 * @throws HgInvalidControlFileException if access to revlog index/data entry failed
+	 */
+	public Record[] changes(int start, int end) throws HgInvalidControlFileException {
+		if (start < 0 || end < start) {
+			throw new IllegalArgumentException(String.format("%d..%d", start, end));
+		}
+		final int savedFirst = windowFirst, savedLast = windowLast;
+		final boolean withinWindow = windowFirst != BAD_REVISION && Math.min(windowFirst, windowLast) <= start && end <= Math.max(windowFirst, windowLast);
+		// walk the range the same way the window goes, otherwise manifests get prefetched past the range rather than for it
+		final boolean descending = withinWindow && windowFirst > windowLast;
+		final int first = descending ? end : start, last = descending ? start : end, step = descending ? -1 : 1;
+		if (!withinWindow) {
+			setRevisionWindow(start, end);
+		}
+		try {
+			Record[] rv = new Record[end - start + 1];
+			int[] parents = new int[2];
+			for (int rev = first; rev != last + step; rev += step) {
+				repo.getChangelog().parents(rev, parents, null, null);
+				change(parents[0], rev, rv[rev - start] = new ChangeRecord());
+			}
+			return rv;
+		} finally {
+			setRevisionWindow(savedFirst, savedLast);
+		}
+	}
+
+	private void change(int parent, int rev, HgStatusInspector inspector) throws HgInvalidControlFileException {
+		walk(parent, rev, inspector);
+		if (inspector instanceof ChangeRecord) {
+			((ChangeRecord) inspector).keepRevisions(get(parent), get(rev));
+		}
+		// when changesets are inspected one after another, the one traversal is leaving behind is likely needed again
+		// only as a parent (or child) of the next one, hence it's enough to keep difference with the next one
+		if (parent != -1 && direction != 0) {
+			if (direction > 0) {
+				keepAsDelta(parent, rev);
+			} else {
+				keepAsDelta(rev, parent);
+			}
+		}
+	}
+
+	/**
+	 * Tells collector changesets from the range are about to be {@link #change(int, HgStatusInspector) inspected},
+	 * one after another, starting with <code>first</code> (which may be greater than <code>last</code>). 
+	 * Once manifest of a changeset from the range is needed, manifests of changesets that follow it 
+	 * (along with those of their parents) are read at once, as many as the cache would take.
+	 * 
+	 * @param first changeset to be inspected first, or {@link HgRepository#BAD_REVISION} to forget earlier window
+	 * @param last changeset to be inspected last
+	 */
+	public void setRevisionWindow(int first, int last) {
+		windowFirst = first;
+		windowLast = last;
 	}
 	
 	// rev1 and rev2 are changelog revision numbers, argument order matters.
@@ -213,10 +434,22 @@ public class HgStatusCollector {
 		if (inspector instanceof Record) {
 			((Record) inspector).init(rev1, rev2, this);
 		}
+		// the way revisions are traversed, to tell those unlikely to get asked for again
+		if (lastRevision != BAD_REVISION && rev2 != lastRevision) {
+			direction = rev2 > lastRevision ? 1 : -1;
+		}
+		lastRevision = rev2;
+		inUse1 = rev1;
+		inUse2 = rev2;
 		// in fact, rev1 and rev2 are often next (or close) to each other,
 		// thus, we can optimize Manifest reads here (manifest.walk(rev1, rev2))
 		ManifestRevision r1, r2 ;
 		boolean need1 = !cached(rev1), need2 = !cached(rev2);
+		if ((need1 || need2) && windowFirst != BAD_REVISION && Math.min(windowFirst, windowLast) <= rev2 && rev2 <= Math.max(windowFirst, windowLast)) {
+			prefetchWindow(rev2);
+			need1 = !cached(rev1);
+			need2 = !cached(rev2);
+		}
 		if (need1 || need2) {
 			int minRev, maxRev;
 			if (need1 && need2 && Math.abs(rev1 - rev2) < 5 /*subjective equivalent of 'close enough'*/) {
@@ -246,41 +479,53 @@ public class HgStatusCollector {
 		r1 = get(rev1);
 		r2 = get(rev2);
 
-		TreeSet<Path> r1Files = new TreeSet<Path>(r1.files());
-		for (Path r2fname : r2.files()) {
-			if (!scope.accept(r2fname)) {
+		// both manifests keep files in the order of their paths, walk them side by side
+		final Collection<Path> r1Files = r1.files();
+		Iterator<Path> it1 = r1Files.iterator(), it2 = r2.files().iterator();
+		Path r1fname = it1.hasNext() ? it1.next() : null;
+		Path r2fname = it2.hasNext() ? it2.next() : null;
+		while (r1fname != null || r2fname != null) {
+			final int cmp = r1fname == null ? 1 : (r2fname == null ? -1 : r1fname.compareTo(r2fname));
+			if (cmp < 0) {
+				// known in r1 only
+				if (scope.accept(r1fname)) {
+					inspector.removed(r1fname);
+				}
+				r1fname = it1.hasNext() ? it1.next() : null;
 				continue;
 			}
-			if (r1Files.remove(r2fname)) {
-				Nodeid nidR1 = r1.nodeid(r2fname);
-				Nodeid nidR2 = r2.nodeid(r2fname);
-				HgManifest.Flags flagsR1 = r1.flags(r2fname);
-				HgManifest.Flags flagsR2 = r2.flags(r2fname);
-				if (nidR1.equals(nidR2) && flagsR2 == flagsR1) {
-					inspector.clean(r2fname);
-				} else {
-					inspector.modified(r2fname);
-				}
-			} else {
-				try {
-					Path copyTarget = r2fname;
-					Path copyOrigin = getOriginIfCopy(repo, copyTarget, r1Files, rev1);
-					if (copyOrigin != null) {
-						inspector.copied(getPathPool().path(copyOrigin) /*pipe through pool, just in case*/, copyTarget);
+			if (scope.accept(r2fname)) {
+				if (cmp == 0) {
+					Nodeid nidR1 = r1.nodeid(r2fname);
+					Nodeid nidR2 = r2.nodeid(r2fname);
+					HgManifest.Flags flagsR1 = r1.flags(r2fname);
+					HgManifest.Flags flagsR2 = r2.flags(r2fname);
+					if (nidR1.equals(nidR2) && flagsR2 == flagsR1) {
+						inspector.clean(r2fname);
 					} else {
-						inspector.added(copyTarget);
+						inspector.modified(r2fname);
+					}
+				} else {
+					try {
+						Path copyTarget = r2fname;
+						// copy origin is looked up among all r1 files, whether it's still in r2 or not
+						Path copyOrigin = getOriginIfCopy(repo, copyTarget, r1Files, rev1);
+						if (copyOrigin != null) {
+							inspector.copied(getPathPool().path(copyOrigin) /*pipe through pool, just in case*/, copyTarget);
+						} else {
+							inspector.added(copyTarget);
+						}
+					} catch (HgException ex) {
+						// record exception to a mediator and continue, 
+						// for a single file not to be irresolvable obstacle for a status operation
+						inspector.invalid(r2fname, ex);
 					}
-				} catch (HgException ex) {
-					// record exception to a mediator and continue, 
-					// for a single file not to be irresolvable obstacle for a status operation
-					inspector.invalid(r2fname, ex);
 				}
 			}
-		}
-		for (Path r1fname : r1Files) {
-			if (scope.accept(r1fname)) {
-				inspector.removed(r1fname);
+			if (cmp == 0) {
+				r1fname = it1.hasNext() ? it1.next() : null;
 			}
+			r2fname = it2.hasNext() ? it2.next() : null;
 		}
 	}
 	
@@ -290,7 +535,19 @@ public class HgStatusCollector {
 		return rv;
 	}
 	
-	/*package-local*/static Path getOriginIfCopy(HgRepository hgRepo, Path fname, Collection<Path> originals, int originalChangelogRevision) throws HgDataStreamException, HgInvalidControlFileException {
+	/*package-local*/static Path getOriginIfCopy(HgRepository hgRepo, Path fname, final Collection<Path> originals, int originalChangelogRevision) throws HgDataStreamException, HgInvalidControlFileException {
+		return getOriginIfCopy(hgRepo, fname, new Path.Matcher() {
+
+			public boolean accept(Path path) {
+				return originals.contains(path);
+			}
+		}, originalChangelogRevision);
+	}
+
+	/**
+	 * @param originals tells files copy origin may come from
+	 */
+	/*package-local*/static Path getOriginIfCopy(HgRepository hgRepo, Path fname, Path.Matcher originals, int originalChangelogRevision) throws HgDataStreamException, HgInvalidControlFileException {
 		HgDataFile df = hgRepo.getFileNode(fname);
 		if (!df.exists()) {
 			String msg = String.format("Didn't find file '%s' in the repo. Perhaps, bad storage name conversion?", fname);
@@ -298,7 +555,7 @@ public class HgStatusCollector {
 		}
 		while (df.isCopy()) {
 			Path original = df.getCopySourceName();
-			if (originals.contains(original)) {
+			if (originals.accept(original)) {
 				df = hgRepo.getFileNode(original);
 				int changelogRevision = df.getChangesetRevisionIndex(0);
 				if (changelogRevision <= originalChangelogRevision) {
@@ -473,4 +730,36 @@ public class HgStatusCollector {
 		}
 	}
 
+	// status of a changeset, without clean files, and with revisions of changed files
+	private static class ChangeRecord extends Record {
+		private final Map<Path, Nodeid> before = new HashMap<Path, Nodeid>(), after = new HashMap<Path, Nodeid>();
+
+		@Override
+		public void clean(Path fname) {
+			// no-op
+		}
+
+		void keepRevisions(ManifestRevision r1, ManifestRevision r2) {
+			for (Path p : getModified()) {
+				before.put(p, r1.nodeid(p));
+				after.put(p, r2.nodeid(p));
+			}
+			for (Path p : getAdded()) {
+				after.put(p, r2.nodeid(p));
+			}
+			for (Path p : getRemoved()) {
+				before.put(p, r1.nodeid(p));
+			}
+		}
+
+		@Override
+		public Nodeid nodeidBeforeChange(Path fname) {
+			return before.get(fname);
+		}
+
+		@Override
+		public Nodeid nodeidAfterChange(Path fname) {
+			return after.get(fname);
+		}
+	}
 }
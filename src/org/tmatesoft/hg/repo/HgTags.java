@@ -17,20 +17,35 @@
 package org.tmatesoft.hg.repo;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.TreeMap;
 
+import org.tmatesoft.hg.core.HgDataStreamException;
+import org.tmatesoft.hg.core.HgException;
 import org.tmatesoft.hg.core.HgInvalidControlFileException;
 import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.DataAccess;
+import org.tmatesoft.hg.internal.IntVector;
+import org.tmatesoft.hg.internal.RevisionGraph;
+import org.tmatesoft.hg.internal.RevlogStream;
 
 /**
  * @see http://mercurial.selenic.com/wiki/TagDesign
@@ -44,6 +59,8 @@ public class HgTags {
 
 	private final HgRepository repo;
 
+	private static final Charset utf8 = Charset.forName("UTF-8");
+
 	private final Map<Nodeid, List<String>> globalToName;
 	private final Map<Nodeid, List<String>> localToName;
 	private final Map<String, List<Nodeid>> globalFromName;
@@ -116,47 +133,232 @@ public class HgTags {
 				assert spacePos == 40;
 				final byte[] nodeidBytes = line.substring(0, spacePos).getBytes();
 				Nodeid nid = Nodeid.fromAscii(nodeidBytes, 0, nodeidBytes.length);
-				String tagName = line.substring(spacePos+1);
-				List<Nodeid> nids = name2nid.get(tagName);
-				if (nids == null) {
-					nids = new LinkedList<Nodeid>();
-					nids.add(nid);
-					// tagName is substring of full line, thus need a copy to let the line be GC'ed
-					// new String(tagName.toCharArray()) is more expressive, but results in 1 extra arraycopy
-					tagName = new String(tagName);
-					name2nid.put(tagName, nids);
-				} else if (!nid.equals(nids.get(0))) {
-					// Alternatively, !nids.contains(nid) might have come to mind.
-					// However, I guess that 'tag history' means we need to record each change of revision
-					// associated with the tag, i.e. imagine project evolution:
-					// tag1=r1, tag1=r2, tag1=r1. If we choose !contains, list top of tag1 would point to r2
-					// while we need it to point to r1.
-					// In fact, there are still possible odd patterns in name2nid list, e.g.
-					// when tag was removed and added back(initially rev1 tag1, on removal *added* nullrev tag1), 
-					// then added back (rev2 tag1).
-					// name2nid would list (rev2 nullrev rev1) as many times, as there were revisions of the .hgtags file
-					// See cpython "v2.4.3c1" revision for example.
-					// It doesn't seem to hurt (unless there are clients that care about tag history and depend on
-					// unique revisions there), XXX but better to be fixed (not sure how, though) 
-					((LinkedList<Nodeid>) nids).addFirst(nid);
-					// XXX repo.getNodeidCache().nodeid(nid);
-				}
-				List<String> revTags = nid2name.get(nid);
-				if (revTags == null) {
-					revTags = new LinkedList<String>();
-					revTags.add(tagName);
-					nid2name.put(nid, revTags);
-				} else if (!revTags.contains(tagName)) {
-					// !contains because we don't care about order of the tags per revision
-					revTags.add(tagName);
-				}
-				
+				// tagName is substring of full line, thus need a copy to let the line be GC'ed
+				// new String(tagName.toCharArray()) is more expressive, but results in 1 extra arraycopy
+				add(nid, new String(line.substring(spacePos+1)), nid2name, name2nid);
 			} else {
 				repo.getContext().getLog().warn(getClass(), "Bad tags line: %s", line);
 			}
 		}
 	}
 
+	/**
+	 * Same as {@link #read(BufferedReader, Map, Map)}, but parses UTF-8 encoded content right from bytes,
+	 * without intermediate String for complete content and each line
+	 */
+	private void read(byte[] data, int start, int end, Map<Nodeid,List<String>> nid2name, Map<String, List<Nodeid>> name2nid) {
+		int lineStart = start;
+		while (lineStart < end) {
+			int lineEnd = lineStart;
+			while (lineEnd < end && data[lineEnd] != '\n') {
+				lineEnd++;
+			}
+			final int next = lineEnd + 1;
+			// trim, as String.trim() does
+			while (lineStart < lineEnd && (data[lineStart] & 0xFF) <= ' ') {
+				lineStart++;
+			}
+			while (lineEnd > lineStart && (data[lineEnd-1] & 0xFF) <= ' ') {
+				lineEnd--;
+			}
+			if (lineEnd > lineStart) {
+				if (lineEnd - lineStart < 40+2 || data[lineStart + 40] != ' ') {
+					repo.getContext().getLog().warn(getClass(), "Bad tags line: %s", new String(data, lineStart, lineEnd - lineStart, utf8));
+				} else {
+					Nodeid nid = Nodeid.fromAscii(data, lineStart, 40);
+					add(nid, new String(data, lineStart + 41, lineEnd - lineStart - 41, utf8), nid2name, name2nid);
+				}
+			}
+			lineStart = next;
+		}
+	}
+
+	private static void add(Nodeid nid, String tagName, Map<Nodeid,List<String>> nid2name, Map<String, List<Nodeid>> name2nid) {
+		List<Nodeid> nids = name2nid.get(tagName);
+		if (nids == null) {
+			nids = new LinkedList<Nodeid>();
+			nids.add(nid);
+			name2nid.put(tagName, nids);
+		} else if (!nid.equals(nids.get(0))) {
+			// Alternatively, !nids.contains(nid) might have come to mind.
+			// However, I guess that 'tag history' means we need to record each change of revision
+			// associated with the tag, i.e. imagine project evolution:
+			// tag1=r1, tag1=r2, tag1=r1. If we choose !contains, list top of tag1 would point to r2
+			// while we need it to point to r1.
+			// In fact, there are still possible odd patterns in name2nid list, e.g.
+			// when tag was removed and added back(initially rev1 tag1, on removal *added* nullrev tag1), 
+			// then added back (rev2 tag1).
+			// name2nid would list (rev2 nullrev rev1) as many times, as there were revisions of the .hgtags file
+			// See cpython "v2.4.3c1" revision for example.
+			// It doesn't seem to hurt (unless there are clients that care about tag history and depend on
+			// unique revisions there), XXX but better to be fixed (not sure how, though) 
+			((LinkedList<Nodeid>) nids).addFirst(nid);
+			// XXX repo.getNodeidCache().nodeid(nid);
+		}
+		List<String> revTags = nid2name.get(nid);
+		if (revTags == null) {
+			revTags = new LinkedList<String>();
+			revTags.add(tagName);
+			nid2name.put(nid, revTags);
+		} else if (!revTags.contains(tagName)) {
+			// !contains because we don't care about order of the tags per revision
+			revTags.add(tagName);
+		}
+	}
+
+	/**
+	 * Global tags from each revision of the .hgtags file. Tags found in revisions up to the one recorded in the cache are
+	 * taken from the cache, only revisions of .hgtags that appeared after the cache was written get read and parsed.
+	 * 
+	 * @param hgTags history of the .hgtags file, shall {@link HgDataFile#exists() exist}
+	 */
+	/*package-local*/ void readGlobal(final HgDataFile hgTags) throws HgInvalidControlFileException {
+		final int lastRevision = hgTags.getLastRevision();
+		final int lastCached = readCache(hgTags);
+		if (lastCached == lastRevision) {
+			return;
+		}
+		RevlogStream.Inspector insp = new RevlogStream.Inspector() {
+			
+			public void next(int revisionIndex, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess data) throws HgException {
+				try {
+					final byte[] content = data.byteArray();
+					int start = 0;
+					if (content.length >= 4 && content[0] == 1 && content[1] == '\n') {
+						// skip metadata, e.g. if .hgtags was copied from elsewhere
+						for (int i = 2; i < content.length - 1; i++) {
+							if (content[i] == 1 && content[i+1] == '\n') {
+								start = i + 2;
+								break;
+							}
+						}
+					}
+					read(content, start, content.length, globalToName, globalFromName);
+				} catch (IOException ex) {
+					throw new HgDataStreamException(hgTags.getPath(), ex).setRevisionIndex(revisionIndex);
+				}
+			}
+		};
+		// single pass over new revisions, each one is reconstructed from the previous one, not from its base 
+		hgTags.content.iterate(lastCached + 1, lastRevision, true, insp);
+		writeCache(hgTags);
+	}
+
+	// @return index of the last .hgtags revision recorded in the cache, or -1 if cache is missing or not valid  
+	private int readCache(HgDataFile hgTags) {
+		File cacheFile = getCacheFile();
+		if (!cacheFile.canRead()) {
+			return -1;
+		}
+		BufferedReader br = null;
+		int lastInCache = -1;
+		try {
+			br = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), utf8));
+			// heads of the .hgtags history, tip-most (i.e. last cached revision) first 
+			ArrayList<Nodeid> heads = new ArrayList<Nodeid>(3);
+			IntVector headRevisions = new IntVector(3, -1);
+			String line;
+			while ((line = br.readLine()) != null && line.length() > 0) {
+				int space = line.indexOf(' ');
+				headRevisions.add(Integer.parseInt(line.substring(0, space)));
+				heads.add(Nodeid.fromAscii(line.substring(space + 1)));
+			}
+			if (heads.isEmpty() || headRevisions.get(0) > hgTags.getLastRevision()) {
+				return -1;
+			}
+			// keyed by .hgtags filenode of each head. Rollback/strip would leave some of them unknown or at different index 
+			int[] actual = hgTags.getRevisionIndexes(heads.toArray(new Nodeid[heads.size()]));
+			for (int i = 0; i < actual.length; i++) {
+				if (actual[i] != headRevisions.get(i)) {
+					return -1;
+				}
+			}
+			read(br, globalToName, globalFromName);
+			lastInCache = headRevisions.get(0);
+		} catch (IOException ex) {
+			repo.getContext().getLog().warn(getClass(), ex, null);
+		} catch (IllegalArgumentException ex) {
+			// includes NumberFormatException and bad nodeid
+			repo.getContext().getLog().warn(getClass(), ex, null);
+		} catch (IndexOutOfBoundsException ex) {
+			repo.getContext().getLog().warn(getClass(), ex, null);
+		} catch (HgInvalidControlFileException ex) {
+			repo.getContext().getLog().error(getClass(), ex, null);
+		} finally {
+			if (br != null) {
+				try {
+					br.close();
+				} catch (IOException ex) {
+					repo.getContext().getLog().info(getClass(), ex, null); // ignore
+				}
+			}
+		}
+		if (lastInCache == -1) {
+			// might have failed in the middle of the tags list
+			globalToName.clear();
+			globalFromName.clear();
+		}
+		return lastInCache;
+	}
+
+	private void writeCache(HgDataFile hgTags) throws HgInvalidControlFileException {
+		// RevisionGraph is fine for .hgtags, its history is tiny comparing to the changelog
+		final RevisionGraph graph = RevisionGraph.create(hgTags);
+		BitSet all = new BitSet(graph.revisionCount());
+		all.set(0, graph.revisionCount());
+		final BitSet heads = graph.heads(all);
+		final File cacheFile = getCacheFile();
+		Writer w = null;
+		try {
+			cacheFile.getParentFile().mkdirs();
+			w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(cacheFile), utf8));
+			// last revision is always a head, and goes first. No BitSet.previousSetBit in Java 6
+			IntVector headRevisions = new IntVector(heads.cardinality(), 0);
+			for (int i = heads.nextSetBit(0); i >= 0; i = heads.nextSetBit(i + 1)) {
+				headRevisions.add(i);
+			}
+			for (int j = headRevisions.size() - 1; j >= 0; j--) {
+				final int i = headRevisions.get(j);
+				w.write(Integer.toString(i));
+				w.write(' ');
+				w.write(graph.revision(i).toString());
+				w.write('\n');
+			}
+			w.write('\n');
+			// oldest first, so that reading them back produces the same history
+			for (Map.Entry<String, List<Nodeid>> e : globalFromName.entrySet()) {
+				List<Nodeid> history = e.getValue();
+				for (ListIterator<Nodeid> it = history.listIterator(history.size()); it.hasPrevious(); ) {
+					w.write(it.previous().toString());
+					w.write(' ');
+					w.write(e.getKey());
+					w.write('\n');
+				}
+			}
+			w.close();
+			w = null;
+		} catch (IOException ex) {
+			// not a reason to fail, cache is just an optimization
+			repo.getContext().getLog().warn(getClass(), ex, "Failed to write tags cache");
+			cacheFile.delete();
+		} finally {
+			if (w != null) {
+				try {
+					w.close();
+				} catch (IOException ex) {
+					repo.getContext().getLog().info(getClass(), ex, null); // ignore
+				}
+				cacheFile.delete(); // likely incomplete
+			}
+		}
+	}
+
+	private File getCacheFile() {
+		// Not Mercurial's cache/tags, which is keyed by changelog heads and records tags as seen from these heads only,
+		// while here tag history comes from each .hgtags revision
+		return new File(repo.getRepositoryRoot(), "cache/tags-hg4j");
+	}
+
 	public List<String> tags(Nodeid nid) {
 		ArrayList<String> rv = new ArrayList<String>(5);
 		List<String> l;
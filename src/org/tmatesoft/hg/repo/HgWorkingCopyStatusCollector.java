@@ -22,21 +22,35 @@ import static org.tmatesoft.hg.repo.HgRepository.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.tmatesoft.hg.core.HgBadStateException;
 import org.tmatesoft.hg.core.HgException;
 import org.tmatesoft.hg.core.HgInvalidControlFileException;
 import org.tmatesoft.hg.core.Nodeid;
 import org.tmatesoft.hg.internal.ByteArrayChannel;
+import org.tmatesoft.hg.internal.DigestHelper;
 import org.tmatesoft.hg.internal.Experimental;
+import org.tmatesoft.hg.internal.Filter;
 import org.tmatesoft.hg.internal.FilterByteChannel;
+import org.tmatesoft.hg.internal.Internals;
 import org.tmatesoft.hg.internal.ManifestRevision;
 import org.tmatesoft.hg.internal.PathScope;
 import org.tmatesoft.hg.internal.Preview;
@@ -60,16 +74,30 @@ public class HgWorkingCopyStatusCollector {
 
 	private final HgRepository repo;
 	private final FileIterator repoWalker;
+	private final IgnoredDirectoryFilter ignoredDirFilter; // null when walker comes from outside
+	private final boolean sortedWalker; // walker reports files in the order of their paths
+	private boolean reportIgnored = true;
 	private HgDirstate dirstate;
 	private HgStatusCollector baseRevisionCollector;
 	private PathPool pathPool;
 	private ManifestRevision dirstateParentManifest;
+	private final ArrayList<ContentCheck> pendingContentChecks = new ArrayList<ContentCheck>();
+	private Map<Path, ContentCheckResult> contentCheckResults; // optional, outcomes of earlier content checks
+	private int walkStartTime; // seconds
 
 	/**
 	 * Collector that iterates over complete working copy
 	 */
 	public HgWorkingCopyStatusCollector(HgRepository hgRepo) {
-		this(hgRepo, new HgInternals(hgRepo).createWorkingDirWalker(null));
+		this(hgRepo, new IgnoredDirectoryFilter(null));
+	}
+
+	// walker over working directory that may skip ignored directories, limited to scope, if any
+	private HgWorkingCopyStatusCollector(HgRepository hgRepo, IgnoredDirectoryFilter dirFilter) {
+		repo = hgRepo;
+		repoWalker = new HgInternals(hgRepo).createWorkingDirWalker(dirFilter);
+		ignoredDirFilter = dirFilter;
+		sortedWalker = true;
 	}
 
 	/**
@@ -80,8 +108,14 @@ public class HgWorkingCopyStatusCollector {
 	 * @param workingCopyWalker iterator over files in the working copy
 	 */
 	public HgWorkingCopyStatusCollector(HgRepository hgRepo, FileIterator workingCopyWalker) {
+		this(hgRepo, workingCopyWalker, false);
+	}
+
+	private HgWorkingCopyStatusCollector(HgRepository hgRepo, FileIterator workingCopyWalker, boolean sortedWalk) {
 		repo = hgRepo;
 		repoWalker = workingCopyWalker;
+		ignoredDirFilter = null;
+		sortedWalker = sortedWalk;
 	}
 	
 	/**
@@ -92,6 +126,18 @@ public class HgWorkingCopyStatusCollector {
 		baseRevisionCollector = sc;
 	}
 
+	/**
+	 * Tells whether {@link HgStatusInspector#ignored(Path) ignored} files shall get reported (default). If not, working directory walk
+	 * doesn't descend into directories that are ignored as a whole and have no tracked files under them 
+	 * (think of build output), and status takes time proportional to the tracked part of the tree.
+	 * Has no effect when collector walks files from a {@link FileIterator} supplied by client.
+	 * 
+	 * @param report <code>false</code> if client doesn't need ignored files
+	 */
+	public void setReportIgnored(boolean report) {
+		reportIgnored = report;
+	}
+
 	/*package-local*/ PathPool getPathPool() {
 		if (pathPool == null) {
 			if (baseRevisionCollector == null) {
@@ -107,6 +153,17 @@ public class HgWorkingCopyStatusCollector {
 		this.pathPool = pathPool;
 	}
 
+	/**
+	 * Let collector keep outcome of file content checks, and not to check files again unless they change. 
+	 * Results are kept only for files that were not modified in the same second as the walk started, 
+	 * as there's no way to tell subsequent modification with the same timestamp (and size) otherwise. 
+	 * 
+	 * @param results modifiable map to look up and to record results, <code>null</code> not to keep results (default)
+	 */
+	/*package-local*/ void setContentCheckResults(Map<Path, ContentCheckResult> results) {
+		contentCheckResults = results;
+	}
+
 	/**
 	 * Access to directory state information this collector uses.
 	 * @return directory state holder, never <code>null</code> 
@@ -163,10 +220,8 @@ public class HgWorkingCopyStatusCollector {
 			initDirstateParentManifest();
 		}
 		ManifestRevision collect = null; // non null indicates we compare against base revision
-		Set<Path> baseRevFiles = Collections.emptySet(); // files from base revision not affected by status calculation 
 		if (baseRevision != TIP && baseRevision != WORKING_COPY) {
 			collect = getManifest(baseRevision);
-			baseRevFiles = new TreeSet<Path>(collect.files());
 		}
 		if (inspector instanceof HgStatusCollector.Record) {
 			HgStatusCollector sc = baseRevisionCollector == null ? new HgStatusCollector(repo) : baseRevisionCollector;
@@ -184,7 +239,26 @@ public class HgWorkingCopyStatusCollector {
 			((HgStatusCollector.Record) inspector).init(rev1, rev2, sc);
 		}
 		final HgIgnore hgIgnore = repo.getIgnore();
+		if (ignoredDirFilter != null) {
+			ignoredDirFilter.init(reportIgnored ? null : hgIgnore, getDirstateImpl());
+		}
 		repoWalker.reset();
+		pendingContentChecks.clear();
+		walkStartTime = (int) (System.currentTimeMillis() / 1000);
+		if (sortedWalker && !getDirstateImpl().hasCanonicalNames()) {
+			walkSorted(collect, baseRevision, hgIgnore, inspector);
+		} else {
+			walkUnsorted(collect, baseRevision, hgIgnore, inspector);
+		}
+	}
+
+	// Files from the walker come in arbitrary order, or may need case-insensitive match to dirstate entries
+	private void walkUnsorted(ManifestRevision collect, int baseRevision, HgIgnore hgIgnore, HgStatusInspector inspector) throws IOException {
+		Set<Path> baseRevFiles = Collections.emptySet(); // files from base revision not affected by status calculation 
+		if (collect != null) {
+			baseRevFiles = new TreeSet<Path>(collect.files());
+		}
+		final BaseRevisionNames baseRevNames = new BaseRevisionSet(baseRevFiles);
 		TreeSet<Path> processed = new TreeSet<Path>(); // names of files we handled as they known to Dirstate (not FileIterator)
 		final HgDirstate ds = getDirstateImpl();
 		TreeSet<Path> knownEntries = ds.all(); // here just to get dirstate initialized
@@ -230,7 +304,7 @@ public class HgWorkingCopyStatusCollector {
 				// modified, added, removed, clean
 				processed.add(knownInDirstate);
 				if (collect != null) { // need to check against base revision, not FS file
-					checkLocalStatusAgainstBaseRevision(baseRevFiles, collect, baseRevision, knownInDirstate, f, inspector);
+					checkLocalStatusAgainstBaseRevision(baseRevNames, collect, baseRevision, knownInDirstate, f, inspector);
 				} else {
 					checkLocalStatusAgainstFile(knownInDirstate, f, inspector);
 				}
@@ -245,6 +319,7 @@ public class HgWorkingCopyStatusCollector {
 				// yield two statuses for the same file)
 			}
 		}
+		completeContentChecks(inspector);
 		if (collect != null) {
 			for (Path fromBase : baseRevFiles) {
 				if (repoWalker.inScope(fromBase)) {
@@ -272,6 +347,116 @@ public class HgWorkingCopyStatusCollector {
 		}
 	}
 
+	// Walker, dirstate and base revision all list files in the order of their paths, status is calculated
+	// in a single pass over the three, with neither name lookups nor intermediate sets
+	private void walkSorted(ManifestRevision collect, int baseRevision, HgIgnore hgIgnore, HgStatusInspector inspector) throws IOException {
+		final HgDirstate ds = getDirstateImpl();
+		final BaseRevisionFiles baseRevFiles = collect == null ? null : new BaseRevisionFiles(collect, ds);
+		final Iterator<Path> baseIt = collect == null ? Collections.<Path>emptySet().iterator() : collect.files().iterator();
+		final int dsCount = ds.entryCount();
+		int dsIndex = 0;
+		Path dsName = dsCount > 0 ? ds.entryName(0) : null;
+		Path baseName = baseIt.hasNext() ? baseIt.next() : null;
+		Path fname = null;
+		do {
+			final Path prev = fname;
+			FileInfo f = null;
+			if (repoWalker.hasNext()) {
+				repoWalker.next();
+				fname = getPathPool().path(repoWalker.name());
+				f = repoWalker.file();
+				assert prev == null || prev.compareTo(fname) < 0;
+			} else {
+				fname = null;
+			}
+			// tracked and base revision files that precede the one from the walker (or all left, once walk is over) 
+			// are not in the working directory
+			while (true) {
+				final boolean dsBefore = dsName != null && (fname == null || dsName.compareTo(fname) < 0);
+				final boolean baseBefore = baseName != null && (fname == null || baseName.compareTo(fname) < 0);
+				if (!dsBefore && !baseBefore) {
+					break;
+				}
+				final int cmp = !dsBefore ? 1 : (!baseBefore ? -1 : dsName.compareTo(baseName));
+				final Path m = cmp <= 0 ? dsName : baseName;
+				final HgDirstate.EntryKind kind = cmp <= 0 ? ds.entryKind(dsIndex) : null;
+				if (repoWalker.inScope(m)) {
+					// do not report as missing/removed those FileIterator doesn't care about.
+					if (cmp >= 0) {
+						baseRevFiles.reportRemoved(m, inspector);
+					}
+					if (kind == null) {
+						// known in base revision only
+					} else if (kind != HgDirstate.EntryKind.Removed) {
+						// not removed from the repository = 'deleted'  
+						inspector.missing(m);
+					} else if (collect == null) {
+						inspector.removed(m);
+					} else if (cmp == 0) {
+						// if we check against non-tip revision, do not report files that were added past that revision and now removed.
+						baseRevFiles.reportRemoved(m, inspector);
+					}
+				}
+				if (cmp <= 0) {
+					dsName = ++dsIndex < dsCount ? ds.entryName(dsIndex) : null;
+				}
+				if (cmp >= 0) {
+					baseName = baseIt.hasNext() ? baseIt.next() : null;
+				}
+			}
+			if (fname == null) {
+				break;
+			}
+			final boolean inDirstate = fname.equals(dsName);
+			final boolean inBase = fname.equals(baseName);
+			if (baseRevFiles != null) {
+				baseRevFiles.current = fname;
+			}
+			if (!f.exists()) {
+				// file coming from iterator doesn't exist.
+				if (inDirstate) {
+					if (ds.entryKind(dsIndex) == HgDirstate.EntryKind.Removed) {
+						inspector.removed(fname);
+					} else {
+						inspector.missing(fname);
+					}
+				} else if (inBase) {
+					baseRevFiles.reportRemovedOrUnknown(fname, inspector);
+				} else {
+					// see #walkUnsorted on why such files are reported as unknown
+					inspector.unknown(fname);
+				}
+			} else if (inDirstate) {
+				// tracked file.
+				if (collect != null) { // need to check against base revision, not FS file
+					checkLocalStatusAgainstBaseRevision(baseRevFiles, collect, baseRevision, fname, f, inspector);
+				} else {
+					checkLocalStatusAgainstFile(fname, f, inspector);
+				}
+			} else {
+				if (hgIgnore.isIgnored(fname)) { // hgignore shall be consulted only for non-tracked files
+					inspector.ignored(fname);
+				} else {
+					inspector.unknown(fname);
+				}
+				// the file is not tracked, but if it's known at baseRevision, it shall get reported as removed as well
+				if (inBase && repoWalker.inScope(fname)) {
+					baseRevFiles.reportRemoved(fname, inspector);
+				}
+			}
+			if (inDirstate) {
+				dsName = ++dsIndex < dsCount ? ds.entryName(dsIndex) : null;
+			}
+			if (inBase) {
+				baseName = baseIt.hasNext() ? baseIt.next() : null;
+			}
+		} while (true);
+		completeContentChecks(inspector);
+		if (baseRevFiles != null) {
+			baseRevFiles.complete(inspector);
+		}
+	}
+
 	public HgStatusCollector.Record status(int baseRevision) throws HgInvalidControlFileException, IOException {
 		HgStatusCollector.Record rv = new HgStatusCollector.Record();
 		walk(baseRevision, rv);
@@ -303,10 +488,10 @@ public class HgWorkingCopyStatusCollector {
 				// where one of the parents (first parent) had no fname file, but second parent had.
 				// E.g. fork revision 3, revision 4 gets .hgtags, few modifications and merge(3,12)
 				// see Issue 14 for details
-				if (rev == null || !areTheSame(f, df, rev)) {
+				if (rev == null) {
 					inspector.modified(df.getPath());
 				} else {
-					inspector.clean(df.getPath());
+					scheduleContentCheck(df.getPath(), f, df, rev);
 				}
 			}
 		} else if ((r = getDirstateImpl().checkAdded(fname)) != null) {
@@ -323,7 +508,7 @@ public class HgWorkingCopyStatusCollector {
 	}
 	
 	// XXX refactor checkLocalStatus methods in more OO way
-	private void checkLocalStatusAgainstBaseRevision(Set<Path> baseRevNames, ManifestRevision collect, int baseRevision, Path fname, FileInfo f, HgStatusInspector inspector) {
+	private void checkLocalStatusAgainstBaseRevision(final BaseRevisionNames baseRevNames, ManifestRevision collect, int baseRevision, Path fname, FileInfo f, HgStatusInspector inspector) {
 		// fname is in the dirstate, either Normal, Added, Removed or Merged
 		Nodeid nid1 = collect.nodeid(fname);
 		HgManifest.Flags flags = collect.flags(fname);
@@ -334,7 +519,12 @@ public class HgWorkingCopyStatusCollector {
 			// merged: was not known, report as added?
 			if ((r = getDirstateImpl().checkNormal(fname)) != null) {
 				try {
-					Path origin = HgStatusCollector.getOriginIfCopy(repo, fname, baseRevNames, baseRevision);
+					Path origin = HgStatusCollector.getOriginIfCopy(repo, fname, new Path.Matcher() {
+
+						public boolean accept(Path path) {
+							return baseRevNames.contains(path);
+						}
+					}, baseRevision);
 					if (origin != null) {
 						inspector.copied(getPathPool().path(origin), fname);
 						return;
@@ -387,11 +577,7 @@ public class HgWorkingCopyStatusCollector {
 				// when added - seems to be the case of a file added once again, hence need to check if content is different
 				// either clean or modified
 				HgDataFile fileNode = repo.getFileNode(fname);
-				if (areTheSame(f, fileNode, nid1)) {
-					inspector.clean(fname);
-				} else {
-					inspector.modified(fname);
-				}
+				scheduleContentCheck(fname, f, fileNode, nid1);
 				baseRevNames.remove(fname); // consumed, processed, handled.
 			} else if (getDirstateImpl().checkRemoved(fname) != null) {
 				// was known, and now marked as removed, report it right away, do not rely on baseRevNames processing later
@@ -400,13 +586,108 @@ public class HgWorkingCopyStatusCollector {
 			}
 			// only those left in baseRevNames after processing are reported as removed 
 		}
+	}
+
+	// Content of the file is compared once walk is over, all such files at once, from few threads.
+	// Comparison calculates nodeid of the working file (with parents of the revision) and doesn't need revision content,
+	// unless the revision may have copy metadata, which is part of the nodeid but not of the working file.
+	private void scheduleContentCheck(Path fname, FileInfo f, HgDataFile dataFile, Nodeid revision) {
+		FileInfo fi = f;
+		if (f instanceof RegularFileInfo) {
+			// walker reuses FileInfo instances, need our own to read the file later
+			RegularFileInfo rfi = new RegularFileInfo();
+			rfi.init(new File(repo.getWorkingDir(), fname.toString()));
+			fi = rfi;
+		}
+		ContentCheck cc = new ContentCheck(fname, fi, dataFile, revision);
+		pendingContentChecks.add(cc);
+		if (contentCheckResults != null) {
+			cc.lastModified = f.lastModified();
+			cc.length = f.length();
+			ContentCheckResult known = contentCheckResults.get(fname);
+			if (known != null && known.lastModified == cc.lastModified && known.length == cc.length && known.revision.equals(revision)) {
+				cc.same = known.same;
+				return;
+			}
+		}
+		// revlogs are not for concurrent access, read whatever is needed from the repository right here
+		try {
+			int fileRevisionIndex = dataFile.getRevisionIndex(revision);
+			dataFile.parents(fileRevisionIndex, new int[2], cc.parent1, cc.parent2);
+		} catch (HgException ex) {
+			repo.getContext().getLog().warn(getClass(), ex, null);
+			return; // report as modified
+		}
+		cc.filters = repo.getFiltersFromWorkingDirToRepo(dataFile.getPath());
+		if (fi == f) {
+			// no idea if FileInfo stays valid once walker moves on, check right away
+			cc.sameNodeid = cc.call();
+		}
+	}
 
-		// TODO think over if content comparison may be done more effectively by e.g. calculating nodeid for a local file and comparing it with nodeid from manifest
-		// we don't need to tell exact difference, hash should be enough to detect difference, and it doesn't involve reading historical file content, and it's relatively 
-		// cheap to calc hash on a file (no need to keep it completely in memory). OTOH, if I'm right that the next approach is used for nodeids: 
-		// changeset nodeid + hash(actual content) => entry (Nodeid) in the next Manifest
-		// then it's sufficient to check parents from dirstate, and if they do not match parents from file's baseRevision (non matching parents means different nodeids).
-		// The question is whether original Hg treats this case (same content, different parents and hence nodeids) as 'modified' or 'clean'
+	private void completeContentChecks(HgStatusInspector inspector) throws IOException {
+		ArrayList<ContentCheck> toRun = new ArrayList<ContentCheck>(pendingContentChecks.size());
+		for (ContentCheck cc : pendingContentChecks) {
+			if (cc.same == null && cc.filters != null && cc.sameNodeid == null) {
+				toRun.add(cc);
+			}
+		}
+		try {
+			final int threads = toRun.size() < 2 ? 1 : min(toRun.size(), new HgInternals(repo).getThreadCount(Internals.CFG_PROPERTY_STATUS_CHECK_THREADS));
+			if (threads > 1) {
+				ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+					
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "hg4j-status-check");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+				try {
+					List<Future<Boolean>> results = executor.invokeAll(toRun);
+					for (int i = 0; i < toRun.size(); i++) {
+						toRun.get(i).sameNodeid = results.get(i).get();
+					}
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				} catch (ExecutionException ex) {
+					// ContentCheck doesn't throw checked exceptions, it's either RuntimeException or Error
+					throw new HgBadStateException(ex.getCause());
+				} finally {
+					executor.shutdown();
+				}
+			} else {
+				for (ContentCheck cc : toRun) {
+					cc.sameNodeid = cc.call();
+				}
+			}
+			for (ContentCheck cc : pendingContentChecks) {
+				boolean same;
+				if (cc.same != null) {
+					same = cc.same; // known from earlier walk
+				} else if (cc.filters == null) {
+					same = false; // failed to access the revision
+				} else {
+					if (cc.sameNodeid) {
+						same = true;
+					} else {
+						// copied file gets null first parent and metadata that is part of its nodeid, shall compare actual content then
+						same = cc.mayHaveCopyMetadata() && areTheSame(cc.file, cc.dataFile, cc.revision);
+					}
+					if (contentCheckResults != null && cc.lastModified < walkStartTime) {
+						contentCheckResults.put(cc.path, new ContentCheckResult(cc.lastModified, cc.length, cc.revision, same));
+					}
+				}
+				if (same) {
+					inspector.clean(cc.path);
+				} else {
+					inspector.modified(cc.path);
+				}
+			}
+		} finally {
+			pendingContentChecks.clear();
+		}
 	}
 
 	private boolean areTheSame(FileInfo f, HgDataFile dataFile, Nodeid revision) {
@@ -428,8 +709,7 @@ public class HgWorkingCopyStatusCollector {
 	}
 	
 	private boolean areTheSame(FileInfo f, final byte[] data, Path p) {
-		ReadableByteChannel is = null;
-		class Check implements ByteChannel {
+		class Check implements WorkingFileSink {
 			final boolean debug = repo.getContext().getLog().isDebug(); 
 			boolean sameSoFar = true;
 			int x = 0;
@@ -460,18 +740,25 @@ public class HgWorkingCopyStatusCollector {
 				return buffer.limit();
 			}
 			
-			public boolean sameSoFar() {
+			public boolean needMore() {
 				return sameSoFar;
 			}
 			public boolean ultimatelyTheSame() {
 				return sameSoFar && x == data.length;
 			}
 		};
-		Check check = new Check(); 
+		Check check = new Check();
+		int bufferSize = min(1 + data.length * 2 /*to fit couple of lines appended; never zero*/, 8192);
+		return pipeWorkingFile(f, repo.getFiltersFromWorkingDirToRepo(p), check, bufferSize) && check.ultimatelyTheSame();
+	}
+
+	// pipes working file through filters into the sink, as long as the sink needs more; false if file could not be read
+	private boolean pipeWorkingFile(FileInfo f, List<Filter> filterList, WorkingFileSink sink, int bufferSize) {
+		ReadableByteChannel is = null;
 		try {
 			is = f.newInputChannel();
-			ByteBuffer fb = ByteBuffer.allocate(min(1 + data.length * 2 /*to fit couple of lines appended; never zero*/, 8192));
-			FilterByteChannel filters = new FilterByteChannel(check, repo.getFiltersFromWorkingDirToRepo(p));
+			ByteBuffer fb = ByteBuffer.allocate(bufferSize);
+			FilterByteChannel filters = new FilterByteChannel(sink, filterList);
 			Preview preview = Adaptable.Factory.getAdapter(filters, Preview.class, null);
 			if (preview != null) {
 				while (is.read(fb) != -1) {
@@ -488,15 +775,15 @@ public class HgWorkingCopyStatusCollector {
 				is = f.newInputChannel();
 				fb.clear();
 			}
-			while (is.read(fb) != -1 && check.sameSoFar()) {
+			while (is.read(fb) != -1 && sink.needMore()) {
 				fb.flip();
 				filters.write(fb);
 				fb.compact();
 			}
-			return check.ultimatelyTheSame();
+			return true;
 		} catch (CancelledException ex) {
 			repo.getContext().getLog().warn(getClass(), ex, "Unexpected cancellation");
-			return check.ultimatelyTheSame();
+			return true;
 		} catch (IOException ex) {
 			repo.getContext().getLog().warn(getClass(), ex, null);
 		} finally {
@@ -511,6 +798,97 @@ public class HgWorkingCopyStatusCollector {
 		return false;
 	}
 
+	private interface WorkingFileSink extends ByteChannel {
+		boolean needMore();
+	}
+
+	private class ContentCheck implements Callable<Boolean> {
+		final Path path;
+		final FileInfo file;
+		final HgDataFile dataFile;
+		final Nodeid revision;
+		final byte[] parent1 = new byte[20], parent2 = new byte[20];
+		List<Filter> filters; // null if failed to access the revision
+		Boolean sameNodeid; // null until checked
+		Boolean same; // outcome of an earlier check, if known
+		int lastModified; // file timestamp and size at the time of the check,
+		long length; // recorded only to keep outcome of the check
+
+		public ContentCheck(Path fname, FileInfo f, HgDataFile df, Nodeid rev) {
+			path = fname;
+			file = f;
+			dataFile = df;
+			revision = rev;
+		}
+
+		public Boolean call() {
+			RevisionTextDigest digest = new RevisionTextDigest(new DigestHelper().sha1(parent1, parent2));
+			return pipeWorkingFile(file, filters, digest, 8192) && revision.equalsTo(digest.complete());
+		}
+
+		boolean mayHaveCopyMetadata() {
+			return Nodeid.NULL.equalsTo(parent1);
+		}
+	}
+
+	/*package-local*/ static final class ContentCheckResult {
+		final int lastModified;
+		final long length;
+		final Nodeid revision;
+		final boolean same;
+
+		ContentCheckResult(int fileLastModified, long fileLength, Nodeid fileRevision, boolean sameContent) {
+			lastModified = fileLastModified;
+			length = fileLength;
+			revision = fileRevision;
+			same = sameContent;
+		}
+	}
+
+	// feeds working file content into revision digest the way it's stored in revlog, i.e. with
+	// empty metadata in front of the text that starts the same way metadata does.
+	private static class RevisionTextDigest implements WorkingFileSink {
+		private final DigestHelper digest;
+		private final byte[] head = new byte[2];
+		private int headLength = 0;
+		private boolean headDone = false;
+
+		public RevisionTextDigest(DigestHelper dh) {
+			digest = dh;
+		}
+
+		public int write(ByteBuffer buffer) {
+			final int count = buffer.remaining();
+			while (!headDone && buffer.hasRemaining()) {
+				head[headLength++] = buffer.get();
+				if (headLength == head.length) {
+					flushHead();
+				}
+			}
+			digest.update(buffer);
+			return count;
+		}
+
+		public boolean needMore() {
+			return true;
+		}
+
+		byte[] complete() {
+			if (!headDone) {
+				flushHead();
+			}
+			return digest.done().asBinary();
+		}
+
+		private void flushHead() {
+			if (headLength == 2 && head[0] == 1 && head[1] == '\n') {
+				digest.update(head, 0, 2).update(head, 0, 2);
+			}
+			digest.update(head, 0, headLength);
+			headDone = true;
+		}
+	}
+
 	private static boolean todoCheckFlagsEqual(FileInfo f, HgManifest.Flags originalManifestFlags) {
 		// FIXME implement
 		return true;
@@ -545,8 +923,7 @@ public class HgWorkingCopyStatusCollector {
 		//
 		
 		//FileIterator fi = file.isDirectory() ? new DirFileIterator(hgRepo, file) : new FileListIterator(, file);
-		FileIterator fi = new HgInternals(hgRepo).createWorkingDirWalker(new PathScope(true, paths));
-		return new HgWorkingCopyStatusCollector(hgRepo, fi);
+		return new HgWorkingCopyStatusCollector(hgRepo, new IgnoredDirectoryFilter(new PathScope(true, paths)));
 	}
 	
 	/**
@@ -559,15 +936,150 @@ public class HgWorkingCopyStatusCollector {
 	 */
 	@Experimental(reason="Provisional API. May add boolean strict argument for those who write smart matchers that can be used in FileWalker")
 	public static HgWorkingCopyStatusCollector create(HgRepository hgRepo, Path.Matcher scope) {
+		if (scope == null || scope instanceof Path.Matcher.Any) {
+			return new HgWorkingCopyStatusCollector(hgRepo);
+		}
 		FileIterator w = new HgInternals(hgRepo).createWorkingDirWalker(null);
-		FileIterator wf = (scope == null || scope instanceof Path.Matcher.Any) ? w : new FileIteratorFilter(w, scope);
+		FileIterator wf = new FileIteratorFilter(w, scope);
 		// the reason I need to iterate over full repo and apply filter is that I have no idea whatsoever about
 		// patterns in the scope. I.e. if scope lists a file (PathGlobMatcher("a/b/c.txt")), FileWalker won't get deep
 		// to the file unless matcher would also explicitly include "a/", "a/b/" in scope. Since I can't rely
 		// users would write robust matchers, and I don't see a decent way to enforce that (i.e. factory to produce
 		// correct matcher from Path is much like what PathScope does, and can be accessed directly with #create(repo, Path...)
 		// method above/
-		return new HgWorkingCopyStatusCollector(hgRepo, wf);
+		return new HgWorkingCopyStatusCollector(hgRepo, wf, true);
+	}
+
+	/**
+	 * Files of the base revision not yet consumed by {@link #checkLocalStatusAgainstBaseRevision}
+	 */
+	private interface BaseRevisionNames {
+		boolean contains(Path p);
+		boolean remove(Path p);
+	}
+
+	private static class BaseRevisionSet implements BaseRevisionNames {
+		private final Set<Path> files;
+
+		public BaseRevisionSet(Set<Path> baseRevFiles) {
+			files = baseRevFiles;
+		}
+
+		public boolean contains(Path p) {
+			return files.contains(p);
+		}
+
+		public boolean remove(Path p) {
+			return files.remove(p);
+		}
+	}
+
+	/**
+	 * Files of the base revision, as {@link #checkLocalStatusAgainstBaseRevision} sees them during {@link #walkSorted sorted walk}.
+	 * Files are consumed by position in the walk, only copy sources of added files get consumed explicitly, with {@link #remove(Path)}.
+	 * As copy target may come later than its source, reports of removed files that are copy sources of added files 
+	 * get postponed till the walk is over. 
+	 */
+	private static class BaseRevisionFiles implements BaseRevisionNames {
+		private final ManifestRevision revision;
+		private final Set<Path> copySources; // sources of all added files, whether copy gets reported or not
+		private final Set<Path> copied = new HashSet<Path>(); // reported as copy sources
+		private final ArrayList<Path> removed = new ArrayList<Path>();
+		private final ArrayList<Path> removedOrUnknown = new ArrayList<Path>();
+		Path current; // file being processed, not a copy source
+
+		public BaseRevisionFiles(ManifestRevision baseRevision, HgDirstate ds) {
+			revision = baseRevision;
+			copySources = new HashSet<Path>();
+			for (int i = 0, count = ds.entryCount(); i < count; i++) {
+				if (ds.entryKind(i) == HgDirstate.EntryKind.Added) {
+					Path copySource = ds.checkAdded(ds.entryName(i)).copySource();
+					if (copySource != null && baseRevision.nodeid(copySource) != null) {
+						copySources.add(copySource);
+					}
+				}
+			}
+		}
+
+		public boolean contains(Path p) {
+			return revision.nodeid(p) != null && !copied.contains(p);
+		}
+
+		public boolean remove(Path p) {
+			if (!contains(p)) {
+				return false;
+			}
+			if (!p.equals(current)) {
+				copied.add(p);
+			}
+			return true;
+		}
+
+
+		// file known in base revision was not seen in the working copy
+		void reportRemoved(Path p, HgStatusInspector inspector) {
+			if (copySources.contains(p)) {
+				removed.add(p);
+			} else {
+				inspector.removed(p);
+			}
+		}
+
+		// file known in base revision came from the walker as non-existent, and is not tracked
+		void reportRemovedOrUnknown(Path p, HgStatusInspector inspector) {
+			if (copySources.contains(p)) {
+				removedOrUnknown.add(p);
+			} else {
+				inspector.removed(p);
+			}
+		}
+
+		// reports postponed till all copies are known
+		void complete(HgStatusInspector inspector) {
+			for (Path p : removed) {
+				if (!copied.contains(p)) {
+					inspector.removed(p);
+				}
+			}
+			for (Path p : removedOrUnknown) {
+				if (copied.contains(p)) {
+					inspector.unknown(p);
+				} else {
+					inspector.removed(p);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Keeps working directory walker from descending into ignored directories without tracked files
+	 * (unless ignored files are of interest), delegates to original scope (if any) otherwise.
+	 * Affects directories only, files are always passed to the scope. 
+	 */
+	private static class IgnoredDirectoryFilter implements Path.Matcher {
+		private final Path.Matcher scope;
+		private HgIgnore hgIgnore;
+		private HgDirstate dirstate;
+
+		public IgnoredDirectoryFilter(Path.Matcher walkerScope) {
+			scope = walkerScope;
+		}
+
+		// ignore == null to walk all directories
+		void init(HgIgnore ignore, HgDirstate ds) {
+			hgIgnore = ignore;
+			dirstate = ds;
+		}
+
+		public boolean accept(Path path) {
+			if (scope != null && !scope.accept(path)) {
+				return false;
+			}
+			if (hgIgnore != null && path.isDirectory() && hgIgnore.isIgnoredDirectory(path)) {
+				return dirstate.hasEntriesUnder(path);
+			}
+			return true;
+		}
 	}
 
 	private static class FileListIterator implements FileIterator {
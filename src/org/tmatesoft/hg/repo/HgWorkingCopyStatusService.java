@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2012 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.tmatesoft.hg.core.HgInvalidControlFileException;
+import org.tmatesoft.hg.internal.Experimental;
+import org.tmatesoft.hg.util.FileInfo;
+import org.tmatesoft.hg.util.FileIterator;
+import org.tmatesoft.hg.util.Path;
+import org.tmatesoft.hg.util.PathPool;
+import org.tmatesoft.hg.util.PathRewrite;
+import org.tmatesoft.hg.util.RegularFileInfo;
+
+/**
+ * Working copy status for clients that ask for it over and over again (e.g. IDE integration).
+ * Keeps what it has learned about the working directory between the queries: directories are listed again
+ * only if their timestamp has changed, and content of a file is compared with its revision only if
+ * file timestamp or size have changed since last comparison.
+ *
+ * Each query still looks at timestamps of all directories and tracked files, file system change notifications
+ * are not available on all platforms we support. Instance is thread-safe, queries get serialized.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+@Experimental(reason="Provisional API")
+public class HgWorkingCopyStatusService {
+	private final HgRepository repo;
+	private final CachingWalker walker;
+	private final PathPool pathPool;
+	private final Map<Path, HgWorkingCopyStatusCollector.ContentCheckResult> contentChecks;
+
+	public HgWorkingCopyStatusService(HgRepository hgRepo) {
+		repo = hgRepo;
+		walker = new CachingWalker(hgRepo.getWorkingDir(), new HgInternals(hgRepo).createWorkingDirPathSource());
+		pathPool = new PathPool(new PathRewrite.Empty());
+		contentChecks = new HashMap<Path, HgWorkingCopyStatusCollector.ContentCheckResult>();
+	}
+
+	/**
+	 * Same as {@link HgWorkingCopyStatusCollector#walk(int, HgStatusInspector)}, with directory state and
+	 * ignore patterns as they are at the moment of the call.
+	 */
+	public synchronized void walk(int baseRevision, HgStatusInspector inspector) throws HgInvalidControlFileException, IOException {
+		HgWorkingCopyStatusCollector wcsc = new HgWorkingCopyStatusCollector(repo, walker);
+		wcsc.setPathPool(pathPool);
+		wcsc.setContentCheckResults(contentChecks);
+		wcsc.walk(baseRevision, inspector);
+	}
+
+	/**
+	 * Forget everything known about the working directory, next query re-reads it completely.
+	 * Use when timestamps can't be trusted (e.g. files were restored from backup with their original timestamps).
+	 */
+	public synchronized void reset() {
+		walker.clear();
+		contentChecks.clear();
+	}
+
+	/**
+	 * Same as {@link org.tmatesoft.hg.util.FileWalker}, but keeps directory listings and
+	 * re-reads a directory only when its timestamp has changed.
+	 */
+	private static class CachingWalker implements FileIterator {
+		private final File startDir;
+		private final Path.Source pathHelper;
+		private final Map<File, Listing> listings = new HashMap<File, Listing>();
+		private final LinkedList<Listing> dirQueue = new LinkedList<Listing>();
+		private Listing current;
+		private int currentIndex;
+		private int walk = 0; // number of the walk, to tell listings of directories that are gone
+		private long walkStartTime;
+		private RegularFileInfo nextFile;
+		private Path nextPath;
+
+		public CachingWalker(File dir, Path.Source pathFactory) {
+			startDir = dir;
+			pathHelper = pathFactory;
+			reset();
+		}
+
+		public void reset() {
+			walk++;
+			walkStartTime = System.currentTimeMillis();
+			dirQueue.clear();
+			dirQueue.add(listing(startDir));
+			current = null;
+			currentIndex = 0;
+			nextFile = new RegularFileInfo();
+			nextPath = null;
+		}
+
+		void clear() {
+			listings.clear();
+			reset();
+		}
+
+		public boolean hasNext() {
+			return fill();
+		}
+
+		public void next() {
+			if (!fill()) {
+				throw new NoSuchElementException();
+			}
+			nextFile.init(current.files[currentIndex]);
+			nextPath = current.paths[currentIndex];
+			currentIndex++;
+		}
+
+		public Path name() {
+			return nextPath;
+		}
+
+		public FileInfo file() {
+			return nextFile;
+		}
+
+		public boolean inScope(Path file) {
+			return true;
+		}
+
+		// true when current listing has file entry at currentIndex
+		private boolean fill() {
+			while (true) {
+				if (current != null) {
+					while (currentIndex < current.files.length) {
+						if (current.kinds[currentIndex] == Listing.FILE) {
+							return true;
+						}
+						currentIndex++;
+					}
+					current = null;
+				}
+				if (dirQueue.isEmpty()) {
+					// walk is over, drop directories we didn't get to
+					for (Iterator<Listing> it = listings.values().iterator(); it.hasNext();) {
+						if (it.next().walk != walk) {
+							it.remove();
+						}
+					}
+					return false;
+				}
+				current = dirQueue.removeFirst();
+				currentIndex = 0;
+				for (int i = 0; i < current.files.length; i++) {
+					if (current.kinds[i] == Listing.DIRECTORY) {
+						dirQueue.addLast(listing(current.files[i]));
+					}
+				}
+			}
+		}
+
+		private Listing listing(File dir) {
+			Listing l = listings.get(dir);
+			final long lastModified = dir.lastModified();
+			if (l == null || !l.trusted || l.lastModified != lastModified) {
+				l = new Listing(lastModified);
+				// timestamp of a directory modified in the same second the listing is taken may stay the same after another change
+				l.trusted = lastModified / 1000 < walkStartTime / 1000;
+				File[] files = dir.listFiles();
+				// there are chances directory we query files for is missing (deleted), just treat it as empty
+				l.files = files == null ? new File[0] : files;
+				l.paths = new Path[l.files.length];
+				l.kinds = new byte[l.files.length];
+				for (int i = 0; i < l.files.length; i++) {
+					final File f = l.files[i];
+					if (f.isDirectory()) {
+						final boolean isRepoDir = dir.equals(startDir) && ".hg".equals(f.getName());
+						l.kinds[i] = isRepoDir ? Listing.SKIP : Listing.DIRECTORY;
+					} else {
+						l.kinds[i] = Listing.FILE;
+						l.paths[i] = pathHelper.path(f.getPath());
+					}
+				}
+				listings.put(dir, l);
+			}
+			l.walk = walk;
+			return l;
+		}
+	}
+
+	private static class Listing {
+		static final byte FILE = 0, DIRECTORY = 1, SKIP = 2;
+		final long lastModified;
+		boolean trusted;
+		int walk;
+		File[] files;
+		Path[] paths; // null for directories
+		byte[] kinds;
+
+		Listing(long dirLastModified) {
+			lastModified = dirLastModified;
+		}
+	}
+}
@@ -148,6 +148,19 @@ abstract class Revlog {
 		return revision;
 	}
 	
+	/**
+	 * Get local indexes of several revisions at once. Unlike {@link #getRevisionIndex(Nodeid)}, doesn't fail for unknown revisions.
+	 * Single pass over revlog index, thus preferable over multiple {@link #getRevisionIndex(Nodeid)} calls when there's no 
+	 * {@link RevisionMap} at hand.
+	 * 
+	 * @param nids revisions to look up
+	 * @return revision indexes in the order of the arguments, {@link HgRepository#BAD_REVISION} for revisions not from this revlog
+	 * @throws HgInvalidControlFileException if access to revlog index/data entry failed
+	 */
+	public final int[] getRevisionIndexes(Nodeid... nids) throws HgInvalidControlFileException {
+		return content.findRevisionIndexes(nids);
+	}
+
 	/**
 	 * @deprecated use {@link #getRevisionIndex(Nodeid)} instead
 	 */
@@ -296,22 +309,34 @@ abstract class Revlog {
 		}
 		final RevisionInspector revisionInsp = Adaptable.Factory.getAdapter(inspector, RevisionInspector.class, null);
 		final ParentInspector parentInsp = Adaptable.Factory.getAdapter(inspector, ParentInspector.class, null);
-		final Nodeid[] allRevisions = parentInsp == null ? null : new Nodeid[end - start + 1]; 
+		final Nodeid[] allRevisions = parentInsp == null ? null : new Nodeid[end - start + 1];
+		final int firstRevision = start;
 
 		content.iterate(start, end, false, new RevlogStream.Inspector() {
 			
-			public void next(int revisionNumber, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess data) {
+			public void next(int revisionNumber, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess data) throws HgInvalidControlFileException {
 				Nodeid nid = Nodeid.fromBinary(nodeid, 0);
 				if (revisionInsp != null) {
 					revisionInsp.next(revisionNumber, nid, linkRevision);
 				}
 				if (parentInsp != null) {
-					Nodeid p1 = parent1Revision == -1 ? Nodeid.NULL : allRevisions[parent1Revision];
-					Nodeid p2 = parent2Revision == -1 ? Nodeid.NULL : allRevisions[parent2Revision];
-					allRevisions[revisionNumber] = nid;
+					Nodeid p1 = parentNodeid(parent1Revision);
+					Nodeid p2 = parentNodeid(parent2Revision);
+					allRevisions[revisionNumber - firstRevision] = nid;
 					parentInsp.next(revisionNumber, nid, parent1Revision, parent2Revision, p1, p2);
 				}
 			}
+
+			// parents of a revision in the middle of the revlog may precede walked range 
+			private Nodeid parentNodeid(int parentRevision) throws HgInvalidControlFileException {
+				if (parentRevision == -1) {
+					return Nodeid.NULL;
+				}
+				if (parentRevision >= firstRevision) {
+					return allRevisions[parentRevision - firstRevision];
+				}
+				return Nodeid.fromBinary(content.nodeid(parentRevision), 0);
+			}
 		});
 	}
 
@@ -17,10 +17,12 @@
 package org.tmatesoft.hg.util;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.NoSuchElementException;
 
 /**
+ * Walks the file tree depth-first, and reports files in the order of their {@link Path paths}.
  * 
  * @author Artem Tikhomirov
  * @author TMate Software Ltd.
@@ -29,8 +31,8 @@ public class FileWalker implements FileIterator {
 
 	private final File startDir;
 	private final Path.Source pathHelper;
-	private final LinkedList<File> dirQueue;
-	private final LinkedList<File> fileQueue;
+	private final LinkedList<Listing> dirStack; // directories being walked, innermost first
+	private boolean started; // start directory listed
 	private final Path.Matcher scope;
 	private RegularFileInfo nextFile;
 	private Path nextPath;
@@ -50,16 +52,14 @@ public class FileWalker implements FileIterator {
 	public FileWalker(File dir, Path.Source pathFactory, Path.Matcher scopeMatcher) {
 		startDir = dir;
 		pathHelper = pathFactory;
-		dirQueue = new LinkedList<File>();
-		fileQueue = new LinkedList<File>();
+		dirStack = new LinkedList<Listing>();
 		scope = scopeMatcher;
 		reset();
 	}
 
 	public void reset() {
-		fileQueue.clear();
-		dirQueue.clear();
-		dirQueue.add(startDir);
+		dirStack.clear();
+		started = false;
 		nextFile = new RegularFileInfo();
 		nextPath = null;
 	}
@@ -72,9 +72,10 @@ public class FileWalker implements FileIterator {
 		if (!fill()) {
 			throw new NoSuchElementException();
 		}
-		File next = fileQueue.removeFirst();
-		nextFile.init(next);
-		nextPath = pathHelper.path(next.getPath());
+		Listing l = dirStack.getFirst();
+		nextFile.init(l.files[l.index]);
+		nextPath = l.paths[l.index];
+		l.index++;
 	}
 
 	public Path name() {
@@ -98,35 +99,93 @@ public class FileWalker implements FileIterator {
 		return rv == null ? new File[0] : rv;
 	}
 
-	// return true when fill added any elements to fileQueue. 
+	// entries of the directory, in order, with paths of those in scope
+	private Listing list(File dir) {
+		Listing l = new Listing(listFiles(dir));
+		for (int i = 0; i < l.files.length; i++) {
+			l.isDirectory[i] = l.files[i].isDirectory();
+		}
+		sortByPath(l.files, l.isDirectory);
+		for (int i = 0; i < l.files.length; i++) {
+			final File f = l.files[i];
+			final boolean isDir = l.isDirectory[i];
+			Path path = pathHelper.path(isDir ? ensureTrailingSlash(f.getPath()) : f.getPath());
+			if (inScope(path) && !(isDir && ".hg/".equals(path.toString()))) {
+				l.paths[i] = path;
+			}
+		}
+		return l;
+	}
+
+	// return true when the innermost directory being walked has file to report at its current index 
 	private boolean fill() {
-		while (fileQueue.isEmpty()) {
-			if (dirQueue.isEmpty()) {
-				return false;
+		if (!started) {
+			dirStack.add(list(startDir));
+			started = true;
+		}
+		while (!dirStack.isEmpty()) {
+			Listing l = dirStack.getFirst();
+			if (l.index == l.files.length) {
+				dirStack.removeFirst();
+				continue;
 			}
-			while (!dirQueue.isEmpty()) {
-				File dir = dirQueue.removeFirst();
-				for (File f : listFiles(dir)) {
-					final boolean isDir = f.isDirectory();
-					Path path = pathHelper.path(isDir ? ensureTrailingSlash(f.getPath()) : f.getPath());
-					if (!inScope(path)) {
-						continue;
-					}
-					if (isDir) {
-						if (!".hg/".equals(path.toString())) {
-							dirQueue.addLast(f);
-						}
-					} else {
-						fileQueue.addLast(f);
-					}
-				}
-				break;
+			if (l.paths[l.index] == null) {
+				l.index++; // not in scope
+			} else if (l.isDirectory[l.index]) {
+				dirStack.addFirst(list(l.files[l.index++]));
+			} else {
+				return true;
 			}
 		}
-		return !fileQueue.isEmpty();
+		return false;
+	}
+
+	/**
+	 * Directory entries, sorted the way their paths compare, i.e. names of directories compare as if they had trailing slash 
+	 * (e.g. "a.txt" goes before directory "a", as "a/" > "a.txt").
+	 */
+	/*package-local*/ static void sortByPath(File[] files, boolean[] isDirectory) {
+		PathOrder[] order = new PathOrder[files.length];
+		for (int i = 0; i < files.length; i++) {
+			order[i] = new PathOrder(files[i], isDirectory[i]);
+		}
+		Arrays.sort(order);
+		for (int i = 0; i < order.length; i++) {
+			files[i] = order[i].file;
+			isDirectory[i] = order[i].isDirectory;
+		}
+	}
+
+	private static final class PathOrder implements Comparable<PathOrder> {
+		final File file;
+		final boolean isDirectory;
+		final String key;
+
+		PathOrder(File f, boolean isDir) {
+			file = f;
+			isDirectory = isDir;
+			key = isDir ? f.getName().concat("/") : f.getName();
+		}
+
+		public int compareTo(PathOrder o) {
+			return key.compareTo(o.key);
+		}
+	}
+
+	private static final class Listing {
+		final File[] files;
+		final boolean[] isDirectory;
+		final Path[] paths; // null for entries out of scope
+		int index;
+
+		Listing(File[] entries) {
+			files = entries;
+			isDirectory = new boolean[entries.length];
+			paths = new Path[entries.length];
+		}
 	}
 	
-	private static String ensureTrailingSlash(String dirName) {
+	/*package-local*/ static String ensureTrailingSlash(String dirName) {
 		if (dirName.length() > 0) {
 			char last = dirName.charAt(dirName.length() - 1);
 			if (last == '/' || last == File.separatorChar) {
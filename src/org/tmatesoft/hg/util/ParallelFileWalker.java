@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2012 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FileIterator} that lists directories and queries attributes of their entries from several threads.
+ * File system queries for an entry are made by a worker thread, each of them no more than once:
+ * {@link File#isDirectory()} for any entry, and, for a file, {@link File#lastModified()}, then, if the file is there,
+ * {@link File#isFile()}, {@link File#canRead()} and {@link File#length()}, each a separate stat call.
+ * Unlike {@link FileWalker}, {@link #file()} reports values captured by the worker, without going to the file system again.
+ *
+ * Path computation and scope checks happen in the thread that iterates, thus {@link Path.Source} and
+ * {@link Path.Matcher} don't need to be thread-safe. Files are reported in the same order as {@link FileWalker} does
+ * (depth-first, in the order of their paths), workers list directories ahead of the walk, no more than a fixed 
+ * number of directories at once.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class ParallelFileWalker implements FileIterator {
+
+	private static final int MAX_PENDING = 64; // directory listings requested ahead of the walk
+
+	private final File startDir;
+	private final Path.Source pathHelper;
+	private final Path.Matcher scope;
+	private final ThreadPoolExecutor executor;
+	private final LinkedList<Listing> dirStack; // directories being walked, innermost first
+	private int pendingListings;
+	private final EntryInfo nextFile;
+	private Path nextPath;
+
+	public ParallelFileWalker(File dir, Path.Source pathFactory, int threads) {
+		this(dir, pathFactory, null, threads);
+	}
+
+	/**
+	 * @param dir root of the file tree to walk
+	 * @param pathFactory converts file names to paths, accessed from the thread that iterates only
+	 * @param scopeMatcher same as in {@link FileWalker#FileWalker(File, Path.Source, Path.Matcher)}, may be <code>null</code>
+	 * @param threads number of threads to list directories, at least 1
+	 */
+	public ParallelFileWalker(File dir, Path.Source pathFactory, Path.Matcher scopeMatcher, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException(String.valueOf(threads));
+		}
+		startDir = dir;
+		pathHelper = pathFactory;
+		scope = scopeMatcher;
+		// threads go away once idle, so that walker abandoned in the middle doesn't hold them
+		executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "hg4j-file-walker");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		nextFile = new EntryInfo();
+		dirStack = new LinkedList<Listing>();
+		reset();
+	}
+
+	public void reset() {
+		// listings requested for previous walk (if any) are of no interest
+		for (Listing l : dirStack) {
+			for (Future<Listing> f : l.subdirs) {
+				if (f != null) {
+					f.cancel(false);
+				}
+			}
+		}
+		dirStack.clear();
+		pendingListings = 0;
+		nextPath = null;
+		dirStack.add(new Listing(startDir)); // placeholder to request the start directory on first access 
+	}
+
+	public boolean hasNext() throws IOException {
+		return fill();
+	}
+
+	public void next() throws IOException {
+		if (!fill()) {
+			throw new NoSuchElementException();
+		}
+		Listing l = dirStack.getFirst();
+		nextFile.init(l, l.index);
+		nextPath = l.paths[l.index];
+		l.index++;
+	}
+
+	public Path name() {
+		return nextPath;
+	}
+
+	public FileInfo file() {
+		return nextFile;
+	}
+
+	public boolean inScope(Path file) {
+		/* by default, no limits, all files are of interest */
+		return scope == null ? true : scope.accept(file);
+	}
+
+	private Future<Listing> request(File dir) {
+		pendingListings++;
+		return executor.submit(new Lister(dir));
+	}
+
+	// listing of a directory, with paths for entries in scope. Listings of subdirectories get requested, as long as there's room
+	private Listing take(Future<Listing> request) throws IOException {
+		final Listing l;
+		try {
+			l = request.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException ex) {
+			final Throwable cause = ex.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		} finally {
+			pendingListings--;
+		}
+		for (int i = 0; i < l.entries.length; i++) {
+			final File f = l.entries[i];
+			final boolean isDir = l.isDirectory(i);
+			Path path = pathHelper.path(isDir ? FileWalker.ensureTrailingSlash(f.getPath()) : f.getPath());
+			if (inScope(path) && !(isDir && ".hg/".equals(path.toString()))) {
+				l.paths[i] = path;
+			}
+		}
+		for (int i = 0; i < l.entries.length && pendingListings < MAX_PENDING; i++) {
+			if (l.paths[i] != null && l.isDirectory(i)) {
+				l.subdirs.set(i, request(l.entries[i]));
+			}
+		}
+		return l;
+	}
+
+	// true when the innermost directory being walked has file to report at its current index
+	private boolean fill() throws IOException {
+		while (!dirStack.isEmpty()) {
+			Listing l = dirStack.getFirst();
+			if (l.entries == null) {
+				// start directory
+				dirStack.removeFirst();
+				dirStack.addFirst(take(request(l.dir)));
+				continue;
+			}
+			final int i = l.index;
+			if (i == l.entries.length) {
+				dirStack.removeFirst();
+			} else if (l.paths[i] == null) {
+				l.index++; // not in scope
+			} else if (l.isDirectory(i)) {
+				Future<Listing> subdir = l.subdirs.set(i, null);
+				l.index++;
+				dirStack.addFirst(take(subdir == null ? request(l.entries[i]) : subdir));
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static class Listing {
+		static final int DIRECTORY = 1, FILE = 2, READABLE = 4;
+		final File dir;
+		final File[] entries;
+		final byte[] flags;
+		final long[] lengths;
+		final long[] modified;
+		// the rest is for the thread that iterates
+		final Path[] paths; // null for entries out of scope
+		final List<Future<Listing>> subdirs; // listings requested ahead
+		int index;
+
+		Listing(File directory, File[] files) {
+			dir = directory;
+			entries = files;
+			flags = new byte[files.length];
+			lengths = new long[files.length];
+			modified = new long[files.length];
+			paths = new Path[files.length];
+			subdirs = new ArrayList<Future<Listing>>(Collections.<Future<Listing>>nCopies(files.length, null));
+		}
+
+		// directory yet to be listed
+		Listing(File directory) {
+			dir = directory;
+			entries = null;
+			flags = null;
+			lengths = modified = null;
+			paths = null;
+			subdirs = Collections.emptyList();
+		}
+
+		boolean isDirectory(int index) {
+			return (flags[index] & DIRECTORY) != 0;
+		}
+	}
+
+	private static class Lister implements Callable<Listing> {
+		private final File dir;
+
+		Lister(File directory) {
+			dir = directory;
+		}
+
+		// java.io.File gives no way to get all attributes at once, each query below is a separate stat call,
+		// the point is to make them here, off the iterating thread, and to make none of them twice
+		public Listing call() {
+			File[] files = dir.listFiles();
+			// there are chances directory we query files for is missing (deleted), just treat it as empty
+			if (files == null) {
+				files = new File[0];
+			}
+			boolean[] isDirectory = new boolean[files.length];
+			for (int i = 0; i < files.length; i++) {
+				isDirectory[i] = files[i].isDirectory();
+			}
+			FileWalker.sortByPath(files, isDirectory);
+			Listing l = new Listing(dir, files);
+			for (int i = 0; i < files.length; i++) {
+				File f = files[i];
+				if (isDirectory[i]) {
+					l.flags[i] = Listing.DIRECTORY;
+				} else {
+					// zero modification time tells file is gone (or inaccessible), no need to ask isFile() then
+					long lm = f.lastModified();
+					if (lm != 0 && f.isFile()) {
+						l.flags[i] = (byte) (Listing.FILE | (f.canRead() ? Listing.READABLE : 0));
+						l.modified[i] = lm;
+						l.lengths[i] = f.length();
+					} else {
+						// e.g. broken symlink or special file, report as FileWalker does, it's up to client to tell it doesn't exist
+						l.flags[i] = Listing.FILE;
+					}
+				}
+			}
+			return l;
+		}
+	}
+
+	private static class EntryInfo extends RegularFileInfo {
+		private boolean exists;
+		private int lastModified;
+		private long length;
+
+		void init(Listing l, int index) {
+			super.init(l.entries[index]);
+			final int readableFile = Listing.FILE | Listing.READABLE;
+			exists = (l.flags[index] & readableFile) == readableFile;
+			lastModified = (int) (l.modified[index] / 1000);
+			length = l.lengths[index];
+		}
+
+		@Override
+		public boolean exists() {
+			return exists;
+		}
+
+		@Override
+		public int lastModified() {
+			return lastModified;
+		}
+
+		@Override
+		public long length() {
+			return length;
+		}
+	}
+}